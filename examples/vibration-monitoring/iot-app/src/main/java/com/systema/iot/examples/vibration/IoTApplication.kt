@@ -5,10 +5,12 @@ package com.systema.iot.examples.vibration
 import com.google.gson.Gson
 import com.systema.eia.iot.tb.TbCliApp
 import com.systema.eia.iot.tb.clients.ExtRestClient
+import com.systema.eia.iot.tb.clients.TbSessionPool
 import com.systema.eia.iot.tb.persistence.load.UserConfigurator
 import com.systema.eia.iot.tb.utils.DeviceDiscovery
 import com.systema.eia.iot.tb.utils.Scope
 import com.systema.eia.iot.tb.utils.SubscriptionType
+import com.systema.eia.iot.tb.ws.WsSubscriptionManager
 import com.systema.iot.examples.vibration.TbConfigurator.TBUTILS_DEMO_SYSADMIN_PW
 import com.systema.iot.examples.vibration.TbConfigurator.TBUTILS_DEMO_TENANT_PW
 import mu.KotlinLogging
@@ -17,6 +19,8 @@ import org.thingsboard.server.common.data.id.DeviceId
 import java.io.File
 import java.net.URL
 import java.util.*
+import java.util.concurrent.Executors
+import kotlin.concurrent.timerTask
 
 
 //private val OBJECT_MAPPER = ObjectMapper()
@@ -106,16 +110,25 @@ class IoTApplication : TbCliApp() {
 
         val deviceComponents = HashMap<DeviceId, DeviceComponents>()
 
+        // a few ThingsBoard sessions shared by all devices
+        val sessionPool = TbSessionPool(URL(tbUrl), tbUser, tbPassword)
+
+        // websocket subscriptions of all devices, resubscribed after connection losses; the handlers of the devices
+        // call ThingsBoard and block, so they run on a pool of their own instead of the shared websocket thread
+        val managerSession = sessionPool.session()
+        val handlerExecutor = Executors.newFixedThreadPool(8)
+        val subscriptionManager = WsSubscriptionManager(managerSession, handlerExecutor = handlerExecutor)
+
         // functions to handle discovered devices
         val activeAction =
             { discoveredActiveDevices: List<Device> ->
                 for (device in discoveredActiveDevices) {
                     if (!deviceComponents.containsKey(device.id)) {
                         logger.info { "Found new active device ${device.name}." }
-                        logger.info { "Initializing new ThingsBoard client for device ${device.name}..." }
-                        val client = ExtRestClient(URL(tbUrl), tbUser, tbPassword)
+                        logger.info { "Assigning ThingsBoard session to device ${device.name}..." }
+                        val client = sessionPool.session()
                         logger.info { "Initializing new state machine for device ${device.name}..." }
-                        val stateMachine = VibrationDeviceStateModel(device, client)
+                        val stateMachine = VibrationDeviceStateModel(device, client, subscriptionManager)
                         // save device components so that they can be cleared, when device goes inactive
                         deviceComponents[device.id] = DeviceComponents(client, stateMachine)
                     }
@@ -126,20 +139,30 @@ class IoTApplication : TbCliApp() {
                 for (device in discoveredInactiveDevices) {
                     if (deviceComponents.containsKey(device.id)) {
                         logger.info { "Found new inactive device ${device.name}." }
-                        logger.info { "Disconnecting ThingsBoard client of device ${device.name}..." }
-                        deviceComponents[device.id]?.client?.close()
+                        logger.info { "Releasing ThingsBoard session of device ${device.name}..." }
+                        deviceComponents[device.id]?.client?.let { sessionPool.release(it) }
                         logger.info { "Removing state machine of device ${device.name}..." }
-                        deviceComponents.remove(device.id)
+                        deviceComponents.remove(device.id)?.stateMachine?.close()
                     }
                 }
             }
 
         // start discovery scheduled to run every 5s
         // TODO@HoB: can this be rewritten using trailing lambdas notation?
-        val discoveryTask =
-            DeviceDiscovery(URL(tbUrl), tbUser, tbPassword, tbDeviceProfile, activeAction, inactiveAction)
+        val discoveryTask = DeviceDiscovery(sessionPool, tbDeviceProfile, activeAction, inactiveAction)
         val timer = Timer("deviceDiscoveryTimer")
         timer.schedule(discoveryTask, 0, 5000)
+        timer.schedule(timerTask { logger.info { "ThingsBoard session pool: ${sessionPool.stats()}" } }, 60000, 60000)
+
+        Runtime.getRuntime().addShutdownHook(Thread {
+            timer.cancel()
+            subscriptionManager.close()
+            handlerExecutor.shutdown()
+            deviceComponents.values.forEach { it.stateMachine.close() }
+            sessionPool.release(managerSession)
+            discoveryTask.closeTbRestClient()
+            sessionPool.close()
+        })
 
         // create file for Docker HEALTHCHECK
         File("UP").createNewFile()
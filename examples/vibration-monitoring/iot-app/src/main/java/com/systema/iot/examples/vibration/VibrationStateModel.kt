@@ -2,14 +2,25 @@ package com.systema.iot.examples.vibration
 
 import com.systema.eia.iot.tb.clients.ExtRestClient
 import com.systema.eia.iot.tb.utils.SubscriptionType
+import com.systema.eia.iot.tb.ws.WsSubscriptionManager
 import com.systema.eia.iot.tb.ws.saveAttributeChanges
-import com.systema.eia.iot.tb.ws.subscribeToWS
 import fsmDefinition
 import kotlinx.coroutines.runBlocking
 import mu.KotlinLogging
 import org.thingsboard.server.common.data.Device
-
-class VibrationDeviceStateModel(val device: Device, val client: ExtRestClient) {
+import java.io.Closeable
+
+/**
+ * State model of a device. The subscriptions of the shared [WsSubscriptionManager] survive reconnects, and the
+ * vibration measurements missed meanwhile are passed to the model in order before newer ones. The handlers block on
+ * ThingsBoard calls and the state machine, so the manager should run them on a `handlerExecutor`, to not delay the
+ * updates of the other devices.
+ */
+class VibrationDeviceStateModel(
+    val device: Device,
+    val client: ExtRestClient,
+    val subscriptionManager: WsSubscriptionManager
+) : Closeable {
     val logger = KotlinLogging.logger {}
 
     // TODO Make configurable via TB
@@ -20,17 +31,19 @@ class VibrationDeviceStateModel(val device: Device, val client: ExtRestClient) {
 
     val fsm  = fsmDefinition.create(this)
 
+    private val subscriptions = ArrayList<Closeable>()
+
     // configure attribute and telemetry subscriptions
     init {
         // enable attribute persistence
         // Note: this is just needed for dash-boarding and not for functioning
-        client.saveAttributeChanges(device.id)
+        subscriptions += client.saveAttributeChanges(device.id, subscriptionManager).map { it.second }
 
         // subscribe to telemetry using web socket
         logger.info { "subscribing to websocket for telemetry updates..." }
 
 
-        client.subscribeToWS(
+        subscriptions += subscriptionManager.subscribe(
             device.id,
             SubscriptionType.LATEST_TELEMETRY,
             keys = listOf(VibrationDeviceAttributes.VIBRATION_TELEMETRY)
@@ -52,7 +65,7 @@ class VibrationDeviceStateModel(val device: Device, val client: ExtRestClient) {
 
         // subscribe to attribute changes
         val broken = VibrationDeviceAttributes.broken
-        client.subscribeToWS(device.id, broken.scope, keys = listOf(broken.name)) { message ->
+        subscriptions += subscriptionManager.subscribe(device.id, broken.scope, keys = listOf(broken.name)) { message ->
             message.forEach {
                 logger.warn("tool broken status changed to ${it.value}")
                 val isBroken = it.value.toString().toBoolean()
@@ -89,6 +102,12 @@ class VibrationDeviceStateModel(val device: Device, val client: ExtRestClient) {
         }
     }
 
+    /** Cancel the subscriptions of the device. */
+    override fun close() {
+        subscriptions.forEach { it.close() }
+        subscriptions.clear()
+    }
+
     fun logStatus() {
         with(VibrationDeviceAttributes.status){
             client.saveAttribute(device.id, attributeScope, name, fsm.currentState )
@@ -0,0 +1,61 @@
+package com.systema.eia.iot.tb.utils
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.annotations.Scope as JmhScope
+import java.util.concurrent.TimeUnit
+
+/**
+ * Serialization of telemetry payloads: the former `Map -> JsonNode -> bytes` paths vs. [JsonStreamWriter].
+ *
+ * Run with `./gradlew jmh`; the `gc.alloc.rate.norm` column shows the allocated bytes per payload.
+ */
+@State(JmhScope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class JsonWriteBenchmark {
+
+    private val mapper = ObjectMapper()
+
+    private val values = mapOf(
+        "x" to 0.0123, "y" to -0.0456, "z" to 0.9871,
+        "rms" to 1.2345, "peak" to 3.4567, "temperature" to 41.5,
+        "rpm" to 1480, "samples" to 4096L, "state" to "RUNNING", "alarm" to false
+    )
+
+    private val ts = 1640995200000L
+
+    /** former `ExtRestClient.sendTelemetry(map)`: convert to tree, serialized by the REST template */
+    @Benchmark
+    fun restConvertValue(): ByteArray = mapper.writeValueAsBytes(mapper.convertValue(values, JsonNode::class.java))
+
+    /** former `DeviceMqttClient.sendTelemetry(map)`: convert to tree, pretty printed */
+    @Benchmark
+    fun mqttConvertValue(): ByteArray = mapper.convertValue(values, JsonNode::class.java).toPrettyString().toByteArray()
+
+    /** former `saveAttributeChanges`: org.json builder, parsed to tree, serialized by the REST template */
+    @Benchmark
+    fun attributeHistoryOrgJson(): ByteArray {
+        val json = json {
+            "ts" to ts
+            "values" to {
+                "attrscope__SHARED_SCOPE__name__state" to "RUNNING"
+            }
+        }
+        return mapper.writeValueAsBytes(mapper.readTree(json.toString()))
+    }
+
+    @Benchmark
+    fun streamingMap(): ByteArray = JsonStreamWriter.write(values)
+
+    @Benchmark
+    fun streamingRecord(): ByteArray = JsonStreamWriter.write(TelemetryRecord(values, ts))
+
+    @Benchmark
+    fun attributeHistoryStreaming(): ByteArray =
+        JsonStreamWriter.write(TelemetryRecord(ts, "attrscope__SHARED_SCOPE__name__state", "RUNNING"))
+}
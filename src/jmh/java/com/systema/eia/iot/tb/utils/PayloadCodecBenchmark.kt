@@ -0,0 +1,70 @@
+package com.systema.eia.iot.tb.utils
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.annotations.Scope as JmhScope
+import java.util.concurrent.TimeUnit
+
+/**
+ * Encoding of a telemetry message: pretty printed `JsonNode` (former `SimpleMqttClient.publish`) vs. the compact JSON
+ * and Protobuf [PayloadCodec]s.
+ *
+ * Run with `./gradlew jmh`; the message sizes are printed when the benchmark starts.
+ */
+@State(JmhScope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class PayloadCodecBenchmark {
+
+    private val mapper = ObjectMapper()
+
+    private val values = mapOf(
+        "x" to 0.0123, "y" to -0.0456, "z" to 0.9871,
+        "rms" to 1.2345, "peak" to 3.4567, "temperature" to 41.5,
+        "rpm" to 1480, "samples" to 4096L, "state" to "RUNNING", "alarm" to false
+    )
+
+    private val record = TelemetryRecord(values, 1640995200000L)
+
+    private val schema = """
+        syntax = "proto3";
+        message Reading {
+          optional int64 ts = 1;
+          Values values = 2;
+          message Values {
+            optional double x = 1;
+            optional double y = 2;
+            optional double z = 3;
+            optional double rms = 4;
+            optional double peak = 5;
+            optional double temperature = 6;
+            optional int32 rpm = 7;
+            optional int64 samples = 8;
+            optional string state = 9;
+            optional bool alarm = 10;
+          }
+        }
+    """.trimIndent()
+
+    private val protobuf = ProtobufPayloadCodec(ProtoSchema.parse(schema), ProtoSchema.parse(schema))
+
+    @Setup
+    fun printSizes() {
+        println()
+        println("bytes per message: pretty JSON ${prettyJson().size}, compact JSON ${compactJson().size}, " +
+                "Protobuf ${protobuf().size}")
+    }
+
+    @Benchmark
+    fun prettyJson(): ByteArray = mapper.valueToTree<JsonNode>(record).toPrettyString().toByteArray()
+
+    @Benchmark
+    fun compactJson(): ByteArray = JsonPayloadCodec.encodeTelemetry(record)
+
+    @Benchmark
+    fun protobuf(): ByteArray = protobuf.encodeTelemetry(record)
+}
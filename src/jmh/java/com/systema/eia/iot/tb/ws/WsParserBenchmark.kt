@@ -0,0 +1,95 @@
+package com.systema.eia.iot.tb.ws
+
+import com.fasterxml.jackson.core.type.TypeReference
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import org.openjdk.jmh.annotations.Scope as JmhScope
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Parsing of ThingsBoard websocket updates: the former tree-based [WsParserUtils.parseMessage] vs. the streaming
+ * parser, into a list of [AttrUpdate]s or a reused [AttrUpdateBatch].
+ *
+ * Run with `./gradlew jmh`; the `gc.alloc.rate.norm` column shows the allocated bytes per message.
+ */
+@State(JmhScope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class WsParserBenchmark {
+
+    private val ts = 1640995200000L
+
+    /** latest telemetry update of a device: 10 keys with one value each */
+    private val latest = buildMessage(
+        listOf("x", "y", "z", "rms", "peak", "temperature", "rpm", "samples", "state", "alarm"), 1
+    )
+
+    /** update after a burst: 3 keys with 100 values each, newest first */
+    private val burst = buildMessage(listOf("x", "y", "z"), 100)
+
+    private val batch = AttrUpdateBatch()
+
+    private fun buildMessage(keys: List<String>, values: Int): String {
+        val data = keys.joinToString(",") { key ->
+            val entries = (values - 1 downTo 0).joinToString(",") { "[${ts + it * 10},\"${0.001 * it}\"]" }
+            "\"$key\":[$entries]"
+        }
+        val latestValues = keys.joinToString(",") { "\"$it\":${ts + (values - 1) * 10}" }
+        return "{\"subscriptionId\":1,\"errorCode\":0,\"errorMsg\":null,\"data\":{$data}," +
+                "\"latestValues\":{$latestValues}}"
+    }
+
+    @Benchmark
+    fun legacyLatest(bh: Blackhole): List<AttrUpdate> = legacyParseMessage(latest, bh)
+
+    @Benchmark
+    fun streamingLatest(): List<AttrUpdate> = WsParserUtils.parseMessage(latest)
+
+    @Benchmark
+    fun legacyBurst(bh: Blackhole): List<AttrUpdate> = legacyParseMessage(burst, bh)
+
+    @Benchmark
+    fun streamingBurst(): List<AttrUpdate> = WsParserUtils.parseMessage(burst)
+
+    @Benchmark
+    fun batchLatest(): AttrUpdateBatch = WsParserUtils.parseMessage(latest, batch)
+
+    @Benchmark
+    fun batchBurst(): AttrUpdateBatch = WsParserUtils.parseMessage(burst, batch)
+
+    /**
+     * Former implementation of [WsParserUtils.parseMessage]. The log messages, which were built regardless of the log
+     * level, are passed to the black hole instead.
+     */
+    private fun legacyParseMessage(message: String, bh: Blackhole): List<AttrUpdate> {
+        val updateList: MutableList<AttrUpdate> = LinkedList()
+        bh.consume("Trying to parse message: $message")
+        val mapper = ObjectMapper()
+        val data = WsParserUtils.extractTopLevelNode(message, "data", mapper) ?: return updateList
+        bh.consume("Found ThingsBoard update data:\n" + data.toPrettyString())
+        val reader = mapper.readerFor(object : TypeReference<List<List<Any?>>>() {})
+        val keys = data.fieldNames()
+        while (keys.hasNext()) {
+            val key = keys.next()
+            val dataArray: List<List<Any?>> = reader.readValue(data.get(key))
+            for (innerArray in dataArray) {
+                val update = AttrUpdate()
+                update.key = key
+                update.timestamp = innerArray[0].toString().toLong()
+                update.value = innerArray[1]
+                updateList.add(update)
+                bh.consume("Found update: " + update.key + ": " + update.value + " (" + update.timestamp + ")")
+            }
+        }
+        updateList.sortWith { u1, u2 -> (u1.timestamp - u2.timestamp).toInt() }
+        val sortedListString = StringBuilder()
+        for (u in updateList) sortedListString.append(u).append("\n")
+        bh.consume("Sorted update list:\n$sortedListString")
+        return updateList
+    }
+}
@@ -0,0 +1,271 @@
+package com.systema.eia.iot.tb.clients
+
+import com.fasterxml.jackson.databind.DeserializationFeature
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.systema.eia.iot.tb.clients.ExtRestClient.Companion.isAlarmActive
+import com.systema.eia.iot.tb.utils.json
+import mu.KotlinLogging
+import org.java_websocket.client.WebSocketClient
+import org.java_websocket.handshake.ServerHandshake
+import org.thingsboard.server.common.data.alarm.Alarm
+import org.thingsboard.server.common.data.alarm.AlarmInfo
+import org.thingsboard.server.common.data.alarm.AlarmSearchStatus
+import org.thingsboard.server.common.data.id.AlarmId
+import org.thingsboard.server.common.data.id.EntityId
+import java.io.Closeable
+import java.net.URI
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Local index of the active alarms per (originator, alarm type), used by [ExtRestClient.newAlarmIfNotActive] and
+ * [ExtRestClient.clearAlarmIfActive] once enabled via [ExtRestClient.enableAlarmIndex].
+ *
+ * The active alarms of an originator are loaded (all pages) on first access. Afterwards the index is kept up to date
+ * by the alarm operations of the owning client and - if `subscribe` is set - by a ThingsBoard websocket alarm
+ * subscription (`alarmDataCmds`) per originator, so that alarms raised or cleared elsewhere (e.g. by rule chains) are
+ * reflected as well. The subscription is limited to the active alarms, so that it covers all of them: ThingsBoard only
+ * reports changes of the alarms in the subscribed page, and sends the whole page again if an alarm leaves it, e.g. when
+ * it is cleared. All originators share one websocket. If the websocket is closed, all originators are reloaded on
+ * their next access.
+ *
+ * @property client    ThingsBoard REST client used for loading alarms
+ * @property subscribe if true, keep the index up to date via websocket
+ * @property pageSize  page size used for loading the active alarms of an originator
+ */
+class ActiveAlarmIndex @JvmOverloads constructor(
+    val client: ExtRestClient,
+    val subscribe: Boolean = true,
+    val pageSize: Int = 100
+) : Closeable {
+
+    companion object {
+        private val log = KotlinLogging.logger {}
+        private val mapper = ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+
+        /** Time window of the alarm subscriptions; alarms created before are covered by the initial load. */
+        private val SUBSCRIPTION_TIME_WINDOW = Duration.ofDays(3650)
+
+        /** Page size of the alarm subscriptions, i.e. the maximum number of active alarms of an originator. */
+        private const val SUBSCRIPTION_PAGE_SIZE = 10_000
+    }
+
+    private data class Key(val originator: UUID, val type: String)
+
+    private val active = ConcurrentHashMap<Key, AlarmInfo>()
+
+    // alarms in the index, which ThingsBoard has reported as active, i.e. which are missing from a page once cleared
+    private val reported = ConcurrentHashMap.newKeySet<AlarmId>()
+
+    private val loaded = ConcurrentHashMap<UUID, Boolean>()
+
+    private val cmdIds = AtomicInteger()
+    private val subscriptions = ConcurrentHashMap<Int, UUID>()
+
+    @Volatile
+    private var socket: WebSocketClient? = null
+
+    /**
+     * Get the active alarm of the given type for an originator.
+     *
+     * @param originator alarm originator, e.g. a device ID
+     * @param type       alarm type
+     * @return active alarm, null if there is none
+     */
+    fun getActive(originator: EntityId, type: String): AlarmInfo? {
+        ensureLoaded(originator)
+        return active[Key(originator.id, type)]
+    }
+
+    /** Check whether there is an active alarm of the given type for an originator. */
+    fun isActive(originator: EntityId, type: String): Boolean = getActive(originator, type) != null
+
+    /** Number of active alarms in the index. */
+    fun size(): Int = active.size
+
+    /** Drop everything known about an originator, so that its alarms are reloaded on next access. */
+    fun invalidate(originator: EntityId) {
+        loaded.remove(originator.id)
+        removeOriginators(setOf(originator.id))
+    }
+
+    /** Update the index after an alarm has been created or updated. */
+    fun onSaved(alarm: Alarm) {
+        val originator = alarm.originator ?: return
+        apply(originator.id, alarm as? AlarmInfo ?: AlarmInfo(alarm, null), false)
+    }
+
+    /** Update the index after an alarm has been cleared. */
+    fun onCleared(originator: EntityId, type: String) {
+        active.remove(Key(originator.id, type))?.let { reported.remove(it.id) }
+    }
+
+    /** Update the index after an alarm has been cleared by ID. */
+    fun onCleared(alarmId: AlarmId) {
+        active.values.removeIf { it.id == alarmId }
+        reported.remove(alarmId)
+    }
+
+    /** Update the index after an alarm has been deleted. */
+    fun onDeleted(alarmId: AlarmId) {
+        active.values.removeIf { it.id == alarmId }
+        reported.remove(alarmId)
+    }
+
+    /** Close the websocket subscription. */
+    override fun close() {
+        socket?.close()
+        socket = null
+    }
+
+    private fun ensureLoaded(originator: EntityId) {
+        if (loaded.containsKey(originator.id)) return
+
+        synchronized(this) {
+            if (loaded.containsKey(originator.id)) return
+            // drop alarms of a previous load, which may have been cleared or deleted meanwhile
+            removeOriginators(setOf(originator.id))
+            // subscribe first, so that no alarm change between loading and subscribing gets lost
+            if (subscribe) subscribe(originator)
+            load(originator)
+            loaded[originator.id] = true
+        }
+    }
+
+    private fun removeOriginators(originators: Set<UUID>) {
+        active.entries.removeIf { (key, alarm) ->
+            val remove = key.originator in originators
+            if (remove) reported.remove(alarm.id)
+            remove
+        }
+    }
+
+    private fun load(originator: EntityId) {
+        var count = 0
+        client.getAllAlarms(originator, AlarmSearchStatus.ACTIVE, pageSize = pageSize, prefetch = true)
+            .filter { isAlarmActive(it) }
+            .forEach {
+                // newest first: keep the most recent alarm per type
+                active.putIfAbsent(Key(originator.id, it.type), it)
+                reported.add(it.id)
+                count++
+            }
+        log.debug { "Loaded $count active alarms of $originator" }
+    }
+
+    private fun subscribe(originator: EntityId) {
+        val cmdId = cmdIds.incrementAndGet()
+        subscriptions[cmdId] = originator.id
+        val cmd = json {
+            "alarmDataCmds" to arrayOf(json {
+                "cmdId" to cmdId
+                "query" to {
+                    "entityFilter" to {
+                        "type" to "singleEntity"
+                        "singleEntity" to {
+                            "entityType" to originator.entityType.name
+                            "id" to originator.id.toString()
+                        }
+                    }
+                    "pageLink" to {
+                        "page" to 0
+                        "pageSize" to SUBSCRIPTION_PAGE_SIZE
+                        "statusList" to arrayOf(AlarmSearchStatus.ACTIVE.name)
+                        "searchPropagatedAlarms" to false
+                        "timeWindow" to SUBSCRIPTION_TIME_WINDOW.toMillis()
+                        "sortOrder" to {
+                            "key" to {
+                                "type" to "ALARM_FIELD"
+                                "key" to "createdTime"
+                            }
+                            "direction" to "DESC"
+                        }
+                    }
+                }
+            })
+        }
+        connectedSocket().send(cmd.toString())
+    }
+
+    private fun connectedSocket(): WebSocketClient {
+        socket?.takeIf { it.isOpen }?.let { return it }
+
+        val uri = URI("ws://${client.tbHost}:${client.tbPort}/api/ws/plugins/telemetry?token=${client.token}")
+        val newSocket = object : WebSocketClient(uri) {
+            override fun onOpen(handshakedata: ServerHandshake?) {
+                log.debug { "Opened alarm subscription websocket" }
+            }
+
+            override fun onMessage(message: String?) {
+                message?.let { onWsMessage(it) }
+            }
+
+            override fun onClose(code: Int, reason: String?, remote: Boolean) {
+                log.warn { "Alarm subscription websocket closed ($code $reason) - reloading alarms on next access" }
+                if (this@ActiveAlarmIndex.socket === this) {
+                    this@ActiveAlarmIndex.socket = null
+                    // alarm changes during the outage are missed: forget the subscribed originators
+                    val originators = subscriptions.values.toSet()
+                    subscriptions.clear()
+                    loaded.clear()
+                    removeOriginators(originators)
+                }
+            }
+
+            override fun onError(ex: Exception?) {
+                log.error(ex) { "Alarm subscription websocket error" }
+            }
+        }
+        require(newSocket.connectBlocking()) { "Failed to open alarm subscription websocket to $uri" }
+        socket = newSocket
+        return newSocket
+    }
+
+    /**
+     * Apply an alarm data update of the format
+     * `{"cmdId": 1, "data": {"data": [...], "hasNext": false}, "update": [...]}`. `data` is the whole page of active
+     * alarms; reported alarms, which are missing, have been cleared or deleted.
+     */
+    internal fun onWsMessage(message: String) {
+        try {
+            val node = mapper.readTree(message)
+            val originator = subscriptions[node.path("cmdId").asInt()] ?: return
+            if (node.path("errorCode").asInt() != 0) {
+                log.warn { "Alarm subscription of $originator failed: ${node.path("errorMsg").asText()}" }
+                return
+            }
+            val page = node.path("data")
+            if (page.has("data")) {
+                val alarms = page.path("data").map { mapper.treeToValue(it, AlarmInfo::class.java) }
+                if (page.path("hasNext").asBoolean()) {
+                    log.warn { "More than $SUBSCRIPTION_PAGE_SIZE active alarms of $originator - not all are tracked" }
+                } else {
+                    val ids = alarms.map { it.id }.toSet()
+                    active.entries.removeIf { (key, alarm) ->
+                        key.originator == originator && alarm.id !in ids && reported.remove(alarm.id)
+                    }
+                }
+                alarms.forEach { apply(originator, it) }
+            }
+            node.path("update").forEach { apply(originator, it) }
+        } catch (e: Exception) {
+            log.warn(e) { "Failed to process alarm update: $message" }
+        }
+    }
+
+    private fun apply(originator: UUID, node: JsonNode) = apply(originator, mapper.treeToValue(node, AlarmInfo::class.java))
+
+    private fun apply(originator: UUID, alarm: AlarmInfo, fromServer: Boolean = true) {
+        val key = Key(originator, alarm.type)
+        if (isAlarmActive(alarm)) {
+            active[key] = alarm
+            if (fromServer) reported.add(alarm.id)
+        } else {
+            active.computeIfPresent(key) { _, current -> if (current.id == alarm.id) null else current }
+            reported.remove(alarm.id)
+        }
+    }
+}
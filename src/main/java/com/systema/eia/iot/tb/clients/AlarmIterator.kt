@@ -0,0 +1,175 @@
+package com.systema.eia.iot.tb.clients
+
+import mu.KotlinLogging
+import org.thingsboard.server.common.data.alarm.AlarmInfo
+import org.thingsboard.server.common.data.alarm.AlarmSearchStatus
+import org.thingsboard.server.common.data.alarm.AlarmStatus
+import org.thingsboard.server.common.data.id.EntityId
+import org.thingsboard.server.common.data.page.PageData
+import org.thingsboard.server.common.data.page.SortOrder
+import org.thingsboard.server.common.data.page.TimePageLink
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.stream.Stream
+import java.util.stream.StreamSupport
+
+private val log = KotlinLogging.logger {}
+
+/** Executor for background page fetches, if none is given. */
+private val prefetchExecutor: Executor by lazy {
+    Executors.newCachedThreadPool { runnable ->
+        Thread(runnable, "alarm-prefetch").apply { isDaemon = true }
+    }
+}
+
+/**
+ * Iterator over all alarms of an entity (newest first), fetching the alarm pages lazily from ThingsBoard. Only the
+ * current page - and, with `prefetch`, the next one - is kept in memory.
+ *
+ * @property client          ThingsBoard REST client
+ * @property entityId        alarm originator
+ * @property searchStatus    alarm search status, null for all alarms
+ * @property status          alarm status, null for all alarms
+ * @property startTime       start of the time range (ms, inclusive), null for unbounded
+ * @property endTime         end of the time range (ms, inclusive), null for unbounded
+ * @property pageSize        number of alarms per request
+ * @property prefetch        if true, request the next page in the background while the current one is consumed
+ * @property fetchOriginator if true, fetch the originator names
+ * @property executor        executor for the background requests (only used with `prefetch`)
+ */
+class AlarmIterator @JvmOverloads constructor(
+    val client: ExtRestClient,
+    val entityId: EntityId,
+    val searchStatus: AlarmSearchStatus? = null,
+    val status: AlarmStatus? = null,
+    val startTime: Long? = null,
+    val endTime: Long? = null,
+    val pageSize: Int = 100,
+    val prefetch: Boolean = false,
+    val fetchOriginator: Boolean = false,
+    val executor: Executor = prefetchExecutor
+) : Iterator<AlarmInfo> {
+
+    private var pageLink: TimePageLink? =
+        TimePageLink(pageSize, 0, null, SortOrder("createdTime", SortOrder.Direction.DESC), startTime, endTime)
+    private var current: Iterator<AlarmInfo> = Collections.emptyIterator()
+    private var next: CompletableFuture<PageData<AlarmInfo>?>? = null
+
+    init {
+        // with prefetching, the first page is requested right away
+        if (prefetch) next = fetchAsync()
+    }
+
+    override fun hasNext(): Boolean {
+        while (!current.hasNext()) {
+            val page = nextPage() ?: return false
+            current = page.data.iterator()
+        }
+        return true
+    }
+
+    override fun next(): AlarmInfo {
+        if (!hasNext()) throw NoSuchElementException()
+        return current.next()
+    }
+
+    private fun nextPage(): PageData<AlarmInfo>? {
+        val page = if (prefetch) {
+            val future = next ?: return null
+            try {
+                future.join()
+            } catch (e: CompletionException) {
+                throw e.cause ?: e
+            }
+        } else {
+            fetch(pageLink ?: return null)
+        }
+
+        pageLink = if (page != null && page.hasNext()) pageLink?.nextPageLink() else null
+        if (prefetch) next = fetchAsync()
+        return page
+    }
+
+    private fun fetchAsync(): CompletableFuture<PageData<AlarmInfo>?>? {
+        val link = pageLink ?: return null
+        return CompletableFuture.supplyAsync({ fetch(link) }, executor)
+    }
+
+    private fun fetch(link: TimePageLink): PageData<AlarmInfo>? {
+        log.trace { "Fetching alarms of $entityId, page ${link.page}" }
+        return client.getAlarms(entityId, searchStatus, status, link, fetchOriginator)
+    }
+}
+
+/**
+ * Get all alarms of an entity (newest first) as lazy sequence. The alarm pages are fetched on demand, so iterating
+ * over a long history does not load all alarms into memory. See [AlarmIterator].
+ *
+ * Example (Kotlin):
+ * ```
+ * restClient.getAllAlarms(deviceId, startTime = monthAgo, prefetch = true)
+ *     .filter { it.severity == AlarmSeverity.CRITICAL }
+ *     .forEach { audit(it) }
+ * ```
+ */
+fun ExtRestClient.getAllAlarms(
+    entityId: EntityId,
+    searchStatus: AlarmSearchStatus? = null,
+    status: AlarmStatus? = null,
+    startTime: Long? = null,
+    endTime: Long? = null,
+    pageSize: Int = 100,
+    prefetch: Boolean = false
+): Sequence<AlarmInfo> = Sequence {
+    AlarmIterator(this, entityId, searchStatus, status, startTime, endTime, pageSize, prefetch)
+}
+
+/**
+ * Get all alarms of an entity (newest first) as lazy sequence, retrieving the time range `[startTime, endTime]` in
+ * `slices` parallel requests. The slices are fetched concurrently (one page ahead each) and returned in order, i.e.
+ * the result is the same as with [getAllAlarms].
+ *
+ * @param slices number of time slices requested in parallel
+ */
+fun ExtRestClient.getAllAlarmsParallel(
+    entityId: EntityId,
+    startTime: Long,
+    endTime: Long,
+    slices: Int = 4,
+    searchStatus: AlarmSearchStatus? = null,
+    status: AlarmStatus? = null,
+    pageSize: Int = 100
+): Sequence<AlarmInfo> {
+    require(slices > 0) { "slices must be positive" }
+    require(startTime <= endTime) { "startTime must not be after endTime" }
+
+    return Sequence {
+        // newest slice first, consistent with the ordering within the slices
+        val count = slices.toLong().coerceAtMost(endTime - startTime + 1).toInt()
+        val sliceLength = (endTime - startTime + 1) / count
+        val iterators = (0 until count).map { i ->
+            val sliceEnd = endTime - i * sliceLength
+            val sliceStart = if (i == count - 1) startTime else sliceEnd - sliceLength + 1
+            AlarmIterator(this, entityId, searchStatus, status, sliceStart, sliceEnd, pageSize, prefetch = true)
+        }
+        iterators.asSequence().flatMap { it.asSequence() }.iterator()
+    }
+}
+
+/** Java variant of [getAllAlarms]: all alarms of an entity (newest first) as lazy stream. */
+@JvmOverloads
+fun ExtRestClient.streamAllAlarms(
+    entityId: EntityId,
+    searchStatus: AlarmSearchStatus? = null,
+    startTime: Long? = null,
+    endTime: Long? = null,
+    prefetch: Boolean = false
+): Stream<AlarmInfo> = StreamSupport.stream(
+    Spliterators.spliteratorUnknownSize(
+        AlarmIterator(this, entityId, searchStatus, null, startTime, endTime, prefetch = prefetch),
+        Spliterator.ORDERED or Spliterator.NONNULL
+    ), false
+)
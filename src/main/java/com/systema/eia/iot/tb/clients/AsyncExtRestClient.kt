@@ -0,0 +1,355 @@
+package com.systema.eia.iot.tb.clients
+
+import com.fasterxml.jackson.core.type.TypeReference
+import com.fasterxml.jackson.databind.DeserializationFeature
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.systema.eia.iot.tb.clients.ExtRestClient.Companion.DEFAULT_DEVICE_PROFILE_NAME
+import com.systema.eia.iot.tb.clients.ExtRestClient.Companion.isAnyAlarmActive
+import com.systema.eia.iot.tb.clients.InternalRestClientHelpers.addTimePageLinkToParam
+import com.systema.eia.iot.tb.clients.InternalRestClientHelpers.getTimeUrlParams
+import com.systema.eia.iot.tb.utils.Scope
+import kotlinx.coroutines.future.await
+import mu.KotlinLogging
+import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpStatus
+import org.springframework.web.client.HttpClientErrorException
+import org.springframework.web.client.HttpServerErrorException
+import org.springframework.web.client.UnknownHttpStatusCodeException
+import org.thingsboard.server.common.data.Device
+import org.thingsboard.server.common.data.alarm.*
+import org.thingsboard.server.common.data.id.DeviceId
+import org.thingsboard.server.common.data.id.EntityId
+import org.thingsboard.server.common.data.page.PageData
+import org.thingsboard.server.common.data.page.TimePageLink
+import java.net.URI
+import java.net.http.HttpClient
+import java.net.http.HttpRequest
+import java.net.http.HttpResponse
+import java.nio.charset.StandardCharsets
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Non-blocking variant of the most common [ExtRestClient] calls. Requests are sent with the JDK [HttpClient], so
+ * many requests can be in flight without blocking one thread each. All calls are available as [CompletableFuture]
+ * (suffix `Async`, e.g. [getAttributeAsync]) and as Kotlin `suspend` functions (e.g. [getAttribute]).
+ *
+ * The JWT token and the device token cache of the wrapped [ExtRestClient] are shared. If ThingsBoard rejects the JWT
+ * token, the wrapped client logs in again and the request is repeated once. HTTP errors are reported the same way
+ * as by the blocking client, i.e. as [HttpClientErrorException] or [HttpServerErrorException].
+ *
+ * Example (Kotlin):
+ * ```
+ * val async = AsyncExtRestClient(client)
+ * val futures = devices.map { async.getAttributeAsync(it.id, Scope.SERVER_SCOPE, "active") }
+ * ```
+ *
+ * @property client     logged in ThingsBoard REST client
+ * @property httpClient non-blocking HTTP client used for all requests
+ */
+class AsyncExtRestClient @JvmOverloads constructor(
+    val client: ExtRestClient,
+    val httpClient: HttpClient = defaultHttpClient()
+) {
+
+    companion object {
+        private val log = KotlinLogging.logger {}
+
+        private val mapper = ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+
+        private const val JWT_TOKEN_HEADER = "X-Authorization"
+
+        /** HTTP client with HTTP/2 enabled (falls back to HTTP/1.1, if the server does not support it). */
+        @JvmStatic
+        fun defaultHttpClient(): HttpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build()
+    }
+
+    private val loginLock = Any()
+
+    /** @see ExtRestClient.getAttribute */
+    fun getAttributeAsync(deviceId: DeviceId, scope: Scope, name: String): CompletableFuture<Any?> =
+        getAttributesAsync(deviceId, scope, listOf(name)).thenApply { it[name] }
+
+    /**
+     * Get several attributes of a device.
+     *
+     * @return map of attribute names and values; attributes that are not present are missing in the map
+     */
+    fun getAttributesAsync(deviceId: DeviceId, scope: Scope, keys: List<String>): CompletableFuture<Map<String, Any?>> {
+        val uri = client.expandUri(
+            "/api/plugins/telemetry/{entityType}/{entityId}/values/attributes/{scope}?keys={keys}",
+            mapOf(
+                "entityType" to deviceId.entityType.name,
+                "entityId" to deviceId.id.toString(),
+                "scope" to scope.name,
+                "keys" to keys.joinToString(",")
+            )
+        )
+        return exchange("GET", uri, null) { body ->
+            mapper.readTree(body).associate { it["key"].asText() to mapper.treeToValue(it["value"], Any::class.java) }
+        }
+    }
+
+    /** @see ExtRestClient.saveAttribute */
+    fun saveAttributeAsync(deviceId: DeviceId, scope: Scope, name: String, value: Any): CompletableFuture<Void> =
+        saveAttributesAsync(deviceId, mapOf(name to value), scope)
+
+    /** @see ExtRestClient.saveAttributes */
+    fun saveAttributesAsync(deviceId: DeviceId, map: Map<String, Any?>, scope: Scope): CompletableFuture<Void> {
+        if (scope == Scope.CLIENT_SCOPE) {
+            return getDeviceTokenByDeviceIdAsync(deviceId).thenCompose { token ->
+                token ?: throw NullPointerException("device '$deviceId' not found")
+                exchange("POST", client.expandUri("/api/v1/{token}/attributes", mapOf("token" to token)), map) {}
+            }.thenAccept {}
+        }
+        val uri = client.expandUri(
+            "/api/plugins/telemetry/{deviceId}/{scope}",
+            mapOf("deviceId" to deviceId.id.toString(), "scope" to scope.name)
+        )
+        return exchange("POST", uri, map) {}.thenAccept {}
+    }
+
+    /** @see ExtRestClient.sendTelemetry */
+    fun sendTelemetryAsync(deviceId: DeviceId, telemetry: Any): CompletableFuture<Void> {
+        val uri = client.expandUri(
+            "/api/plugins/telemetry/{entityType}/{entityId}/timeseries/{scope}",
+            mapOf(
+                "entityType" to deviceId.entityType.name,
+                "entityId" to deviceId.id.toString(),
+                "scope" to Scope.CLIENT_SCOPE.name
+            )
+        )
+        return exchange("POST", uri, telemetry) {}.thenAccept {}
+    }
+
+    /** @see ExtRestClient.getDeviceTokenByDeviceId */
+    fun getDeviceTokenByDeviceIdAsync(deviceId: DeviceId): CompletableFuture<String?> {
+        client.tokenCache.getIfPresent(deviceId)?.let { return CompletableFuture.completedFuture(it) }
+
+        val uri = client.expandUri("/api/device/{deviceId}/credentials", mapOf("deviceId" to deviceId.id.toString()))
+        return exchangeOrNull("GET", uri, null) { body -> mapper.readTree(body)["credentialsId"]?.asText() }
+            .thenApply { token -> token?.also { client.tokenCache.put(deviceId, it) } }
+    }
+
+    /** Get a device by its name, null if it does not exist. */
+    fun getDeviceByNameAsync(deviceName: String): CompletableFuture<Device?> {
+        val uri = client.expandUri("/api/tenant/devices?deviceName={deviceName}", mapOf("deviceName" to deviceName))
+        return exchangeOrNull("GET", uri, null) { body -> mapper.readValue(body, Device::class.java) }
+    }
+
+    /** @see ExtRestClient.getOrCreateDevice */
+    @JvmOverloads
+    fun getOrCreateDeviceAsync(
+        deviceName: String,
+        deviceProfileName: String = DEFAULT_DEVICE_PROFILE_NAME
+    ): CompletableFuture<Device> = getDeviceByNameAsync(deviceName).thenCompose { actualDevice ->
+        when {
+            actualDevice?.type == deviceProfileName -> CompletableFuture.completedFuture(actualDevice)
+            actualDevice != null -> deviceProfileExistsAsync(deviceProfileName).thenCompose { exists ->
+                require(exists) { "Device profile '$deviceProfileName' does not exist" }
+                actualDevice.type = deviceProfileName
+                saveDeviceAsync(actualDevice)
+            }
+            else -> saveDeviceAsync(Device().apply {
+                name = deviceName
+                type = deviceProfileName
+            })
+        }
+    }
+
+    /** Create or update a device. */
+    fun saveDeviceAsync(device: Device): CompletableFuture<Device> =
+        exchange("POST", client.expandUri("/api/device", mapOf<String, Any>()), device) { body ->
+            mapper.readValue(body, Device::class.java)
+        }
+
+    /** @see ExtRestClient.getAlarms */
+    @JvmOverloads
+    fun getAlarmsAsync(
+        entityId: EntityId,
+        searchStatus: AlarmSearchStatus?,
+        status: AlarmStatus?,
+        pageLink: TimePageLink? = null,
+        fetchOriginator: Boolean = false
+    ): CompletableFuture<PageData<AlarmInfo>> {
+        val link = pageLink ?: TimePageLink(100)
+        var url = "/api/alarm/{entityType}/{entityId}?fetchOriginator={fetchOriginator}"
+        val params = HashMap<String, String>()
+        params["entityType"] = entityId.entityType.name
+        params["entityId"] = entityId.id.toString()
+        params["fetchOriginator"] = fetchOriginator.toString()
+        if (searchStatus != null) {
+            params["searchStatus"] = searchStatus.name
+            url += "&searchStatus={searchStatus}"
+        }
+        if (status != null) {
+            params["status"] = status.name
+            url += "&status={status}"
+        }
+        addTimePageLinkToParam(params, link)
+
+        return exchange("GET", client.expandUri(url + "&" + getTimeUrlParams(link), params), null) { body ->
+            mapper.readValue(body, object : TypeReference<PageData<AlarmInfo>>() {})
+        }
+    }
+
+    /**
+     * @return true, if a new alarm has been created
+     * @see ExtRestClient.newAlarmIfNotActive
+     */
+    fun newAlarmIfNotActiveAsync(
+        entityId: EntityId,
+        entityName: String,
+        type: String,
+        severity: AlarmSeverity
+    ): CompletableFuture<Boolean> =
+        getAlarmsAsync(entityId, AlarmSearchStatus.ACTIVE, null).thenCompose { res ->
+            if (isAnyAlarmActive(res.data, type) != null) {
+                log.debug { "There is already an active alarm of type: $type for entity $entityName- not creating a new one." }
+                return@thenCompose CompletableFuture.completedFuture(false)
+            }
+            log.debug { "There is no active alarm of type: $type for entity $entityName - creating a new one." }
+            val alarm = Alarm()
+            alarm.type = type
+            alarm.originator = entityId
+            alarm.severity = severity
+            alarm.status = AlarmStatus.ACTIVE_UNACK
+            exchange("POST", client.expandUri("/api/alarm", mapOf<String, Any>()), alarm) { true }
+        }
+
+    /**
+     * @return true, if an active alarm has been cleared
+     * @see ExtRestClient.clearAlarmIfActive
+     */
+    fun clearAlarmIfActiveAsync(entityId: EntityId, entityName: String, type: String): CompletableFuture<Boolean> =
+        getAlarmsAsync(entityId, AlarmSearchStatus.ACTIVE, null).thenCompose { res ->
+            val activeAlarm = isAnyAlarmActive(res.data, type)
+            if (activeAlarm == null) {
+                log.debug { "There is no active alarm of type: $type for entity $entityName - nothing to clear." }
+                return@thenCompose CompletableFuture.completedFuture(false)
+            }
+            log.debug { "There is an active alarm of type: $type for entity $entityName - clearing it." }
+            val uri = client.expandUri("/api/alarm/{alarmId}/clear", mapOf("alarmId" to activeAlarm.id.id.toString()))
+            exchange("POST", uri, null) { true }
+        }
+
+    // suspend variants
+
+    /** @see getAttributeAsync */
+    suspend fun getAttribute(deviceId: DeviceId, scope: Scope, name: String): Any? =
+        getAttributeAsync(deviceId, scope, name).await()
+
+    /** @see getAttributesAsync */
+    suspend fun getAttributes(deviceId: DeviceId, scope: Scope, keys: List<String>): Map<String, Any?> =
+        getAttributesAsync(deviceId, scope, keys).await()
+
+    /** @see saveAttributeAsync */
+    suspend fun saveAttribute(deviceId: DeviceId, scope: Scope, name: String, value: Any) {
+        saveAttributeAsync(deviceId, scope, name, value).await()
+    }
+
+    /** @see saveAttributesAsync */
+    suspend fun saveAttributes(deviceId: DeviceId, map: Map<String, Any?>, scope: Scope) {
+        saveAttributesAsync(deviceId, map, scope).await()
+    }
+
+    /** @see sendTelemetryAsync */
+    suspend fun sendTelemetry(deviceId: DeviceId, telemetry: Any) {
+        sendTelemetryAsync(deviceId, telemetry).await()
+    }
+
+    /** @see getDeviceTokenByDeviceIdAsync */
+    suspend fun getDeviceTokenByDeviceId(deviceId: DeviceId): String? = getDeviceTokenByDeviceIdAsync(deviceId).await()
+
+    /** @see getOrCreateDeviceAsync */
+    suspend fun getOrCreateDevice(deviceName: String, deviceProfileName: String = DEFAULT_DEVICE_PROFILE_NAME): Device =
+        getOrCreateDeviceAsync(deviceName, deviceProfileName).await()
+
+    /** @see getAlarmsAsync */
+    suspend fun getAlarms(
+        entityId: EntityId,
+        searchStatus: AlarmSearchStatus?,
+        status: AlarmStatus?,
+        pageLink: TimePageLink? = null,
+        fetchOriginator: Boolean = false
+    ): PageData<AlarmInfo> = getAlarmsAsync(entityId, searchStatus, status, pageLink, fetchOriginator).await()
+
+    /** @see newAlarmIfNotActiveAsync */
+    suspend fun newAlarmIfNotActive(entityId: EntityId, entityName: String, type: String, severity: AlarmSeverity) =
+        newAlarmIfNotActiveAsync(entityId, entityName, type, severity).await()
+
+    /** @see clearAlarmIfActiveAsync */
+    suspend fun clearAlarmIfActive(entityId: EntityId, entityName: String, type: String) =
+        clearAlarmIfActiveAsync(entityId, entityName, type).await()
+
+    private fun deviceProfileExistsAsync(name: String): CompletableFuture<Boolean> {
+        val uri = client.expandUri(
+            "/api/deviceProfileInfos?pageSize=100&page=0&textSearch={name}", mapOf("name" to name)
+        )
+        return exchange("GET", uri, null) { body -> mapper.readTree(body)["data"].any { it["name"].asText() == name } }
+    }
+
+    /** Like [exchange], but yields null instead of failing, if the requested entity was not found (HTTP 404). */
+    private fun <T> exchangeOrNull(method: String, uri: URI, body: Any?, parse: (String) -> T): CompletableFuture<T?> {
+        return send(method, uri, body).thenApply { response ->
+            if (response.statusCode() == HttpStatus.NOT_FOUND.value()) null else parse(checkStatus(response).body())
+        }
+    }
+
+    private fun <T> exchange(method: String, uri: URI, body: Any?, parse: (String) -> T): CompletableFuture<T> {
+        return send(method, uri, body).thenApply { response -> parse(checkStatus(response).body()) }
+    }
+
+    private fun send(method: String, uri: URI, body: Any?): CompletableFuture<HttpResponse<String>> {
+        val payload = body?.let { mapper.writeValueAsBytes(it) }
+        val token = client.token
+        return httpClient.sendAsync(buildRequest(method, uri, payload, token), HttpResponse.BodyHandlers.ofString())
+            .thenCompose { response ->
+                if (response.statusCode() != HttpStatus.UNAUTHORIZED.value()) {
+                    CompletableFuture.completedFuture(response)
+                } else {
+                    CompletableFuture.runAsync { relogin(token) }.thenCompose {
+                        httpClient.sendAsync(
+                            buildRequest(method, uri, payload, client.token), HttpResponse.BodyHandlers.ofString()
+                        )
+                    }
+                }
+            }
+    }
+
+    private fun buildRequest(method: String, uri: URI, payload: ByteArray?, token: String?): HttpRequest {
+        val publisher = payload?.let { HttpRequest.BodyPublishers.ofByteArray(it) } ?: HttpRequest.BodyPublishers.noBody()
+        return HttpRequest.newBuilder(uri)
+            .method(method, publisher)
+            .header(HttpHeaders.CONTENT_TYPE, "application/json")
+            .header(HttpHeaders.ACCEPT, "application/json")
+            .header(JWT_TOKEN_HEADER, "Bearer $token")
+            .build()
+    }
+
+    /** Log in again, unless another request has already done so since `staleToken` has been used. */
+    private fun relogin(staleToken: String?) {
+        synchronized(loginLock) {
+            if (client.token == staleToken) {
+                log.debug { "JWT token has been rejected - logging in again." }
+                client.login(client.login, client.password)
+            }
+        }
+    }
+
+    private fun checkStatus(response: HttpResponse<String>): HttpResponse<String> {
+        val code = response.statusCode()
+        if (code < 400) return response
+
+        val body = response.body()?.toByteArray(StandardCharsets.UTF_8) ?: ByteArray(0)
+        val status = HttpStatus.resolve(code)
+            ?: throw UnknownHttpStatusCodeException(code, "", HttpHeaders.EMPTY, body, StandardCharsets.UTF_8)
+        if (status.is4xxClientError) {
+            throw HttpClientErrorException.create(status, status.reasonPhrase, HttpHeaders.EMPTY, body, StandardCharsets.UTF_8)
+        }
+        throw HttpServerErrorException.create(status, status.reasonPhrase, HttpHeaders.EMPTY, body, StandardCharsets.UTF_8)
+    }
+}
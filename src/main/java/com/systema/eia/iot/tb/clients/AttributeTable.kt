@@ -0,0 +1,54 @@
+package com.systema.eia.iot.tb.clients
+
+import org.thingsboard.server.common.data.id.DeviceId
+
+/**
+ * Attribute values of several devices, as returned by [ExtRestClient.getAttributes]: one row per device, one column
+ * per attribute key. Missing attributes are null.
+ *
+ * @property keys attribute keys, i.e. the columns of the table
+ */
+class AttributeTable(val keys: List<String>) {
+
+    private val columns = keys.withIndex().associate { it.value to it.index }
+    private val rows = LinkedHashMap<DeviceId, Array<Any?>>()
+
+    /** Devices contained in the table. */
+    val deviceIds: Set<DeviceId>
+        get() = rows.keys
+
+    /** Number of devices contained in the table. */
+    val size: Int
+        get() = rows.size
+
+    /**
+     * Get an attribute value.
+     *
+     * @param deviceId device ID
+     * @param key      attribute key
+     * @return attribute value, null if the attribute or device is unknown
+     */
+    operator fun get(deviceId: DeviceId, key: String): Any? {
+        val column = columns[key] ?: return null
+        return rows[deviceId]?.get(column)
+    }
+
+    /** Get all attribute values of a device, which are not null. */
+    fun row(deviceId: DeviceId): Map<String, Any?> {
+        val row = rows[deviceId] ?: return emptyMap()
+        return keys.withIndex().filter { row[it.index] != null }.associate { it.value to row[it.index] }
+    }
+
+    internal fun addDevice(deviceId: DeviceId) {
+        rows.getOrPut(deviceId) { arrayOfNulls(keys.size) }
+    }
+
+    internal operator fun set(deviceId: DeviceId, key: String, value: Any?) {
+        val column = columns[key] ?: return
+        rows.getOrPut(deviceId) { arrayOfNulls(keys.size) }[column] = value
+    }
+
+    override fun toString(): String = rows.entries.joinToString("\n") { (id, row) ->
+        "${id.id}: ${keys.zip(row).joinToString { "${it.first}=${it.second}" }}"
+    }
+}
@@ -2,8 +2,21 @@ package com.systema.eia.iot.tb.clients
 
 import com.fasterxml.jackson.databind.JsonNode
 import com.fasterxml.jackson.databind.ObjectMapper
-import com.fasterxml.jackson.databind.node.ObjectNode
+import com.systema.eia.iot.tb.stats.InMemoryMetricsRegistry
+import com.systema.eia.iot.tb.stats.MetricsRegistry
+import com.systema.eia.iot.tb.utils.JsonPayloadCodec
+import com.systema.eia.iot.tb.utils.MqttPersistence
+import com.systema.eia.iot.tb.utils.PayloadCodec
 import com.systema.eia.iot.tb.utils.SimpleMqttClient
+import com.systema.eia.iot.tb.utils.TelemetryRecord
+import mu.KotlinLogging
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
 
 
 // list of topics
@@ -12,10 +25,16 @@ private val TOPIC_ATTRIBUTES = "v1/devices/me/attributes"
 private val TOPIC_ATTRIBUTES_RESPONSE_PLUS = "v1/devices/me/attributes/response/+"
 private val TOPIC_ATTRIBUTES_REQUEST = "v1/devices/me/attributes/request/"
 private val TOPIC_RPC = "v1/devices/me/rpc/request/"
+private val TOPIC_RPC_PLUS = "v1/devices/me/rpc/request/+"
+private val TOPIC_RPC_RESPONSE = "v1/devices/me/rpc/response/"
 //private val TOPIC_CLAMING = "v1/devices/me/claim"
 //private val DEVICE_PROVISIONING = "/provision"
 
+// metrics endpoint of requests of methods without handler, which are named by the caller
+private val RPC_UNKNOWN_ENDPOINT = "rpc <unknown>"
+
 private val mapper = ObjectMapper()
+private val logger = KotlinLogging.logger {}
 
 
 /** Simple type wrapper around device tokens. */
@@ -28,17 +47,45 @@ data class DeviceToken(val token: String)
  * used
  * @author ViB, HoB
  */
-class DeviceMqttClient(val mqttClient: SimpleMqttClient) {
+class DeviceMqttClient @JvmOverloads constructor(
+    val mqttClient: SimpleMqttClient,
+    /** encoding of telemetry and attributes, must match the transport payload type of the device profile */
+    val codec: PayloadCodec = JsonPayloadCodec
+) {
 
-    constructor(tbMqttHostPort: String, token: DeviceToken) : this(
+    /**
+     * @param tbMqttHostPort ThingsBoard MQTT host and port
+     * @param token          device access token
+     * @param qos            QoS of published messages and subscriptions
+     * @param maxInflight    maximum number of messages published concurrently, see [sendTelemetryAsync]
+     * @param codec          encoding of telemetry and attributes
+     * @param persistence    persistence of in-flight messages, see [MqttPersistence]
+     * @param clientId       MQTT client ID, random by default; a stable ID (not the token) recovers persisted messages
+     */
+    @JvmOverloads
+    constructor(
+        tbMqttHostPort: String,
+        token: DeviceToken,
+        qos: Int = 0,
+        maxInflight: Int = MqttConnectOptions.MAX_INFLIGHT_DEFAULT,
+        codec: PayloadCodec = JsonPayloadCodec,
+        persistence: MqttClientPersistence = MqttPersistence.default(qos, qos),
+        clientId: String = UUID.randomUUID().toString()
+    ) : this(
         SimpleMqttClient(
             brokerUrl = tbMqttHostPort,
-            username = token.token
-        )
+            username = token.token,
+            pubQoS = qos,
+            subQoS = qos,
+            maxInflight = maxInflight,
+            persistence = persistence,
+            clientId = clientId
+        ),
+        codec
     )
 
     /**
-     * Send telemetry to a device
+     * Send telemetry to a device, always encoded as JSON
      * @param node json message
      * @param token of device. to get token, use ExtRestClient::getDeviceTokenBy*
      * */
@@ -53,11 +100,44 @@ class DeviceMqttClient(val mqttClient: SimpleMqttClient) {
      * @param token of device. to get token, use ExtRestClient::getDeviceTokenBy*
      */
     fun sendTelemetry(map: Map<String, Any?>) {
-        sendTelemetry(mapper.convertValue(map, JsonNode::class.java))
+        mqttClient.publish(TOPIC_TELEMETRY_UPLOAD, codec.encodeTelemetry(map), true)
     }
 
     /**
-     * Send client attribute to a device
+     * Send telemetry with timestamp to a device
+     * @param record telemetry record
+     */
+    fun sendTelemetry(record: TelemetryRecord) {
+        mqttClient.publish(TOPIC_TELEMETRY_UPLOAD, codec.encodeTelemetry(record), true)
+    }
+
+    /**
+     * Send telemetry of several timestamps to a device
+     * @param records telemetry records
+     */
+    fun sendTelemetry(records: Collection<TelemetryRecord>) {
+        // one message, or one per record for payload types without batches, e.g. Protobuf
+        codec.encodeTelemetry(records).forEach { mqttClient.publish(TOPIC_TELEMETRY_UPLOAD, it, true) }
+    }
+
+    /**
+     * Send telemetry to a device without waiting for its delivery, so that many messages can be pipelined
+     * @param map key-value telemetry map
+     * @return future completed when the message has been delivered according to the QoS of the client
+     */
+    fun sendTelemetryAsync(map: Map<String, Any?>): CompletableFuture<IMqttDeliveryToken> =
+        mqttClient.publishAsync(TOPIC_TELEMETRY_UPLOAD, codec.encodeTelemetry(map))
+
+    /**
+     * Send telemetry with timestamp to a device without waiting for its delivery
+     * @param record telemetry record
+     * @return future completed when the message has been delivered according to the QoS of the client
+     */
+    fun sendTelemetryAsync(record: TelemetryRecord): CompletableFuture<IMqttDeliveryToken> =
+        mqttClient.publishAsync(TOPIC_TELEMETRY_UPLOAD, codec.encodeTelemetry(record))
+
+    /**
+     * Send client attribute to a device, always encoded as JSON
      * @param node attributes as json node
      * @param token of device. to get token, use ExtRestClient::getDeviceTokenBy*
      */
@@ -73,7 +153,7 @@ class DeviceMqttClient(val mqttClient: SimpleMqttClient) {
      * @param token of device. to get token, use ExtRestClient::getDeviceTokenBy*
      */
     fun sendClientAttribute(map: Map<String, Any?>) {
-        sendClientAttribute(mapper.convertValue(map, JsonNode::class.java))
+        mqttClient.publish(TOPIC_ATTRIBUTES, codec.encodeAttributes(map), true)
     }
 
 
@@ -103,56 +183,261 @@ class DeviceMqttClient(val mqttClient: SimpleMqttClient) {
     }
 
 
+    /**
+     * Client and shared attributes returned by [requestAttributes].
+     *
+     * @property client client attributes
+     * @property shared shared attributes
+     */
+    data class AttributesResponse(val client: Map<String, Any?>, val shared: Map<String, Any?>)
+
+    private val requestIds = AtomicInteger(Random().nextInt(Int.MAX_VALUE))
+    private val pendingAttributeRequests = ConcurrentHashMap<Int, CompletableFuture<AttributesResponse>>()
+
+    @Volatile
+    private var attributeResponsesSubscribed = false
+
+    /**
+     * Request client and shared attributes of the device. The responses are received by a single subscription and
+     * matched to the requests by their request ID, so many requests can be in flight at once.
+     *
+     * @param clientAttributesKeys keys of client attributes to read
+     * @param sharedAttributesKeys keys of shared attributes to read
+     * @param timeout              time to wait for the response
+     * @return future completed with the attributes, or completed exceptionally with a
+     * [java.util.concurrent.TimeoutException] if there is no response within `timeout`
+     */
+    @JvmOverloads
+    fun requestAttributes(
+        clientAttributesKeys: List<String> = listOf(),
+        sharedAttributesKeys: List<String> = listOf(),
+        timeout: Duration = Duration.ofSeconds(10)
+    ): CompletableFuture<AttributesResponse> =
+        requestAttributes(nextRequestId(), clientAttributesKeys, sharedAttributesKeys, timeout)
+
+    private fun requestAttributes(
+        requestId: Int,
+        clientAttributesKeys: List<String>,
+        sharedAttributesKeys: List<String>,
+        timeout: Duration
+    ): CompletableFuture<AttributesResponse> {
+        subscribeAttributeResponses()
+
+        // output message
+        val node = mapper.createObjectNode()
+        if (clientAttributesKeys.isNotEmpty()) {
+            node.put("clientKeys", clientAttributesKeys.joinToString(","))
+        }
+        if (sharedAttributesKeys.isNotEmpty()) {
+            node.put("sharedKeys", sharedAttributesKeys.joinToString(","))
+        }
+
+        val future = CompletableFuture<AttributesResponse>()
+        check(pendingAttributeRequests.putIfAbsent(requestId, future) == null) {
+            "Attribute request $requestId is already in flight"
+        }
+        future.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+            .whenComplete { _, _ -> pendingAttributeRequests.remove(requestId, future) }
+
+        try {
+            mqttClient.publish(getTopicAttrRequest(requestId.toString()), node, true)
+        } catch (e: Exception) {
+            future.completeExceptionally(e)
+        }
+        return future
+    }
+
+    /** Number of attribute requests waiting for their response. */
+    fun pendingAttributeRequests(): Int = pendingAttributeRequests.size
+
     /**
      * Get device client or shared attributes
-     * Disconnected automatically after 2 seconds
-     * @param token device token
-     * @param requestId any integer
+     * @param requestId any integer, unique among the requests in flight
      * @param clientAttributesKeys list of a client attributes keys to read
      * @param sharedAttributesKeys list of shared attributes keys to read
      * @param messageArrivedListener called when message with attributes arrived
+     * @see requestAttributes
      */
     fun requestClientOrShareAttributes(
-        requestId: Int = java.util.Random().nextInt(),
+        requestId: Int = nextRequestId(),
         clientAttributesKeys: List<String> = listOf(),
         sharedAttributesKeys: List<String> = listOf(),
-        messageArrivedListener: (sharedAttributes: Map<String, Any?>, clientAttributes: Map<String, Any?>) -> Unit
+        messageArrivedListener: (clientAttributes: Map<String, Any?>, sharedAttributes: Map<String, Any?>) -> Unit
     ) {
-        // output message
-        val node = mapper.readTree("{}") as ObjectNode
+        requestAttributes(requestId, clientAttributesKeys, sharedAttributesKeys, Duration.ofSeconds(10))
+            .thenAccept { messageArrivedListener(it.client, it.shared) }
+    }
 
-        // read input attributes and put it to output json messages
-        if (clientAttributesKeys.isNotEmpty()) {
-            node.put("clientKeys", clientAttributesKeys.joinToString(","))
-        }
+    private fun nextRequestId(): Int = requestIds.updateAndGet { if (it == Int.MAX_VALUE) 1 else it + 1 }
 
-        if (sharedAttributesKeys.isNotEmpty()) {
-            node.put("sharedKeys", sharedAttributesKeys.joinToString(","))
+    private fun subscribeAttributeResponses() {
+        if (attributeResponsesSubscribed) return
+        synchronized(pendingAttributeRequests) {
+            if (attributeResponsesSubscribed) return
+            mqttClient.subscribe(TOPIC_ATTRIBUTES_RESPONSE_PLUS) { topic, message ->
+                val requestId = topic.substringAfterLast('/').toIntOrNull()
+                val future = requestId?.let { pendingAttributeRequests.remove(it) }
+                if (future == null) {
+                    logger.debug { "Ignoring attribute response without pending request: $topic" }
+                    return@subscribe
+                }
+                try {
+                    val json = mapper.readTree(message.payload)
+                    future.complete(AttributesResponse(toMap(json.get("client")), toMap(json.get("shared"))))
+                } catch (e: Exception) {
+                    future.completeExceptionally(e)
+                }
+            }
+            attributeResponsesSubscribed = true
         }
+    }
 
-        // subscribe for a attributes
-        mqttClient.subscribe(TOPIC_ATTRIBUTES_RESPONSE_PLUS) { _, message ->
-            run {
-                val json = mapper.readTree(message.toString())
+    @Suppress("UNCHECKED_CAST")
+    private fun toMap(node: JsonNode?): Map<String, Any?> =
+        node?.let { mapper.convertValue(it, Map::class.java) as? Map<String, Any?> } ?: mapOf()
 
-                // parse input message as key-value maps
-                val clientAttr = mapper.convertValue(
-                    json.get("client"),
-                    Map::class.java
-                ) as? Map<String, Any?> ?: mapOf()
 
-                val sharedAttr = mapper.convertValue(
-                    json.get("shared"),
-                    Map::class.java
-                ) as? Map<String, Any?> ?: mapOf()
+    /**
+     * Handler of server-side RPC requests, see [enableRpc]. It is called on a worker thread with the parameters of
+     * the request and returns the response (serialized to JSON), or throws an exception, which is returned as
+     * `{"error": "<message>"}`.
+     */
+    fun interface RpcHandler {
+        fun handle(params: JsonNode?): Any?
+    }
+
+    private val rpcHandlers = ConcurrentHashMap<String, RpcHandler>()
+
+    @Volatile
+    private var rpcExecutor: ThreadPoolExecutor? = null
 
-                messageArrivedListener(clientAttr, sharedAttr)
+    // publishes the rejections of a full queue, since publishAsync may block the MQTT callback thread
+    @Volatile
+    private var rpcRejectExecutor: ThreadPoolExecutor? = null
+
+    /** Metrics of the RPC methods (endpoints `rpc <method>`, `rpc <unknown>`), see [enableRpc]. */
+    @Volatile
+    var rpcMetrics: MetricsRegistry? = null
+        private set
+
+    /**
+     * Register the handler of an RPC method. Requests of methods without handler are answered with an error.
+     *
+     * @param method  RPC method name
+     * @param handler handler of the requests
+     */
+    fun registerRpcHandler(method: String, handler: RpcHandler) {
+        rpcHandlers[method] = handler
+    }
+
+    /**
+     * Handle server-side RPC requests (`v1/devices/me/rpc/request/+`) with the handlers registered by
+     * [registerRpcHandler] and publish their responses. The handlers run on a bounded pool of worker threads, so that
+     * slow handlers do not stall the delivery of other messages on the MQTT callback thread. Requests, which do not
+     * fit into the queue of the pool, are answered with an error.
+     *
+     * Per RPC method, the number of requests, failures and the latency from arrival until the response is published
+     * are recorded in `metrics` (endpoint `rpc <method>`; bytes out: response, bytes in: request). Requests of methods
+     * without handler are recorded under the single endpoint `rpc <unknown>`, so that callers can not add endpoints.
+     *
+     * @param workers       number of worker threads
+     * @param queueCapacity maximum number of requests waiting for a worker
+     * @param metrics       receiver of the RPC metrics
+     */
+    @JvmOverloads
+    fun enableRpc(workers: Int = 4, queueCapacity: Int = 1000, metrics: MetricsRegistry = InMemoryMetricsRegistry()) {
+        require(workers > 0 && queueCapacity > 0) { "workers and queueCapacity must be positive" }
+        disableRpc()
+        val threads = AtomicInteger()
+        rpcExecutor = ThreadPoolExecutor(
+            workers, workers, 60, TimeUnit.SECONDS, ArrayBlockingQueue(queueCapacity)
+        ) { r -> Thread(r, "mqtt-rpc-${threads.incrementAndGet()}").apply { isDaemon = true } }
+        rpcRejectExecutor = ThreadPoolExecutor(
+            1, 1, 60, TimeUnit.SECONDS, ArrayBlockingQueue(queueCapacity)
+        ) { r -> Thread(r, "mqtt-rpc-reject").apply { isDaemon = true } }
+        rpcMetrics = metrics
+        mqttClient.subscribe(TOPIC_RPC_PLUS) { topic, message -> onRpcRequest(topic, message.payload) }
+    }
+
+    /** Stop handling RPC requests; requests in progress are completed. */
+    fun disableRpc() {
+        val executor = rpcExecutor ?: return
+        rpcExecutor = null
+        mqttClient.unsubscribe(TOPIC_RPC_PLUS)
+        executor.shutdown()
+        rpcRejectExecutor?.shutdown()
+        rpcRejectExecutor = null
+    }
+
+    private fun onRpcRequest(topic: String, payload: ByteArray) {
+        val arrival = System.nanoTime()
+        val requestId = topic.substringAfterLast('/')
+        val request = try {
+            mapper.readTree(payload)
+        } catch (e: Exception) {
+            logger.error(e) { "Invalid RPC request on $topic" }
+            return
+        }
+        val method = request.path("method").asText()
+        val executor = rpcExecutor ?: return
+
+        try {
+            executor.execute { handleRpc(requestId, method, request.get("params"), payload.size, arrival) }
+        } catch (e: RejectedExecutionException) {
+            logger.warn { "RPC queue full - rejecting request $requestId ($method)" }
+            try {
+                rpcRejectExecutor?.execute {
+                    respondRpc(requestId, method, mapOf("error" to "Too many requests"), true, payload.size, arrival)
+                }
+            } catch (e: RejectedExecutionException) {
+                logger.warn { "RPC rejection queue full - dropping request $requestId ($method)" }
+                rpcMetrics?.recordRequest(rpcEndpoint(method), System.nanoTime() - arrival, true, 0)
             }
         }
+    }
 
-        mqttClient.publish(getTopicAttrRequest(requestId.toString()), node, true)
+    private fun handleRpc(requestId: String, method: String, params: JsonNode?, requestSize: Int, arrival: Long) {
+        val handler = rpcHandlers[method]
+        if (handler == null) {
+            respondRpc(requestId, method, mapOf("error" to "Unknown method: $method"), true, requestSize, arrival)
+            return
+        }
+        val (response, error) = try {
+            handler.handle(params) to false
+        } catch (e: Exception) {
+            logger.error(e) { "RPC handler of $method failed" }
+            mapOf("error" to (e.message ?: e.javaClass.simpleName)) to true
+        }
+        respondRpc(requestId, method, response, error, requestSize, arrival)
+    }
+
+    private fun respondRpc(
+        requestId: String,
+        method: String,
+        response: Any?,
+        error: Boolean,
+        requestSize: Int,
+        arrival: Long
+    ) {
+        var failed = error
+        var responseSize = 0L
+        try {
+            val payload = mapper.writeValueAsBytes(response ?: mapOf<String, Any>())
+            responseSize = payload.size.toLong()
+            mqttClient.publishAsync("$TOPIC_RPC_RESPONSE$requestId", payload)
+        } catch (e: Exception) {
+            logger.error(e) { "Can not respond to RPC request $requestId ($method)" }
+            failed = true
+        }
+        rpcMetrics?.let {
+            val endpoint = rpcEndpoint(method)
+            it.recordRequest(endpoint, System.nanoTime() - arrival, failed, responseSize)
+            it.recordBytesIn(endpoint, requestSize.toLong())
+        }
     }
 
+    private fun rpcEndpoint(method: String): String =
+        if (rpcHandlers.containsKey(method)) "rpc $method" else RPC_UNKNOWN_ENDPOINT
 
     /**
      * Return RPC topic with request id
@@ -0,0 +1,35 @@
+package com.systema.eia.iot.tb.clients
+
+import org.thingsboard.server.common.data.Device
+
+/**
+ * Result of [ExtRestClient.getOrCreateDevices] for one device.
+ *
+ * @property name   device name
+ * @property status what has been done for this device
+ * @property device the device as stored in ThingsBoard, null if [status] is [Status.FAILED]
+ * @property error  cause of the failure, null unless [status] is [Status.FAILED]
+ */
+data class DeviceProvisioningResult(
+    val name: String,
+    val status: Status,
+    val device: Device? = null,
+    val error: Exception? = null
+) {
+    enum class Status {
+        /** device already existed with the requested profile */
+        EXISTING,
+
+        /** device has been created */
+        CREATED,
+
+        /** device already existed, but its profile has been changed to the requested one */
+        UPDATED,
+
+        /** device could not be created or updated, see [error] */
+        FAILED
+    }
+
+    val isSuccess: Boolean
+        get() = status != Status.FAILED
+}
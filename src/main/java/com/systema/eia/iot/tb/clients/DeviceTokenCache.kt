@@ -0,0 +1,133 @@
+package com.systema.eia.iot.tb.clients
+
+import org.thingsboard.server.common.data.id.DeviceId
+import java.time.Clock
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Bounded, time-limited cache of device access tokens, keyed by [DeviceId] and by device name.
+ *
+ * Entries expire `ttl` after they have been loaded. If the cache holds more than `maxSize` entries per key type, the
+ * least recently used entry is evicted. Lookups that end up in "device not found" are not cached. Loaders are called
+ * outside of the cache lock, so concurrent misses for the same device may both hit ThingsBoard.
+ *
+ * @property maxSize maximum number of entries per key type (device ID / device name)
+ * @property ttl     time after which a cached token is reloaded
+ */
+class DeviceTokenCache @JvmOverloads constructor(
+    val maxSize: Int = 10000,
+    val ttl: Duration = Duration.ofMinutes(10),
+    private val clock: Clock = Clock.systemUTC()
+) {
+
+    init {
+        require(maxSize > 0) { "maxSize must be positive, but was $maxSize" }
+        require(!ttl.isNegative) { "ttl must not be negative, but was $ttl" }
+    }
+
+    /** Snapshot of the cache counters. */
+    data class Stats(val hits: Long, val misses: Long, val size: Int) {
+        val hitRate: Double get() = if (hits + misses == 0L) 0.0 else hits.toDouble() / (hits + misses)
+    }
+
+    private class CachedToken(val deviceId: DeviceId, val name: String?, val token: String, val expiresAt: Long)
+
+    private val byId = lruMap<DeviceId>()
+    private val byName = lruMap<String>()
+
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+
+    private fun <K> lruMap() = object : LinkedHashMap<K, CachedToken>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<K, CachedToken>?) = size > maxSize
+    }
+
+    /**
+     * Get the access token of a device, loading it with `loader` if it is not cached or expired.
+     *
+     * @param deviceId ThingsBoard device ID
+     * @param loader   function to fetch the token from ThingsBoard; returns null, if the device was not found
+     * @return device access token, null if the device was not found
+     */
+    fun get(deviceId: DeviceId, loader: (DeviceId) -> String?): String? {
+        lookup(byId, deviceId)?.let { return it }
+
+        val token = loader(deviceId) ?: return null
+        synchronized(this) {
+            byId[deviceId] = CachedToken(deviceId, null, token, expiry())
+        }
+        return token
+    }
+
+    /**
+     * Get the access token of a device by its name, loading it with `loader` if it is not cached or expired.
+     *
+     * @param name   ThingsBoard device name
+     * @param loader function to fetch device ID and token from ThingsBoard; returns null, if the device was not found
+     * @return device access token, null if the device was not found
+     */
+    fun get(name: String, loader: (String) -> Pair<DeviceId, String>?): String? {
+        lookup(byName, name)?.let { return it }
+
+        val (deviceId, token) = loader(name) ?: return null
+        synchronized(this) {
+            val entry = CachedToken(deviceId, name, token, expiry())
+            byName[name] = entry
+            byId[deviceId] = entry
+        }
+        return token
+    }
+
+    /**
+     * Get the cached access token of a device without loading it.
+     *
+     * @return cached device access token, null if it is not cached or expired
+     */
+    fun getIfPresent(deviceId: DeviceId): String? = lookup(byId, deviceId)
+
+    /** Store the access token of a device, e.g. after it has been loaded asynchronously. */
+    @Synchronized
+    fun put(deviceId: DeviceId, token: String) {
+        byId[deviceId] = CachedToken(deviceId, null, token, expiry())
+    }
+
+    /** Remove the cached token of a device, e.g. after its credentials have been changed or it has been deleted. */
+    @Synchronized
+    fun invalidate(deviceId: DeviceId) {
+        byId.remove(deviceId)
+        byName.values.removeIf { it.deviceId == deviceId }
+    }
+
+    /** Remove the cached token of a device by its name. */
+    @Synchronized
+    fun invalidate(name: String) {
+        byName.remove(name)?.let { byId.remove(it.deviceId) }
+    }
+
+    /** Remove all cached tokens. Counters are kept. */
+    @Synchronized
+    fun invalidateAll() {
+        byId.clear()
+        byName.clear()
+    }
+
+    /** Current hit/miss counters and number of cached device IDs. */
+    @Synchronized
+    fun stats() = Stats(hits.get(), misses.get(), byId.size)
+
+    private fun <K> lookup(map: LinkedHashMap<K, CachedToken>, key: K): String? {
+        synchronized(this) {
+            val entry = map[key]
+            if (entry != null && entry.expiresAt > clock.millis()) {
+                hits.incrementAndGet()
+                return entry.token
+            }
+            if (entry != null) map.remove(key)
+        }
+        misses.incrementAndGet()
+        return null
+    }
+
+    private fun expiry() = clock.millis() + ttl.toMillis()
+}
@@ -7,22 +7,37 @@ import com.systema.eia.iot.tb.clients.InternalRestClientHelpers.*
 import com.systema.eia.iot.tb.clients.TbDefaults.TB_TENANT_PW
 import com.systema.eia.iot.tb.clients.TbDefaults.TB_TENANT_USER
 import com.systema.eia.iot.tb.persistence.search.TbFinder
+import com.systema.eia.iot.tb.stats.InMemoryMetricsRegistry
+import com.systema.eia.iot.tb.stats.MetricsRegistry
+import com.systema.eia.iot.tb.utils.JsonStreamWriter
 import com.systema.eia.iot.tb.utils.Scope
+import com.systema.eia.iot.tb.utils.TelemetryRecord
 import mu.KotlinLogging
 import org.springframework.http.HttpEntity
+import org.springframework.http.HttpHeaders
 import org.springframework.http.HttpMethod
+import org.springframework.http.MediaType
+import org.springframework.http.client.ClientHttpRequestInterceptor
 import org.springframework.http.client.SimpleClientHttpRequestFactory
+import org.springframework.web.client.HttpClientErrorException
 import org.springframework.web.client.RestTemplate
 import org.springframework.web.client.exchange
 import org.thingsboard.rest.client.RestClient
 import org.thingsboard.server.common.data.Device
+import org.thingsboard.server.common.data.DeviceProfile
 import org.thingsboard.server.common.data.alarm.*
+import org.thingsboard.server.common.data.id.AlarmId
 import org.thingsboard.server.common.data.id.DeviceId
 import org.thingsboard.server.common.data.id.EntityId
 import org.thingsboard.server.common.data.page.PageData
+import org.thingsboard.server.common.data.page.PageLink
 import org.thingsboard.server.common.data.page.TimePageLink
 import org.thingsboard.server.common.data.security.DeviceCredentials
+import java.net.URI
 import java.net.URL
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
 
 /** Some ThingsBoard defaults.*/
 object TbDefaults {
@@ -45,13 +60,16 @@ open class ExtRestClient
  * @property tbURL
  * @property login
  * @property password
+ * @property transport HTTP connection provider, e.g. [PooledHttpTransport]; if null, the default request factory of
+ *                     [RestClient] is used
  * @throws RuntimeException if login fails
  */
 @JvmOverloads
 constructor(
     @Suppress("CanBeParameter") val tbURL: URL,
     val login: String = TB_TENANT_USER,
-    val password: String = TB_TENANT_PW
+    val password: String = TB_TENANT_PW,
+    val transport: HttpTransport? = null
 ) : RestClient(tbURL.toString()) {
 
 
@@ -61,6 +79,7 @@ constructor(
      * @property tbURL
      * @property login
      * @property password
+     * @property transport
      * @throws RuntimeException if login fails
      */
     @JvmOverloads
@@ -68,16 +87,28 @@ constructor(
         tbURL: String,
         login: String = TB_TENANT_USER,
         password: String = TB_TENANT_PW,
-    ) : this(URL(tbURL), login, password) {
+        transport: HttpTransport? = null
+    ) : this(URL(tbURL), login, password, transport) {
     }
 
 
     val finder = TbFinder(this)
 
+    /** Cache of device access tokens, used for device API calls such as [saveClientAttributes]. */
+    var tokenCache = DeviceTokenCache()
+
+    /**
+     * Local index of active alarms, see [enableAlarmIndex]. If set, [newAlarmIfNotActive] and [clearAlarmIfActive]
+     * look up active alarms in the index instead of querying ThingsBoard.
+     */
+    var alarmIndex: ActiveAlarmIndex? = null
+
     val tbHost = tbURL.host
     val tbPort = tbURL.port
 
     init {
+        transport?.let { restTemplate.requestFactory = it.requestFactory() }
+
         // Creating new rest client and auth with credentials
         try {
             login(login, password)
@@ -102,6 +133,9 @@ constructor(
 
         val log = KotlinLogging.logger {}
 
+        /** Maximum number of devices per entity data query in [getAttributes]. */
+        const val ENTITY_QUERY_CHUNK_SIZE = 1000
+
         /**
          * Check, if there's any active alarm of the given type among the given alarms.
          *
@@ -137,6 +171,51 @@ constructor(
         }
     }
 
+    /**
+     * Add an interceptor to the requests of this client, e.g. a [RateLimitInterceptor]. The interceptor is called
+     * after the built-in interceptors, i.e. the requests are already authenticated.
+     *
+     * @param interceptor request interceptor
+     */
+    fun addInterceptor(interceptor: ClientHttpRequestInterceptor) {
+        restTemplate.interceptors.add(interceptor)
+    }
+
+    /** Interceptor recording request metrics, see [enableMetrics]. */
+    var metrics: MetricsInterceptor? = null
+        private set
+
+    /**
+     * Record request counts, errors, latencies and body sizes per endpoint. The [MetricsInterceptor] is called before
+     * all other interceptors, so the latencies include e.g. the throttling of a [RateLimitInterceptor]. Enabling the
+     * metrics again replaces the previous interceptor.
+     *
+     * Example (Kotlin):
+     * ```
+     * val registry = InMemoryMetricsRegistry()
+     * JmxMetricsExporter(registry)
+     * client.enableMetrics(registry)
+     * registry.snapshot().forEach { println(it) }
+     * ```
+     *
+     * @param registry receiver of the metrics
+     * @return the new interceptor
+     */
+    fun enableMetrics(registry: MetricsRegistry): MetricsInterceptor {
+        metrics?.let { restTemplate.interceptors.remove(it) }
+        return MetricsInterceptor(registry).also {
+            restTemplate.interceptors.add(0, it)
+            metrics = it
+        }
+    }
+
+    /** Record request metrics in a new [InMemoryMetricsRegistry], see [enableMetrics]. */
+    fun enableMetrics(): InMemoryMetricsRegistry = InMemoryMetricsRegistry().also { enableMetrics(it) }
+
+    /** Expand a URL template relative to the ThingsBoard base URL the same way, the blocking calls do. */
+    internal fun expandUri(urlTemplate: String, params: Map<String, *>): URI =
+        restTemplate.uriTemplateHandler.expand(baseURL + urlTemplate, params)
+
     /**
      * send telemetry to device
      * @param node
@@ -175,7 +254,7 @@ constructor(
      * @param map
      */
     fun sendTelemetry(deviceId: DeviceId, map: Map<String, Any?>) {
-        sendTelemetry(deviceId, mapper.convertValue(map, JsonNode::class.java))
+        postTelemetry(deviceId, JsonStreamWriter.write(map))
     }
 
     /**
@@ -183,11 +262,41 @@ constructor(
      * @param map
      */
     fun sendTelemetry(deviceId: DeviceId, name: String, value: Any) {
-        val jsonNode = mapper.convertValue(mapOf(name to value), JsonNode::class.java)
+        postTelemetry(deviceId, JsonStreamWriter.write(mapOf(name to value)))
+    }
+
+    /**
+     * send telemetry with timestamp to device
+     * @param record
+     */
+    fun sendTelemetry(deviceId: DeviceId, record: TelemetryRecord) {
+        postTelemetry(deviceId, JsonStreamWriter.write(record))
+    }
+
+    /**
+     * send telemetry of several timestamps to device
+     * @param records
+     */
+    fun sendTelemetry(deviceId: DeviceId, records: Collection<TelemetryRecord>) {
+        postTelemetry(deviceId, JsonStreamWriter.write(records))
+    }
 
-        sendTelemetry(deviceId, jsonNode)
+    /** Post serialized telemetry, like [saveEntityTelemetry] does for [JsonNode]s. */
+    private fun postTelemetry(entityId: EntityId, payload: ByteArray) {
+        restTemplate.postForEntity(
+            "$baseURL/api/plugins/telemetry/{entityType}/{entityId}/timeseries/{scope}",
+            jsonEntity(payload),
+            Any::class.java,
+            entityId.entityType.name,
+            entityId.id.toString(),
+            Scope.CLIENT_SCOPE.name
+        )
     }
 
+    private fun jsonEntity(payload: ByteArray) = HttpEntity(payload, HttpHeaders().also {
+        it.contentType = MediaType.APPLICATION_JSON
+    })
+
     /**
      * Get attribute of device
      * @param scope attribute scope
@@ -198,17 +307,107 @@ constructor(
         return attributesByScope.firstOrNull { it.key == name }?.value
     }
 
+    /**
+     * Get several attributes of several devices at once, using ThingsBoard's entity data query (one request per
+     * [ENTITY_QUERY_CHUNK_SIZE] devices). If the entity data query is not available (ThingsBoard < 3.0), the attributes
+     * are fetched per device, with at most `parallelism` concurrent requests.
+     *
+     * Note: the entity data query returns all values as strings; numbers and booleans are converted back, JSON values
+     * are returned as string (as by [getAttribute]).
+     *
+     * @param deviceIds   device IDs
+     * @param scope       attribute scope
+     * @param keys        attribute names
+     * @param parallelism maximum number of concurrent requests of the fallback
+     * @return attribute values per device; devices, which do not exist, are missing
+     */
+    @JvmOverloads
+    fun getAttributes(
+        deviceIds: Collection<DeviceId>,
+        scope: Scope,
+        keys: List<String>,
+        parallelism: Int = 8
+    ): AttributeTable {
+        val table = AttributeTable(keys)
+        if (deviceIds.isEmpty() || keys.isEmpty()) return table
+
+        try {
+            deviceIds.distinct().chunked(ENTITY_QUERY_CHUNK_SIZE).forEach { queryAttributes(it, scope, keys, table) }
+        } catch (e: HttpClientErrorException.NotFound) {
+            log.debug { "Entity data query not available - fetching attributes per device" }
+            val executor = Executors.newFixedThreadPool(minOf(parallelism, deviceIds.size))
+            try {
+                deviceIds.distinct().map { id ->
+                    id to CompletableFuture.supplyAsync({ getAttributesByScope(id, scope.name, keys) }, executor)
+                }.forEach { (id, future) ->
+                    table.addDevice(id)
+                    future.join().forEach { table[id, it.key] = it.value }
+                }
+            } finally {
+                executor.shutdown()
+            }
+        }
+        return table
+    }
+
+    private fun queryAttributes(deviceIds: List<DeviceId>, scope: Scope, keys: List<String>, table: AttributeTable) {
+        val keyType = when (scope) {
+            Scope.CLIENT_SCOPE -> "CLIENT_ATTRIBUTE"
+            Scope.SERVER_SCOPE -> "SERVER_ATTRIBUTE"
+            Scope.SHARED_SCOPE -> "SHARED_ATTRIBUTE"
+        }
+        val query = mapper.createObjectNode()
+        query.putObject("entityFilter").apply {
+            put("type", "entityList")
+            put("entityType", "DEVICE")
+            putArray("entityList").apply { deviceIds.forEach { add(it.id.toString()) } }
+        }
+        query.putObject("pageLink").apply {
+            put("page", 0)
+            put("pageSize", deviceIds.size)
+        }
+        query.putArray("latestValues").apply {
+            keys.forEach { addObject().put("type", keyType).put("key", it) }
+        }
+
+        val result = restTemplate.postForObject("$baseURL/api/entitiesQuery/find", query, JsonNode::class.java)
+        result?.path("data")?.forEach { entity ->
+            val deviceId = DeviceId.fromString(entity.path("entityId").path("id").asText())
+            table.addDevice(deviceId)
+            entity.path("latest").path(keyType).fields().forEach { (key, tsValue) ->
+                // ThingsBoard returns an empty value with ts 0 for missing attributes
+                if (tsValue.path("ts").asLong() != 0L) table[deviceId, key] = parseAttributeValue(tsValue.path("value"))
+            }
+        }
+    }
+
+    private fun parseAttributeValue(value: JsonNode): Any? {
+        if (value.isNull || value.isMissingNode) return null
+        val text = value.asText()
+        return when {
+            text == "true" -> true
+            text == "false" -> false
+            else -> text.toLongOrNull() ?: text.toDoubleOrNull()?.takeIf { it.isFinite() } ?: text
+        }
+    }
+
     /**
      * Set attribute to device
      * @param node attributes as json node
      * @param scope attribute scope
      */
     fun saveAttribute(deviceId: DeviceId, scope: Scope, name: String, value: Any) {
-        val jsonNode = mapper.convertValue(mapOf(name to value), JsonNode::class.java)
+        val payload = jsonEntity(JsonStreamWriter.write(mapOf(name to value)))
 
         when (scope) {
-            Scope.CLIENT_SCOPE -> saveClientAttributes(deviceId, jsonNode)
-            else -> saveAttributes(deviceId, jsonNode, scope)
+            Scope.CLIENT_SCOPE -> saveClientAttributesPayload(deviceId, payload)
+            else -> restTemplate.postForEntity(
+                "$baseURL/api/plugins/telemetry/DEVICE/{deviceId}/attributes/{scope}",
+                payload,
+                Any::class.java,
+                deviceId.id.toString(),
+                scope.name
+            )
         }
     }
 
@@ -240,11 +439,28 @@ constructor(
      * @param request
      * @throws NullPointerException if device not found
      */
-    fun saveClientAttributes(deviceId: DeviceId, request: JsonNode?): Boolean {
+    fun saveClientAttributes(deviceId: DeviceId, request: JsonNode?): Boolean =
+        saveClientAttributesPayload(deviceId, request)
+
+    private fun saveClientAttributesPayload(deviceId: DeviceId, request: Any?): Boolean {
         val token =
             getDeviceTokenByDeviceId(deviceId)
                 ?: throw NullPointerException("device '$deviceId' not found")
 
+        return try {
+            postClientAttributes(token, request)
+        } catch (e: HttpClientErrorException.Unauthorized) {
+            // cached token is outdated, e.g. because the device credentials have been changed in the meantime
+            log.debug { "Device token of '$deviceId' has been rejected - reloading it." }
+            tokenCache.invalidate(deviceId)
+            val newToken = getDeviceTokenByDeviceId(deviceId)
+                ?: throw NullPointerException("device '$deviceId' not found")
+            if (newToken == token) throw e
+            postClientAttributes(newToken, request)
+        }
+    }
+
+    private fun postClientAttributes(token: String, request: Any?): Boolean {
         return restTemplate.postForEntity(
             "$baseURL/api/v1/{ACCESS_TOKEN}/attributes",
             request,
@@ -302,6 +518,93 @@ constructor(
         return saveDevice(newDevice)
     }
 
+    /**
+     * Bulk version of [getOrCreateDevice]: make sure that all devices exist with the given device profile.
+     *
+     * The device profile is resolved once and the existing devices of the profile are listed page by page. Only the
+     * remaining devices are created (or, if they exist with another profile, updated), concurrently with at most
+     * `parallelism` requests at a time. A failure of one device does not affect the others.
+     *
+     * Note: for `parallelism` > 1, use a [transport] that allows enough concurrent connections, e.g.
+     * [PooledHttpTransport].
+     *
+     * @param deviceNames       names of the devices
+     * @param deviceProfileName name of the device profile
+     * @param parallelism       maximum number of concurrent create/update requests
+     * @return one result per distinct device name, in the order of `deviceNames`
+     * @throws IllegalArgumentException if the device profile does not exist
+     */
+    @JvmOverloads
+    fun getOrCreateDevices(
+        deviceNames: Collection<String>,
+        deviceProfileName: String = DEFAULT_DEVICE_PROFILE_NAME,
+        parallelism: Int = 8
+    ): List<DeviceProvisioningResult> {
+        require(parallelism > 0) { "parallelism must be positive" }
+        val profile = requireNotNull(finder.deviceProfile.getByName(deviceProfileName)) {
+            "Device profile '$deviceProfileName' does not exist"
+        }
+
+        val existing = HashMap<String, Device>()
+        var pageLink = PageLink(1000)
+        while (true) {
+            val page = getTenantDevices(deviceProfileName, pageLink)
+            page.data.forEach { existing[it.name] = it }
+            if (!page.hasNext()) break
+            pageLink = pageLink.nextPageLink()
+        }
+
+        val names = deviceNames.distinct()
+        val missing = names.filter { it !in existing }
+        log.info { "Provisioning ${names.size} devices of profile '$deviceProfileName': ${missing.size} missing" }
+
+        val created = HashMap<String, DeviceProvisioningResult>()
+        if (missing.isNotEmpty()) {
+            val executor = Executors.newFixedThreadPool(minOf(parallelism, missing.size))
+            try {
+                missing.map { name ->
+                    name to CompletableFuture.supplyAsync({ createOrUpdateDevice(name, profile) }, executor)
+                }.forEach { (name, future) -> created[name] = future.join() }
+            } finally {
+                executor.shutdown()
+            }
+        }
+
+        val results = names.map {
+            created[it] ?: DeviceProvisioningResult(it, DeviceProvisioningResult.Status.EXISTING, existing[it])
+        }
+        log.info {
+            "Provisioned devices of profile '$deviceProfileName': " +
+                    results.groupingBy { it.status }.eachCount().entries.joinToString { "${it.key}=${it.value}" }
+        }
+        return results
+    }
+
+    private fun createOrUpdateDevice(name: String, profile: DeviceProfile): DeviceProvisioningResult {
+        return try {
+            // optimistically create the device; ThingsBoard rejects it, if the name is taken by a device of
+            // another profile
+            val newDevice = Device()
+            newDevice.name = name
+            newDevice.type = profile.name
+            newDevice.deviceProfileId = profile.id
+            DeviceProvisioningResult(name, DeviceProvisioningResult.Status.CREATED, saveDevice(newDevice))
+        } catch (e: HttpClientErrorException.BadRequest) {
+            try {
+                val device = getTenantDevice(name).orElseThrow { e }
+                device.type = profile.name
+                device.deviceProfileId = profile.id
+                DeviceProvisioningResult(name, DeviceProvisioningResult.Status.UPDATED, saveDevice(device))
+            } catch (e: Exception) {
+                log.warn(e) { "Failed to update device '$name'" }
+                DeviceProvisioningResult(name, DeviceProvisioningResult.Status.FAILED, error = e)
+            }
+        } catch (e: Exception) {
+            log.warn(e) { "Failed to create device '$name'" }
+            DeviceProvisioningResult(name, DeviceProvisioningResult.Status.FAILED, error = e)
+        }
+    }
+
     /**
      * Check for attributes. This method will be blocking until an attribute changes is recorded.
      * @param deviceId
@@ -316,11 +619,13 @@ constructor(
             getDeviceTokenByDeviceId(deviceId)
                 ?: throw NullPointerException("device '$deviceId' not found")
 
-        //        restTemplate.requestFactory
-        val template = RestTemplate(SimpleClientHttpRequestFactory())
-
-        (template.requestFactory as SimpleClientHttpRequestFactory).setConnectTimeout(timeout)
-        (template.requestFactory as SimpleClientHttpRequestFactory).setReadTimeout(timeout)
+        val template = RestTemplate(
+            transport?.requestFactory(Duration.ofMillis(timeout.toLong()))
+                ?: SimpleClientHttpRequestFactory().also {
+                    it.setConnectTimeout(timeout)
+                    it.setReadTimeout(timeout)
+                }
+        )
 
         val changedAttributes: JsonNode? =
             template.exchange(
@@ -348,23 +653,38 @@ constructor(
     }
 
     /**
-     * get Device Token By Device Id
+     * get Device Token By Device Id. Tokens are cached in [tokenCache].
      * @param deviceId
      * @return null if a device not found
      */
     fun getDeviceTokenByDeviceId(deviceId: DeviceId): String? {
-        val credentials = getDeviceCredentialsByDeviceId(deviceId).orElse(null) ?: return null
-        return credentials.credentialsId
+        return tokenCache.get(deviceId) { getDeviceCredentialsByDeviceId(it).orElse(null)?.credentialsId }
     }
 
     /**
-     * get Device Token By Device Name
+     * get Device Token By Device Name. Tokens are cached in [tokenCache].
      * @param name
      * @return null if a device not found
      */
     fun getDeviceTokenByDeviceName(name: String): String? {
-        val credentials = getDeviceCredentialsByDeviceName(name) ?: return null
-        return credentials.credentialsId
+        return tokenCache.get(name) {
+            val device = finder.device.getByName(it) ?: return@get null
+            val credentials = getDeviceCredentialsByDeviceId(device.id).orElse(null) ?: return@get null
+            device.id to credentials.credentialsId
+        }
+    }
+
+    /** Delete a device and drop its cached access token. */
+    override fun deleteDevice(deviceId: DeviceId) {
+        super.deleteDevice(deviceId)
+        tokenCache.invalidate(deviceId)
+    }
+
+    /** Save device credentials and drop the cached access token of the affected device. */
+    override fun saveDeviceCredentials(deviceCredentials: DeviceCredentials): DeviceCredentials? {
+        val saved = super.saveDeviceCredentials(deviceCredentials)
+        deviceCredentials.deviceId?.let { tokenCache.invalidate(it) }
+        return saved
     }
 
     /**
@@ -427,8 +747,7 @@ constructor(
      * @param severity severity of the new alarm to be created
      */
     open fun newAlarmIfNotActive(entityId: EntityId, entityName: String, type: String, severity: AlarmSeverity) {
-        val res: PageData<AlarmInfo>? = getAlarms(entityId, AlarmSearchStatus.ACTIVE, null, TimePageLink(100), false)
-        if (isAnyAlarmActive(res?.data, type) != null) {
+        if (findActiveAlarm(entityId, type) != null) {
             log.debug {
                 "There is already an active alarm of type: $type for entity $entityName- not creating " +
                         "a new one."
@@ -444,6 +763,47 @@ constructor(
         saveAlarm(alarm)
     }
 
+    /** Save an alarm and update the [alarmIndex]. */
+    override fun saveAlarm(alarm: Alarm): Alarm? {
+        val saved = super.saveAlarm(alarm)
+        alarmIndex?.onSaved(saved ?: alarm)
+        return saved
+    }
+
+    /** Clear an alarm and update the [alarmIndex]. */
+    override fun clearAlarm(alarmId: AlarmId) {
+        super.clearAlarm(alarmId)
+        alarmIndex?.onCleared(alarmId)
+    }
+
+    /** Delete an alarm and update the [alarmIndex]. */
+    override fun deleteAlarm(alarmId: AlarmId): Boolean {
+        val deleted = super.deleteAlarm(alarmId)
+        alarmIndex?.onDeleted(alarmId)
+        return deleted
+    }
+
+    /**
+     * Enable the local index of active alarms (see [ActiveAlarmIndex]), so that [newAlarmIfNotActive] and
+     * [clearAlarmIfActive] do not need to query ThingsBoard for every decision.
+     *
+     * @param subscribe if true, keep the index up to date via websocket, so that alarm changes made by other
+     *                  clients or rule chains are reflected; set to false, if all alarms of the affected
+     *                  originators are raised and cleared through this client
+     * @return the new index
+     */
+    @JvmOverloads
+    fun enableAlarmIndex(subscribe: Boolean = true): ActiveAlarmIndex {
+        alarmIndex?.close()
+        return ActiveAlarmIndex(this, subscribe).also { alarmIndex = it }
+    }
+
+    private fun findActiveAlarm(entityId: EntityId, type: String): AlarmInfo? {
+        alarmIndex?.let { return it.getActive(entityId, type) }
+
+        return getAllAlarms(entityId, AlarmSearchStatus.ACTIVE).firstOrNull { type == it.type && isAlarmActive(it) }
+    }
+
     /**
      * Clear an alarm of the given type for this client's device, if there's an ACTIVE one.
      *
@@ -453,8 +813,7 @@ constructor(
      * for logging
      */
     open fun clearAlarmIfActive(entityId: EntityId, entityName: String, type: String) {
-        val res: PageData<AlarmInfo>? = getAlarms(entityId, AlarmSearchStatus.ACTIVE, null, TimePageLink(100), false)
-        val activeAlarm = isAnyAlarmActive(res?.data, type)
+        val activeAlarm = findActiveAlarm(entityId, type)
         if (activeAlarm != null) {
             log.debug { "There is an active alarm of type: $type for entity $entityName - clearing it." }
             clearAlarm(activeAlarm.id)
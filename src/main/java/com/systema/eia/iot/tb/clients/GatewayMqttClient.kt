@@ -0,0 +1,274 @@
+package com.systema.eia.iot.tb.clients
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.systema.eia.iot.tb.utils.JsonStreamWriter
+import com.systema.eia.iot.tb.utils.SimpleMqttClient
+import com.systema.eia.iot.tb.utils.TelemetryRecord
+import mu.KotlinLogging
+import java.io.Closeable
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+// list of gateway topics
+private const val TOPIC_GATEWAY_CONNECT = "v1/gateway/connect"
+private const val TOPIC_GATEWAY_DISCONNECT = "v1/gateway/disconnect"
+private const val TOPIC_GATEWAY_TELEMETRY = "v1/gateway/telemetry"
+private const val TOPIC_GATEWAY_ATTRIBUTES = "v1/gateway/attributes"
+private const val TOPIC_GATEWAY_RPC = "v1/gateway/rpc"
+
+/**
+ * RPC request to a device behind a gateway, see [GatewayMqttClient.subscribeRpc].
+ *
+ * @property device device name
+ * @property id     request id, to be passed to [GatewayMqttClient.replyRpc]
+ * @property method RPC method
+ * @property params RPC parameters, if any
+ */
+data class GatewayRpcRequest(val device: String, val id: Int, val method: String, val params: JsonNode?)
+
+/**
+ * MQTT client of a ThingsBoard gateway device, which publishes data of many devices over a single connection using
+ * the [gateway MQTT API](https://thingsboard.io/docs/reference/gateway-mqtt-api/) (`v1/gateway/...` topics). The
+ * devices are addressed by name and created by ThingsBoard on their first message.
+ *
+ * Telemetry can be sent directly ([sendTelemetry]), or buffered ([addTelemetry]) and published for all devices in a
+ * single message, as soon as `maxBatchSize` records are buffered, the oldest record is older than `maxDelay`, or
+ * [flush] is called.
+ *
+ * Example (Kotlin):
+ * ```
+ * GatewayMqttClient("localhost:1883", DeviceToken(gatewayToken)).use { gateway ->
+ *     gateway.connectDevice("Sensor 1", "sensor")
+ *     gateway.addTelemetry("Sensor 1", mapOf("temperature" to 42.0))
+ * }
+ * ```
+ *
+ * @property mqttClient   MQTT client authenticated with the access token of the gateway device
+ * @property maxBatchSize number of buffered telemetry records, which trigger a publish
+ * @property maxDelay     maximum time telemetry records are buffered before they are published
+ */
+class GatewayMqttClient @JvmOverloads constructor(
+    val mqttClient: SimpleMqttClient,
+    val maxBatchSize: Int = 1000,
+    val maxDelay: Duration = Duration.ofSeconds(1)
+) : Closeable {
+
+    @JvmOverloads
+    constructor(
+        tbMqttHostPort: String,
+        gatewayToken: DeviceToken,
+        maxBatchSize: Int = 1000,
+        maxDelay: Duration = Duration.ofSeconds(1)
+    ) : this(SimpleMqttClient(brokerUrl = tbMqttHostPort, username = gatewayToken.token), maxBatchSize, maxDelay)
+
+    companion object {
+        private val log = KotlinLogging.logger {}
+        private val mapper = ObjectMapper()
+    }
+
+    init {
+        require(maxBatchSize > 0) { "maxBatchSize must be positive, but was $maxBatchSize" }
+    }
+
+    private val connectedDevices = ConcurrentHashMap.newKeySet<String>()
+
+    // buffered telemetry by device name, guarded by itself
+    private val buffer = LinkedHashMap<String, MutableList<TelemetryRecord>>()
+    private var bufferedRecords = 0
+    private var bufferCreatedAt = 0L
+
+    @Volatile
+    private var closed = false
+
+    private val scheduler = Executors.newSingleThreadScheduledExecutor { r ->
+        Thread(r, "gateway-telemetry-timer").apply { isDaemon = true }
+    }.also {
+        val period = maxOf(10, maxDelay.toMillis() / 2)
+        it.scheduleAtFixedRate({ flushExpired() }, period, period, TimeUnit.MILLISECONDS)
+    }
+
+    /** Names of the devices connected via [connectDevice]. */
+    val devices: Set<String>
+        get() = connectedDevices.toSet()
+
+    /**
+     * Inform ThingsBoard that a device is connected to the gateway. The device is created, if it does not exist.
+     *
+     * @param device device name
+     * @param type   device type (i.e. profile), used if the device is created
+     */
+    @JvmOverloads
+    fun connectDevice(device: String, type: String = "default") {
+        mqttClient.publish(TOPIC_GATEWAY_CONNECT, JsonStreamWriter.write(mapOf("device" to device, "type" to type)), true)
+        connectedDevices.add(device)
+    }
+
+    /**
+     * Inform ThingsBoard that a device has been disconnected from the gateway. Buffered telemetry is published first.
+     *
+     * @param device device name
+     */
+    fun disconnectDevice(device: String) {
+        flush()
+        mqttClient.publish(TOPIC_GATEWAY_DISCONNECT, JsonStreamWriter.write(mapOf("device" to device)), true)
+        connectedDevices.remove(device)
+    }
+
+    /**
+     * Publish telemetry of several devices in one message.
+     *
+     * @param telemetry telemetry records by device name
+     */
+    fun sendTelemetry(telemetry: Map<String, Collection<TelemetryRecord>>) {
+        if (telemetry.isEmpty()) return
+        mqttClient.publish(TOPIC_GATEWAY_TELEMETRY, JsonStreamWriter.write(telemetry), true)
+    }
+
+    /**
+     * Publish telemetry of one device.
+     *
+     * @param device device name
+     * @param record telemetry record
+     */
+    fun sendTelemetry(device: String, record: TelemetryRecord) = sendTelemetry(mapOf(device to listOf(record)))
+
+    /**
+     * Buffer a telemetry record to be published together with the telemetry of other devices.
+     *
+     * @param device device name
+     * @param record telemetry record; should have a timestamp, since it is published later
+     */
+    fun addTelemetry(device: String, record: TelemetryRecord) {
+        check(!closed) { "GatewayMqttClient has been closed" }
+        val batch = synchronized(buffer) {
+            if (bufferedRecords == 0) bufferCreatedAt = System.currentTimeMillis()
+            buffer.getOrPut(device) { ArrayList() }.add(record)
+            if (++bufferedRecords >= maxBatchSize) takeBuffer() else null
+        }
+        batch?.let { sendTelemetry(it) }
+    }
+
+    /**
+     * Buffer telemetry values of a device, see [addTelemetry].
+     *
+     * @param device device name
+     * @param values telemetry values by key
+     * @param ts     timestamp in epoch ms
+     */
+    @JvmOverloads
+    fun addTelemetry(device: String, values: Map<String, Any?>, ts: Long = System.currentTimeMillis()) =
+        addTelemetry(device, TelemetryRecord(values, ts))
+
+    /** Publish all buffered telemetry. */
+    fun flush() {
+        val batch = synchronized(buffer) { takeBuffer() }
+        sendTelemetry(batch)
+    }
+
+    /** Number of buffered telemetry records. */
+    fun pending(): Int = synchronized(buffer) { bufferedRecords }
+
+    /**
+     * Publish client attributes of several devices in one message.
+     *
+     * @param attributes attributes (key-value maps) by device name
+     */
+    fun sendAttributes(attributes: Map<String, Map<String, Any?>>) {
+        if (attributes.isEmpty()) return
+        mqttClient.publish(TOPIC_GATEWAY_ATTRIBUTES, JsonStreamWriter.write(attributes), true)
+    }
+
+    /**
+     * Publish client attributes of one device.
+     *
+     * @param device     device name
+     * @param attributes key-value attribute map
+     */
+    fun sendAttributes(device: String, attributes: Map<String, Any?>) = sendAttributes(mapOf(device to attributes))
+
+    /**
+     * Subscribe to shared attribute updates of all devices of the gateway.
+     *
+     * @param listener called with device name and changed attributes
+     */
+    fun subscribeSharedAttributes(listener: (device: String, attributes: Map<String, Any?>) -> Unit) {
+        mqttClient.subscribe(TOPIC_GATEWAY_ATTRIBUTES) { _, message ->
+            val json = mapper.readTree(message.payload)
+            val device = json.path("device").asText(null) ?: return@subscribe
+            @Suppress("UNCHECKED_CAST")
+            val attributes = mapper.convertValue(json.get("data"), Map::class.java) as? Map<String, Any?> ?: mapOf()
+            listener(device, attributes)
+        }
+    }
+
+    /**
+     * Subscribe to server-side RPC requests to the devices of the gateway. Answer two-way requests with [replyRpc].
+     *
+     * @param listener called for each request
+     */
+    fun subscribeRpc(listener: (GatewayRpcRequest) -> Unit) {
+        mqttClient.subscribe(TOPIC_GATEWAY_RPC) { _, message ->
+            val json = mapper.readTree(message.payload)
+            val data = json.path("data")
+            val request = GatewayRpcRequest(
+                json.path("device").asText(),
+                data.path("id").asInt(),
+                data.path("method").asText(),
+                data.get("params")
+            )
+            try {
+                listener(request)
+            } catch (e: Exception) {
+                log.error(e) { "RPC listener failed for $request" }
+            }
+        }
+    }
+
+    /**
+     * Reply to an RPC request received via [subscribeRpc].
+     *
+     * @param device device name
+     * @param id     request id
+     * @param result response data
+     */
+    fun replyRpc(device: String, id: Int, result: Any?) {
+        val payload = JsonStreamWriter.write(mapOf("device" to device, "id" to id, "data" to result))
+        mqttClient.publish(TOPIC_GATEWAY_RPC, payload, true)
+    }
+
+    /** Publish buffered telemetry, disconnect all devices and the MQTT client. */
+    override fun close() {
+        if (closed) return
+        closed = true
+        scheduler.shutdown()
+        try {
+            flush()
+            connectedDevices.toList().forEach { disconnectDevice(it) }
+        } finally {
+            mqttClient.disconnect()
+        }
+    }
+
+    private fun takeBuffer(): Map<String, List<TelemetryRecord>> {
+        val batch = LinkedHashMap<String, List<TelemetryRecord>>(buffer)
+        buffer.clear()
+        bufferedRecords = 0
+        return batch
+    }
+
+    private fun flushExpired() {
+        try {
+            val batch = synchronized(buffer) {
+                if (bufferedRecords > 0 && System.currentTimeMillis() - bufferCreatedAt >= maxDelay.toMillis()) {
+                    takeBuffer()
+                } else null
+            }
+            batch?.let { sendTelemetry(it) }
+        } catch (e: Exception) {
+            log.error(e) { "Can not publish gateway telemetry" }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.systema.eia.iot.tb.clients
+
+import org.apache.http.client.config.RequestConfig
+import org.apache.http.impl.client.CloseableHttpClient
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy
+import org.apache.http.impl.client.HttpClients
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager
+import org.apache.http.pool.PoolStats
+import org.springframework.http.client.ClientHttpRequestFactory
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory
+import java.io.Closeable
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+
+/**
+ * Provider of the HTTP connections used by [ExtRestClient] (see constructor parameter `transport`).
+ */
+interface HttpTransport {
+
+    /** Request factory for regular REST calls. */
+    fun requestFactory(): ClientHttpRequestFactory
+
+    /** Request factory for calls with a specific read timeout, e.g. long polling. */
+    fun requestFactory(readTimeout: Duration): ClientHttpRequestFactory
+}
+
+/**
+ * HTTP transport based on a pool of keep-alive connections (Apache HttpClient), so that subsequent requests to
+ * ThingsBoard reuse open TCP connections instead of opening a new one per request. All request factories created by
+ * one transport share the same connection pool.
+ *
+ * Note: Apache HttpClient 4 speaks HTTP/1.1 only. For HTTP/2 use the [AsyncExtRestClient].
+ *
+ * Example (Kotlin):
+ * ```
+ * val transport = PooledHttpTransport(maxConnectionsPerRoute = 50)
+ * val client = ExtRestClient(url, user, password, transport)
+ * ```
+ *
+ * @property maxConnectionsPerRoute maximum number of connections to one host
+ * @property maxConnectionsTotal     maximum number of connections in the pool
+ * @property connectTimeout          timeout to establish a new connection
+ * @property readTimeout             default timeout waiting for response data
+ * @property idleTimeout             pooled connections idle for longer than this are closed
+ * @property keepAlive               time to keep a connection open, if the server does not send a keep-alive timeout
+ */
+class PooledHttpTransport @JvmOverloads constructor(
+    val maxConnectionsPerRoute: Int = 20,
+    val maxConnectionsTotal: Int = 200,
+    val connectTimeout: Duration = Duration.ofSeconds(10),
+    val readTimeout: Duration = Duration.ofSeconds(30),
+    val idleTimeout: Duration = Duration.ofSeconds(60),
+    val keepAlive: Duration = Duration.ofMinutes(5)
+) : HttpTransport, Closeable {
+
+    private val connectionManager = PoolingHttpClientConnectionManager().also {
+        it.maxTotal = maxConnectionsTotal
+        it.defaultMaxPerRoute = maxConnectionsPerRoute
+        // re-check connections that have been idle for a while, since the server might have closed them
+        it.validateAfterInactivity = 2000
+    }
+
+    /** Underlying HTTP client; closed by [close]. */
+    val httpClient: CloseableHttpClient = HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setKeepAliveStrategy { response, context ->
+            val serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context)
+            if (serverKeepAlive > 0) serverKeepAlive else keepAlive.toMillis()
+        }
+        .setDefaultRequestConfig(
+            RequestConfig.custom()
+                .setConnectTimeout(connectTimeout.toMillis().toInt())
+                .setSocketTimeout(readTimeout.toMillis().toInt())
+                .build()
+        )
+        .evictExpiredConnections()
+        .evictIdleConnections(idleTimeout.toMillis(), TimeUnit.MILLISECONDS)
+        .build()
+
+    override fun requestFactory(): ClientHttpRequestFactory = requestFactory(readTimeout)
+
+    override fun requestFactory(readTimeout: Duration): ClientHttpRequestFactory =
+        HttpComponentsClientHttpRequestFactory(httpClient).also {
+            it.setConnectTimeout(connectTimeout.toMillis().toInt())
+            it.setReadTimeout(readTimeout.toMillis().toInt())
+        }
+
+    /** Current pool utilization (leased, available and pending connections). */
+    fun stats(): PoolStats = connectionManager.totalStats
+
+    /** Close all pooled connections. */
+    override fun close() {
+        httpClient.close()
+    }
+}
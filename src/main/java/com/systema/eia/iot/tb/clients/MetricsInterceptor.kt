@@ -0,0 +1,109 @@
+package com.systema.eia.iot.tb.clients
+
+import com.systema.eia.iot.tb.stats.InMemoryMetricsRegistry
+import com.systema.eia.iot.tb.stats.MetricsRegistry
+import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpRequest
+import org.springframework.http.HttpStatus
+import org.springframework.http.client.ClientHttpRequestExecution
+import org.springframework.http.client.ClientHttpRequestInterceptor
+import org.springframework.http.client.ClientHttpResponse
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * REST client interceptor, which records request counts, errors, latencies and body sizes per endpoint in a
+ * [MetricsRegistry].
+ *
+ * Endpoints are named by method and path, with entity ids, numbers and device access tokens replaced by
+ * placeholders, e.g. `GET /api/device/{id}/credentials`. A request fails, if it throws an exception or the response
+ * status is 4xx or 5xx. The latency is measured until the response headers have been received; the response size
+ * is recorded when the response is closed, i.e. after it has been read.
+ *
+ * Add it with [ExtRestClient.enableMetrics], so it is executed before a [RateLimitInterceptor], i.e. the latency
+ * includes throttling and retries.
+ *
+ * @property registry receiver of the metrics
+ */
+class MetricsInterceptor @JvmOverloads constructor(
+    val registry: MetricsRegistry = InMemoryMetricsRegistry()
+) : ClientHttpRequestInterceptor {
+
+    companion object {
+        private val UUID_SEGMENT = Regex("^[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}$")
+        private val NUMBER_SEGMENT = Regex("^\\d+$")
+
+        /** Name of the endpoint of a request, e.g. `GET /api/device/{id}/credentials`. */
+        @JvmStatic
+        fun endpointOf(method: String, path: String): String {
+            val segments = path.split('/').toMutableList()
+            segments.indices.forEach { i ->
+                segments[i] = when {
+                    // device API: /api/v1/{token}/...
+                    i == 3 && segments[1] == "api" && segments[2] == "v1" -> "{token}"
+                    UUID_SEGMENT.matches(segments[i]) -> "{id}"
+                    NUMBER_SEGMENT.matches(segments[i]) -> "{n}"
+                    else -> segments[i]
+                }
+            }
+            return "$method ${segments.joinToString("/")}"
+        }
+    }
+
+    override fun intercept(
+        request: HttpRequest,
+        body: ByteArray,
+        execution: ClientHttpRequestExecution
+    ): ClientHttpResponse {
+        val endpoint = endpointOf(request.methodValue, request.uri.path)
+        val start = System.nanoTime()
+        val response = try {
+            execution.execute(request, body)
+        } catch (e: IOException) {
+            registry.recordRequest(endpoint, System.nanoTime() - start, true, body.size.toLong())
+            throw e
+        }
+        val status = response.rawStatusCode
+        registry.recordRequest(endpoint, System.nanoTime() - start, status >= 400, body.size.toLong())
+        return CountingResponse(response) { registry.recordBytesIn(endpoint, it) }
+    }
+
+    /** Response counting the bytes read from its body. */
+    private class CountingResponse(
+        private val delegate: ClientHttpResponse,
+        private val onClose: (Long) -> Unit
+    ) : ClientHttpResponse {
+
+        private var bodyStream: CountingInputStream? = null
+        private var closed = false
+
+        override fun getBody(): InputStream = bodyStream ?: CountingInputStream(delegate.body).also { bodyStream = it }
+
+        override fun getHeaders(): HttpHeaders = delegate.headers
+
+        override fun getStatusCode(): HttpStatus = delegate.statusCode
+
+        override fun getRawStatusCode(): Int = delegate.rawStatusCode
+
+        override fun getStatusText(): String = delegate.statusText
+
+        override fun close() {
+            if (closed) return
+            closed = true
+            onClose(bodyStream?.count ?: 0)
+            delegate.close()
+        }
+    }
+
+    private class CountingInputStream(stream: InputStream) : FilterInputStream(stream) {
+        var count = 0L
+
+        override fun read(): Int = super.read().also { if (it >= 0) count++ }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int =
+            super.read(b, off, len).also { if (it > 0) count += it }
+
+        override fun skip(n: Long): Long = super.skip(n).also { count += it }
+    }
+}
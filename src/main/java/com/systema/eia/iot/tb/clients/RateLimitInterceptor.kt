@@ -0,0 +1,229 @@
+package com.systema.eia.iot.tb.clients
+
+import mu.KotlinLogging
+import org.springframework.http.HttpRequest
+import org.springframework.http.HttpStatus
+import org.springframework.http.client.ClientHttpRequestExecution
+import org.springframework.http.client.ClientHttpRequestInterceptor
+import org.springframework.http.client.ClientHttpResponse
+import java.time.Duration
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/** Classes of ThingsBoard REST endpoints, which are throttled independently by [RateLimitInterceptor]. */
+enum class EndpointClass {
+    TELEMETRY,
+    ATTRIBUTES,
+    ALARMS,
+
+    /** device API, i.e. calls authenticated by a device access token */
+    DEVICE_API,
+    OTHER;
+
+    companion object {
+        /** Determine the endpoint class of a request. */
+        @JvmStatic
+        fun of(request: HttpRequest): EndpointClass {
+            val path = request.uri.path
+            return when {
+                path.startsWith("/api/v1/") -> DEVICE_API
+                path.startsWith("/api/alarm") -> ALARMS
+                path.startsWith("/api/plugins/telemetry/") && path.contains("/timeseries") -> TELEMETRY
+                path.startsWith("/api/plugins/telemetry/") && path.contains("/attributes") -> ATTRIBUTES
+                else -> OTHER
+            }
+        }
+    }
+}
+
+/**
+ * Token bucket with adjustable rate: `rate` permits per second, at most `burst` permits can be taken at once after
+ * a period of inactivity. Requests exceeding the rate are queued, i.e. [acquire] blocks until it is their turn.
+ */
+internal class TokenBucket(rate: Double, private val burst: Int) {
+
+    @Volatile
+    var rate: Double = rate
+        private set
+
+    private var tokens = burst.toDouble()
+    private var lastRefill = System.nanoTime()
+
+    fun acquire() {
+        val waitNanos = reserve()
+        if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos)
+    }
+
+    @Synchronized
+    fun setRate(newRate: Double) {
+        refill()
+        rate = newRate
+    }
+
+    @Synchronized
+    private fun reserve(): Long {
+        refill()
+        tokens -= 1
+        return if (tokens >= 0) 0 else (-tokens / rate * 1e9).toLong()
+    }
+
+    private fun refill() {
+        val now = System.nanoTime()
+        tokens = minOf(burst.toDouble(), tokens + (now - lastRefill) / 1e9 * rate)
+        lastRefill = now
+    }
+}
+
+/**
+ * REST client interceptor, which throttles the requests to ThingsBoard per [EndpointClass] and retries requests
+ * rejected due to rate limits (HTTP 429) or temporary server errors (HTTP 502, 503, 504).
+ *
+ * Each endpoint class has its own token bucket. Its rate adapts to the rejections observed (AIMD): each 429 response
+ * halves the rate (at most once per `backoff`), while successful requests raise it by `rateIncrease` permits per
+ * second (at full throughput), up to `maxRate`. Thus, the rate settles just below the server's limit.
+ *
+ * Retries are delayed by an exponential backoff with full jitter, or as requested by a `Retry-After` header. After
+ * `maxRetries` retries the last response is returned, i.e. the [org.springframework.web.client.RestTemplate] throws
+ * the usual exception. Other 5xx responses are not retried, since the request might have been processed.
+ *
+ * The interceptor must be the last one of the [org.springframework.web.client.RestTemplate], since retries re-execute
+ * the remaining interceptor chain; use [ExtRestClient.addInterceptor].
+ *
+ * Example (Kotlin):
+ * ```
+ * val client = ExtRestClient(url)
+ * client.addInterceptor(RateLimitInterceptor(initialRate = 50.0))
+ * ```
+ *
+ * @property initialRate  initial permitted requests per second and endpoint class
+ * @property minRate      minimum permitted requests per second and endpoint class
+ * @property maxRate      maximum permitted requests per second and endpoint class
+ * @property rateIncrease additive rate increase in requests per second (per second of successful requests)
+ * @property burst        maximum number of requests sent at once after a period of inactivity
+ * @property maxRetries   maximum number of retries per request
+ * @property backoff      base delay of the exponential backoff
+ * @property maxBackoff   maximum delay between retries
+ */
+class RateLimitInterceptor @JvmOverloads constructor(
+    val initialRate: Double = 100.0,
+    val minRate: Double = 1.0,
+    val maxRate: Double = 1000.0,
+    val rateIncrease: Double = 5.0,
+    val burst: Int = 10,
+    val maxRetries: Int = 5,
+    val backoff: Duration = Duration.ofMillis(200),
+    val maxBackoff: Duration = Duration.ofSeconds(30)
+) : ClientHttpRequestInterceptor {
+
+    companion object {
+        private val log = KotlinLogging.logger {}
+
+        private val RETRIED_STATUSES = setOf(
+            HttpStatus.TOO_MANY_REQUESTS.value(),
+            HttpStatus.BAD_GATEWAY.value(),
+            HttpStatus.SERVICE_UNAVAILABLE.value(),
+            HttpStatus.GATEWAY_TIMEOUT.value()
+        )
+    }
+
+    init {
+        require(minRate > 0 && minRate <= initialRate && initialRate <= maxRate) {
+            "rates must satisfy 0 < minRate <= initialRate <= maxRate"
+        }
+        require(burst > 0) { "burst must be positive" }
+        require(maxRetries >= 0) { "maxRetries must not be negative" }
+    }
+
+    /** Counters of one endpoint class. */
+    class Stats internal constructor() {
+        internal val requestCount = AtomicLong()
+        internal val rejectedCount = AtomicLong()
+        internal val retryCount = AtomicLong()
+
+        /** number of executed requests, incl. retries */
+        val requests: Long
+            get() = requestCount.get()
+
+        /** number of requests rejected by the rate limits of the server (HTTP 429) */
+        val rejected: Long
+            get() = rejectedCount.get()
+
+        /** number of retries */
+        val retries: Long
+            get() = retryCount.get()
+
+        override fun toString() = "requests=$requests, rejected=$rejected, retries=$retries"
+    }
+
+    private inner class Limiter {
+        val bucket = TokenBucket(initialRate, burst)
+        val stats = Stats()
+
+        private var lastDecrease = System.nanoTime() - backoff.toNanos()
+
+        fun onSuccess() {
+            val rate = bucket.rate
+            if (rate < maxRate) bucket.setRate(minOf(maxRate, rate + rateIncrease / rate))
+        }
+
+        @Synchronized
+        fun onRejected() {
+            // a burst of rejections is a single congestion event
+            val now = System.nanoTime()
+            if (now - lastDecrease < backoff.toNanos()) return
+            lastDecrease = now
+            bucket.setRate(maxOf(minRate, bucket.rate / 2))
+        }
+    }
+
+    private val limiters = EndpointClass.values().associateWith { Limiter() }
+
+    /** Current permitted rate (requests per second) of an endpoint class. */
+    fun rate(endpointClass: EndpointClass): Double = limiters.getValue(endpointClass).bucket.rate
+
+    /** Counters of an endpoint class. */
+    fun stats(endpointClass: EndpointClass): Stats = limiters.getValue(endpointClass).stats
+
+    override fun intercept(
+        request: HttpRequest,
+        body: ByteArray,
+        execution: ClientHttpRequestExecution
+    ): ClientHttpResponse {
+        val endpointClass = EndpointClass.of(request)
+        val limiter = limiters.getValue(endpointClass)
+
+        var attempt = 0
+        while (true) {
+            limiter.bucket.acquire()
+            limiter.stats.requestCount.incrementAndGet()
+            val response = execution.execute(request, body)
+
+            val status = response.rawStatusCode
+            if (status == HttpStatus.TOO_MANY_REQUESTS.value()) {
+                limiter.stats.rejectedCount.incrementAndGet()
+                limiter.onRejected()
+            } else if (status < 500) {
+                limiter.onSuccess()
+            }
+            if (status !in RETRIED_STATUSES || attempt >= maxRetries) return response
+
+            val delay = retryDelay(response, attempt++)
+            response.close()
+            limiter.stats.retryCount.incrementAndGet()
+            log.debug {
+                "${request.methodValue} ${request.uri.path} failed with $status - retry $attempt " +
+                        "in $delay ms (rate of $endpointClass: ${"%.1f".format(limiter.bucket.rate)}/s)"
+            }
+            Thread.sleep(delay)
+        }
+    }
+
+    private fun retryDelay(response: ClientHttpResponse, attempt: Int): Long {
+        response.headers.getFirst("Retry-After")?.toLongOrNull()?.let {
+            return minOf(maxBackoff.toMillis(), TimeUnit.SECONDS.toMillis(it))
+        }
+        val maxDelay = minOf(maxBackoff.toMillis(), backoff.toMillis() shl minOf(attempt, 20))
+        return ThreadLocalRandom.current().nextLong(maxDelay + 1)
+    }
+}
@@ -0,0 +1,189 @@
+package com.systema.eia.iot.tb.clients
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.systema.eia.iot.tb.clients.TbDefaults.TB_TENANT_PW
+import com.systema.eia.iot.tb.clients.TbDefaults.TB_TENANT_USER
+import mu.KotlinLogging
+import java.io.Closeable
+import java.net.URL
+import java.time.Duration
+import java.time.Instant
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Thread-safe pool of a few authenticated [ExtRestClient] sessions, shared by many device handlers instead of
+ * creating one client (i.e. one login and JWT session) per device.
+ *
+ * Long-living handlers take a session with [session] and return it with [release]; the session with the fewest
+ * handlers is assigned. Short operations run via [withSession] on the session with the fewest requests in flight.
+ *
+ * The JWT tokens of all sessions are refreshed before they expire (or the session logs in again, if the refresh
+ * token has expired as well), so that requests are not delayed by a refresh and tokens passed to websockets stay
+ * valid.
+ *
+ * Example (Kotlin):
+ * ```
+ * val pool = TbSessionPool(URL(tbUrl), tbUser, tbPassword, size = 4)
+ * val discovery = DeviceDiscovery(pool, tbDeviceProfile, activeAction, inactiveAction)
+ * pool.withSession { it.sendTelemetry(deviceId, "x", 1.0) }
+ * ```
+ *
+ * @property tbURL         ThingsBoard URL
+ * @property login         ThingsBoard user
+ * @property password      ThingsBoard password
+ * @property size          number of sessions
+ * @property refreshBefore time before token expiry, when the token is refreshed
+ * @property transport     HTTP transport shared by all sessions, see [ExtRestClient]
+ */
+class TbSessionPool @JvmOverloads constructor(
+    val tbURL: URL,
+    val login: String = TB_TENANT_USER,
+    val password: String = TB_TENANT_PW,
+    val size: Int = 4,
+    val refreshBefore: Duration = Duration.ofMinutes(5),
+    val transport: HttpTransport? = null
+) : Closeable {
+
+    companion object {
+        private val log = KotlinLogging.logger {}
+        private val mapper = ObjectMapper()
+
+        /** Interval of the token expiry checks. */
+        private val CHECK_INTERVAL = Duration.ofSeconds(30)
+
+        /** Expiry time of a JWT token, null if the token can not be parsed. */
+        internal fun tokenExpiry(token: String?): Instant? {
+            val payload = token?.split('.')?.getOrNull(1) ?: return null
+            return try {
+                val exp = mapper.readTree(Base64.getUrlDecoder().decode(payload)).path("exp")
+                if (exp.isNumber) Instant.ofEpochSecond(exp.asLong()) else null
+            } catch (e: Exception) {
+                null
+            }
+        }
+    }
+
+    init {
+        require(size > 0) { "size must be positive" }
+    }
+
+    private class Session(val client: ExtRestClient) {
+        val handlers = AtomicInteger()
+        val inFlight = AtomicInteger()
+        val requests = AtomicLong()
+    }
+
+    private val sessions = List(size) { Session(ExtRestClient(tbURL, login, password, transport)) }
+
+    private val totalInFlight = AtomicInteger()
+    private val peakInFlight = AtomicInteger()
+    private val refreshes = AtomicLong()
+    private val relogins = AtomicLong()
+
+    private val refresher = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "tb-session-refresh").apply { isDaemon = true }
+    }.also {
+        it.scheduleWithFixedDelay(
+            { refreshTokens() }, CHECK_INTERVAL.toMillis(), CHECK_INTERVAL.toMillis(), TimeUnit.MILLISECONDS
+        )
+    }
+
+    /**
+     * Take a session for a long-living handler, e.g. a device state machine. The session with the fewest handlers
+     * is returned. The session must not be closed by the handler; return it with [release] instead.
+     */
+    fun session(): ExtRestClient {
+        val session = synchronized(sessions) {
+            sessions.minByOrNull { it.handlers.get() }!!.also { it.handlers.incrementAndGet() }
+        }
+        return session.client
+    }
+
+    /** Return a session taken by [session]. */
+    fun release(client: ExtRestClient) {
+        sessions.firstOrNull { it.client === client }?.handlers?.updateAndGet { maxOf(0, it - 1) }
+    }
+
+    /** Run a short operation on the session with the fewest requests in flight. */
+    fun <T> withSession(operation: (ExtRestClient) -> T): T {
+        val session = sessions.minByOrNull { it.inFlight.get() }!!
+        session.inFlight.incrementAndGet()
+        peakInFlight.accumulateAndGet(totalInFlight.incrementAndGet()) { peak, current -> maxOf(peak, current) }
+        session.requests.incrementAndGet()
+        try {
+            return operation(session.client)
+        } finally {
+            session.inFlight.decrementAndGet()
+            totalInFlight.decrementAndGet()
+        }
+    }
+
+    /**
+     * Pool utilization.
+     *
+     * @property sessions     number of sessions
+     * @property handlers     number of handlers per session (see [session])
+     * @property inFlight     number of operations in flight (see [withSession])
+     * @property peakInFlight maximum number of operations in flight so far
+     * @property operations   number of operations per session (see [withSession])
+     * @property refreshes    number of token refreshes
+     * @property relogins     number of logins after the refresh token expired
+     */
+    data class Stats(
+        val sessions: Int,
+        val handlers: List<Int>,
+        val inFlight: Int,
+        val peakInFlight: Int,
+        val operations: List<Long>,
+        val refreshes: Long,
+        val relogins: Long
+    ) {
+        /** share of the sessions busy with operations, 0..1 */
+        val utilization: Double
+            get() = minOf(1.0, inFlight.toDouble() / sessions)
+    }
+
+    /** Current pool utilization. */
+    fun stats() = Stats(
+        sessions.size,
+        sessions.map { it.handlers.get() },
+        totalInFlight.get(),
+        peakInFlight.get(),
+        sessions.map { it.requests.get() },
+        refreshes.get(),
+        relogins.get()
+    )
+
+    /** Refresh all tokens, which expire within [refreshBefore]. */
+    internal fun refreshTokens() {
+        val deadline = Instant.now().plus(refreshBefore)
+        sessions.forEachIndexed { i, session ->
+            val expiry = tokenExpiry(session.client.token) ?: return@forEachIndexed
+            if (expiry.isAfter(deadline)) return@forEachIndexed
+
+            try {
+                log.debug { "Refreshing token of session $i (expires $expiry)" }
+                session.client.refreshToken()
+                refreshes.incrementAndGet()
+            } catch (e: Exception) {
+                log.info { "Token refresh of session $i failed (${e.message}) - logging in again" }
+                try {
+                    session.client.login(login, password)
+                    relogins.incrementAndGet()
+                } catch (e: Exception) {
+                    log.error(e) { "Login of session $i failed" }
+                }
+            }
+        }
+    }
+
+    /** Close all sessions. */
+    override fun close() {
+        refresher.shutdownNow()
+        sessions.forEach { it.client.close() }
+    }
+}
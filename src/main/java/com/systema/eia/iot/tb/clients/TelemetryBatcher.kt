@@ -0,0 +1,232 @@
+package com.systema.eia.iot.tb.clients
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.systema.eia.iot.tb.utils.Scope
+import mu.KotlinLogging
+import org.thingsboard.server.common.data.id.DeviceId
+import java.io.Closeable
+import java.time.Duration
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Buffer telemetry samples per device and write them to ThingsBoard in batches, using the array format
+ * `[{"ts": 1617975311084, "values": {"temperature": 42.0}}, ...]` of the
+ * [ThingsBoard telemetry API](https://thingsboard.io/docs/user-guide/telemetry/#time-series-data-upload-api).
+ *
+ * The buffer of a device is written, as soon as it holds `maxBatchSize` samples, when its oldest sample is older than
+ * `maxDelay`, or when [flush] is called. Writes are executed on `executor`. The total number of buffered and
+ * in-flight samples is limited to `capacity`: [add] blocks, and [offer] gives up, if the buffer is full.
+ *
+ * Example (Kotlin):
+ * ```
+ * TelemetryBatcher(client).use { batcher ->
+ *     batcher.add(device.id, mapOf("vibration" to 12.3))
+ * }
+ * ```
+ *
+ * @param writer       function to write one batch of a device (JSON array, see above)
+ * @param maxBatchSize number of samples of one device that trigger a write
+ * @param maxDelay     maximum time a sample is buffered before it is written
+ * @param capacity     maximum number of buffered and in-flight samples
+ * @param executor     executor to run the writes; if null, a single thread executor is created and shut down on
+ *                     [close]
+ */
+class TelemetryBatcher @JvmOverloads constructor(
+    private val writer: (DeviceId, JsonNode) -> Unit,
+    val maxBatchSize: Int = 500,
+    val maxDelay: Duration = Duration.ofSeconds(1),
+    val capacity: Int = 100_000,
+    executor: ExecutorService? = null
+) : Closeable {
+
+    /**
+     * Create a batcher that writes to the `CLIENT_SCOPE` telemetry of the devices via the given client.
+     *
+     * @see TelemetryBatcher
+     */
+    @JvmOverloads
+    constructor(
+        client: ExtRestClient,
+        maxBatchSize: Int = 500,
+        maxDelay: Duration = Duration.ofSeconds(1),
+        capacity: Int = 100_000,
+        executor: ExecutorService? = null
+    ) : this(
+        { deviceId, batch -> client.saveEntityTelemetry(deviceId, Scope.CLIENT_SCOPE.name, batch) },
+        maxBatchSize, maxDelay, capacity, executor
+    )
+
+    /**
+     * Create a batcher that writes to the `CLIENT_SCOPE` telemetry of the devices via the sessions of the given pool.
+     *
+     * @see TelemetryBatcher
+     */
+    @JvmOverloads
+    constructor(
+        pool: TbSessionPool,
+        maxBatchSize: Int = 500,
+        maxDelay: Duration = Duration.ofSeconds(1),
+        capacity: Int = 100_000,
+        executor: ExecutorService? = null
+    ) : this(
+        { deviceId, batch -> pool.withSession { it.saveEntityTelemetry(deviceId, Scope.CLIENT_SCOPE.name, batch) } },
+        maxBatchSize, maxDelay, capacity, executor
+    )
+
+    companion object {
+        private val log = KotlinLogging.logger {}
+        private val mapper = ObjectMapper()
+    }
+
+    private class Sample(val ts: Long, val values: Map<String, Any?>)
+
+    private class DeviceBuffer(val createdAt: Long) {
+        val samples = ArrayList<Sample>()
+    }
+
+    init {
+        require(maxBatchSize > 0) { "maxBatchSize must be positive, but was $maxBatchSize" }
+        require(capacity >= maxBatchSize) { "capacity ($capacity) must not be smaller than maxBatchSize ($maxBatchSize)" }
+    }
+
+    private val ownsExecutor = executor == null
+    private val executor: ExecutorService = executor ?: Executors.newSingleThreadExecutor { r ->
+        Thread(r, "telemetry-batcher").apply { isDaemon = true }
+    }
+
+    private val buffers = HashMap<DeviceId, DeviceBuffer>()
+    private val permits = Semaphore(capacity)
+
+    private val writtenSamples = AtomicLong()
+    private val failedSamples = AtomicLong()
+
+    @Volatile
+    private var closed = false
+
+    private val scheduler = Executors.newSingleThreadScheduledExecutor { r ->
+        Thread(r, "telemetry-batcher-timer").apply { isDaemon = true }
+    }.also {
+        val period = maxOf(10, maxDelay.toMillis() / 2)
+        it.scheduleAtFixedRate({ flushExpired() }, period, period, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Add a telemetry sample. Blocks, if the buffer is full, until enough samples have been written.
+     *
+     * @param deviceId ThingsBoard device ID
+     * @param values   telemetry values (keys: telemetry names)
+     * @param ts       timestamp of the sample in epoch ms
+     */
+    @JvmOverloads
+    fun add(deviceId: DeviceId, values: Map<String, Any?>, ts: Long = System.currentTimeMillis()) {
+        check(!closed) { "TelemetryBatcher has been closed" }
+        permits.acquire()
+        append(deviceId, Sample(ts, values))
+    }
+
+    /**
+     * Add a telemetry sample, if there is space in the buffer within the given timeout.
+     *
+     * @return true, if the sample has been added, false if the buffer was full
+     */
+    @JvmOverloads
+    fun offer(
+        deviceId: DeviceId,
+        values: Map<String, Any?>,
+        ts: Long = System.currentTimeMillis(),
+        timeout: Duration = Duration.ZERO
+    ): Boolean {
+        check(!closed) { "TelemetryBatcher has been closed" }
+        if (!permits.tryAcquire(timeout.toMillis(), TimeUnit.MILLISECONDS)) return false
+        append(deviceId, Sample(ts, values))
+        return true
+    }
+
+    /**
+     * Write all buffered samples.
+     *
+     * @return future that completes when all writes triggered by this call have finished
+     */
+    fun flush(): CompletableFuture<Void> {
+        val batches = synchronized(buffers) {
+            buffers.map { (id, buffer) -> id to buffer.samples }.also { buffers.clear() }
+        }
+        return CompletableFuture.allOf(*batches.map { (id, samples) -> submit(id, samples) }.toTypedArray())
+    }
+
+    /** Number of samples that are buffered or currently being written. */
+    fun pending(): Int = capacity - permits.availablePermits()
+
+    /** Number of samples that have been written successfully. */
+    fun writtenSamples(): Long = writtenSamples.get()
+
+    /** Number of samples that have been dropped because their write failed. */
+    fun failedSamples(): Long = failedSamples.get()
+
+    /** Write all buffered samples and stop the batcher. Waits until all writes have finished. */
+    override fun close() {
+        synchronized(buffers) {
+            if (closed) return
+            closed = true
+        }
+        scheduler.shutdown()
+        flush().join()
+        if (ownsExecutor) {
+            executor.shutdown()
+        }
+    }
+
+    private fun append(deviceId: DeviceId, sample: Sample) {
+        val full = synchronized(buffers) {
+            if (closed) {
+                permits.release()
+                throw IllegalStateException("TelemetryBatcher has been closed")
+            }
+            val buffer = buffers.getOrPut(deviceId) { DeviceBuffer(System.currentTimeMillis()) }
+            buffer.samples.add(sample)
+            if (buffer.samples.size >= maxBatchSize) buffers.remove(deviceId)!!.samples else null
+        }
+        full?.let { submit(deviceId, it) }
+    }
+
+    private fun flushExpired() {
+        val threshold = System.currentTimeMillis() - maxDelay.toMillis()
+        val expired = synchronized(buffers) {
+            val ids = buffers.filterValues { it.createdAt <= threshold }.keys
+            ids.map { it to buffers.remove(it)!!.samples }
+        }
+        expired.forEach { (id, samples) -> submit(id, samples) }
+    }
+
+    private fun submit(deviceId: DeviceId, samples: List<Sample>): CompletableFuture<Void> {
+        return try {
+            CompletableFuture.runAsync({ write(deviceId, samples) }, executor)
+        } catch (e: RejectedExecutionException) {
+            failedSamples.addAndGet(samples.size.toLong())
+            permits.release(samples.size)
+            log.error(e) { "Failed to write ${samples.size} telemetry samples of device $deviceId" }
+            CompletableFuture.completedFuture(null)
+        }
+    }
+
+    private fun write(deviceId: DeviceId, samples: List<Sample>) {
+        try {
+            val batch = mapper.createArrayNode()
+            samples.forEach {
+                batch.addObject()
+                    .put("ts", it.ts)
+                    .set<JsonNode>("values", mapper.valueToTree(it.values))
+            }
+            writer(deviceId, batch)
+            writtenSamples.addAndGet(samples.size.toLong())
+            log.debug { "Wrote ${samples.size} telemetry samples of device $deviceId" }
+        } catch (e: Exception) {
+            failedSamples.addAndGet(samples.size.toLong())
+            log.error(e) { "Failed to write ${samples.size} telemetry samples of device $deviceId" }
+        } finally {
+            permits.release(samples.size)
+        }
+    }
+}
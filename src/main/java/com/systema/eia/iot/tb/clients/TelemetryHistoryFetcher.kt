@@ -0,0 +1,148 @@
+package com.systema.eia.iot.tb.clients
+
+import com.systema.eia.iot.tb.ws.AttrUpdate
+import mu.KotlinLogging
+import org.thingsboard.server.common.data.id.EntityId
+import org.thingsboard.server.common.data.kv.Aggregation
+import org.thingsboard.server.common.data.page.SortOrder
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Consumer
+
+/**
+ * Downloader for long time series histories. A single [ExtRestClient.getTimeseries] call is limited to `limit` values
+ * per key and tends to time out for long time ranges. Instead, the time range is split into slices, which are fetched
+ * concurrently and passed to a consumer in timestamp order.
+ *
+ * The slice length adapts to the data density: a slice, for which ThingsBoard returns `limit` values of any key (i.e.
+ * the result may be truncated), is split in halves and fetched again, and subsequent slices are shortened
+ * accordingly. Slices with few values let the slice length grow again, up to `maxSliceLength`.
+ *
+ * Example (Kotlin):
+ * ```
+ * val fetcher = TelemetryHistoryFetcher(restClient, parallelism = 16)
+ * fetcher.fetch(deviceId, listOf("x", "y", "z"), yearAgo, now) { writer.write(it) }
+ * ```
+ *
+ * @property client         ThingsBoard REST client
+ * @property sliceLength    initial length of the time slices
+ * @property maxSliceLength maximum length of the time slices
+ * @property limit          maximum number of values per key and request
+ * @property parallelism    maximum number of concurrent requests
+ */
+class TelemetryHistoryFetcher @JvmOverloads constructor(
+    val client: ExtRestClient,
+    val sliceLength: Duration = Duration.ofHours(1),
+    val maxSliceLength: Duration = Duration.ofDays(7),
+    val limit: Int = 10_000,
+    val parallelism: Int = 8
+) {
+
+    companion object {
+        private val log = KotlinLogging.logger {}
+    }
+
+    init {
+        require(!sliceLength.isNegative && !sliceLength.isZero) { "sliceLength must be positive" }
+        require(limit > 1) { "limit must be greater than 1" }
+        require(parallelism > 0) { "parallelism must be positive" }
+    }
+
+    private val currentSliceMs = AtomicLong(sliceLength.toMillis())
+    private val maxSliceMs = maxOf(maxSliceLength.toMillis(), sliceLength.toMillis())
+
+    /**
+     * Fetch the time series values of the given keys in the time range `[startTs, endTs)` and pass them to `consumer`,
+     * ordered by timestamp (values with the same timestamp are ordered by key as given in `keys`). The consumer is
+     * called from the calling thread.
+     *
+     * To resume an interrupted download, pass the timestamp of the last processed value + 1 as `startTs`.
+     *
+     * @param entityId entity ID, e.g. a device ID
+     * @param keys     time series keys
+     * @param startTs  start of the time range (epoch ms, inclusive)
+     * @param endTs    end of the time range (epoch ms, exclusive)
+     * @param consumer consumer of the values
+     * @return number of values passed to the consumer
+     */
+    fun fetch(entityId: EntityId, keys: List<String>, startTs: Long, endTs: Long, consumer: Consumer<AttrUpdate>): Long {
+        require(startTs <= endTs) { "startTs must not be after endTs" }
+        if (keys.isEmpty() || startTs == endTs) return 0
+
+        val executor = Executors.newFixedThreadPool(parallelism)
+        val window = ArrayDeque<CompletableFuture<List<AttrUpdate>>>()
+        var next = startTs
+        var count = 0L
+
+        fun submit() {
+            val sliceStart = next
+            val sliceEnd = minOf(endTs, sliceStart + currentSliceMs.get())
+            next = sliceEnd
+            window.addLast(CompletableFuture.supplyAsync({ fetchSlice(entityId, keys, sliceStart, sliceEnd) }, executor))
+        }
+
+        try {
+            while (next < endTs && window.size < parallelism) submit()
+            while (window.isNotEmpty()) {
+                val values = try {
+                    window.removeFirst().join()
+                } catch (e: CompletionException) {
+                    throw e.cause ?: e
+                }
+                if (next < endTs) submit()
+
+                values.forEach { consumer.accept(it) }
+                count += values.size
+            }
+        } finally {
+            window.forEach { it.cancel(true) }
+            executor.shutdownNow()
+        }
+
+        log.debug { "Fetched $count values of $keys of $entityId in [$startTs, $endTs)" }
+        return count
+    }
+
+    /** Fetch the slice `[startTs, endTs)`, splitting it as long as the result might be truncated. */
+    private fun fetchSlice(entityId: EntityId, keys: List<String>, startTs: Long, endTs: Long): List<AttrUpdate> {
+        val entries = client.getTimeseries(
+            entityId, keys, 0L, Aggregation.NONE, SortOrder.Direction.ASC, startTs, endTs, limit, true
+        ) ?: emptyList()
+
+        val maxPerKey = entries.groupingBy { it.key }.eachCount().values.maxOrNull() ?: 0
+        if (maxPerKey >= limit && endTs - startTs > 1) {
+            val middle = startTs + (endTs - startTs) / 2
+            currentSliceMs.accumulateAndGet(middle - startTs) { current, split -> minOf(current, split) }
+            log.trace { "Splitting slice [$startTs, $endTs) of $entityId" }
+            return fetchSlice(entityId, keys, startTs, middle) + fetchSlice(entityId, keys, middle, endTs)
+        }
+        if (maxPerKey < limit / 4) {
+            currentSliceMs.updateAndGet { minOf(maxSliceMs, maxOf(it, (endTs - startTs) * 2)) }
+        }
+
+        val keyOrder = keys.withIndex().associate { it.value to it.index }
+        return entries
+            // the end of the time range is exclusive
+            .filter { it.ts < endTs }
+            .sortedWith(compareBy({ it.ts }, { keyOrder[it.key] }))
+            .map { AttrUpdate(it.key, it.ts, it.value) }
+    }
+}
+
+/**
+ * Fetch the time series values of the given keys in the time range `[startTs, endTs)` in timestamp order, see
+ * [TelemetryHistoryFetcher.fetch].
+ *
+ * @return number of values passed to the consumer
+ */
+fun ExtRestClient.fetchTelemetryHistory(
+    entityId: EntityId,
+    keys: List<String>,
+    startTs: Long,
+    endTs: Long,
+    parallelism: Int = 8,
+    consumer: (AttrUpdate) -> Unit
+): Long = TelemetryHistoryFetcher(this, parallelism = parallelism).fetch(entityId, keys, startTs, endTs, consumer)
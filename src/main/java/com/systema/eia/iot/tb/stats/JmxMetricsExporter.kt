@@ -0,0 +1,87 @@
+package com.systema.eia.iot.tb.stats
+
+import mu.KotlinLogging
+import java.io.Closeable
+import java.lang.management.ManagementFactory
+import java.util.concurrent.CopyOnWriteArrayList
+import javax.management.MBeanServer
+import javax.management.ObjectName
+
+/** JMX view of the metrics of one endpoint, see [JmxMetricsExporter]. */
+interface EndpointMetricsMXBean {
+    val endpoint: String
+    val requests: Long
+    val errors: Long
+    val p50Micros: Long
+    val p99Micros: Long
+    val p999Micros: Long
+    val maxMicros: Long
+    val bytesOut: Long
+    val bytesIn: Long
+}
+
+private class EndpointMetricsBean(private val metrics: EndpointMetrics) : EndpointMetricsMXBean {
+    override val endpoint get() = metrics.endpoint
+    override val requests get() = metrics.requests.get()
+    override val errors get() = metrics.errors.get()
+    override val p50Micros get() = metrics.latency.snapshot().percentile(0.5)
+    override val p99Micros get() = metrics.latency.snapshot().percentile(0.99)
+    override val p999Micros get() = metrics.latency.snapshot().percentile(0.999)
+    override val maxMicros get() = metrics.latency.snapshot().maxMicros
+    override val bytesOut get() = metrics.bytesOut.get()
+    override val bytesIn get() = metrics.bytesIn.get()
+}
+
+/**
+ * Publishes the endpoint metrics of an [InMemoryMetricsRegistry] as MXBeans named
+ * `<domain>:type=Endpoint,name="<endpoint>"`, e.g. to be inspected with JConsole or scraped by a JMX exporter.
+ * Endpoints used later are published as soon as they are used for the first time.
+ *
+ * @property registry    metrics to publish
+ * @property domain      JMX domain of the beans
+ * @property mbeanServer JMX server, by default the platform MBean server
+ */
+class JmxMetricsExporter @JvmOverloads constructor(
+    val registry: InMemoryMetricsRegistry,
+    val domain: String = "com.systema.eia.iot.tb",
+    val mbeanServer: MBeanServer = ManagementFactory.getPlatformMBeanServer()
+) : Closeable {
+
+    companion object {
+        private val log = KotlinLogging.logger {}
+    }
+
+    private val names = CopyOnWriteArrayList<ObjectName>()
+
+    @Volatile
+    private var closed = false
+
+    init {
+        registry.onNewEndpoint { register(it) }
+        registry.endpoints.forEach { register(it) }
+    }
+
+    /** JMX name of the bean of an endpoint. */
+    fun objectName(endpoint: String) = ObjectName("$domain:type=Endpoint,name=${ObjectName.quote(endpoint)}")
+
+    @Synchronized
+    private fun register(metrics: EndpointMetrics) {
+        if (closed) return
+        val name = objectName(metrics.endpoint)
+        if (mbeanServer.isRegistered(name)) return
+        try {
+            mbeanServer.registerMBean(EndpointMetricsBean(metrics), name)
+            names.add(name)
+        } catch (e: Exception) {
+            log.warn(e) { "Can not register MBean $name" }
+        }
+    }
+
+    /** Unregister all beans. */
+    @Synchronized
+    override fun close() {
+        closed = true
+        names.forEach { runCatching { mbeanServer.unregisterMBean(it) } }
+        names.clear()
+    }
+}
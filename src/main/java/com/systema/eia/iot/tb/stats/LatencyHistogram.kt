@@ -0,0 +1,87 @@
+package com.systema.eia.iot.tb.stats
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Lock-free latency histogram with logarithmic buckets in the style of HdrHistogram: values are recorded in
+ * microseconds with a relative precision of about 3 % (32 linear sub-buckets per power of two) from 1 µs up to about
+ * 12 days. Larger values are recorded in the highest bucket.
+ *
+ * Recording is a single atomic increment, so the histogram can be shared by all threads of a client.
+ */
+class LatencyHistogram {
+
+    companion object {
+        private const val SUB_BUCKET_BITS = 5
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+        private const val LINEAR_LIMIT = 2 * SUB_BUCKETS
+        private const val MAX_BITS = 40
+
+        private val BUCKETS = LINEAR_LIMIT + (MAX_BITS - SUB_BUCKET_BITS - 1) * SUB_BUCKETS
+
+        internal fun bucketOf(micros: Long): Int {
+            if (micros < LINEAR_LIMIT) return maxOf(0, micros.toInt())
+            val magnitude = 63 - java.lang.Long.numberOfLeadingZeros(micros)
+            if (magnitude >= MAX_BITS) return BUCKETS - 1
+            val shift = magnitude - SUB_BUCKET_BITS
+            val sub = (micros ushr shift).toInt() - SUB_BUCKETS
+            return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + sub
+        }
+
+        /** Highest value (in µs), which is recorded in a bucket. */
+        internal fun highestValueOf(bucket: Int): Long {
+            if (bucket < LINEAR_LIMIT) return bucket.toLong()
+            val shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1
+            val sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS
+            return ((sub.toLong() + 1) shl shift) - 1
+        }
+    }
+
+    private val counts = AtomicLongArray(BUCKETS)
+
+    /** Record a latency in nanoseconds. */
+    fun recordNanos(nanos: Long) {
+        counts.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMicros(nanos)))
+    }
+
+    /** Copy the current counts, e.g. to calculate several percentiles of the same state. */
+    fun snapshot(): Snapshot = Snapshot(LongArray(BUCKETS) { counts.get(it) })
+
+    /** Reset all counts. */
+    fun reset() {
+        for (i in 0 until BUCKETS) counts.set(i, 0)
+    }
+
+    /** Immutable copy of the histogram counts. */
+    class Snapshot internal constructor(private val counts: LongArray) {
+
+        /** number of recorded values */
+        val count: Long = counts.sum()
+
+        /** maximum recorded value in µs (upper bound of its bucket), 0 if empty */
+        val maxMicros: Long
+            get() = counts.indexOfLast { it > 0 }.let { if (it < 0) 0 else highestValueOf(it) }
+
+        /** mean of the recorded values in µs (based on the bucket bounds), 0 if empty */
+        val meanMicros: Double
+            get() = if (count == 0L) 0.0
+            else counts.indices.sumOf { counts[it].toDouble() * highestValueOf(it) } / count
+
+        /**
+         * Value in µs below or equal to which `quantile` of the recorded values fall (upper bound of the bucket),
+         * e.g. `percentile(0.99)` for the 99th percentile; 0 if empty.
+         */
+        fun percentile(quantile: Double): Long {
+            require(quantile in 0.0..1.0) { "quantile must be in [0, 1]" }
+            if (count == 0L) return 0
+            val rank = maxOf(1L, Math.ceil(quantile * count).toLong())
+            var seen = 0L
+            for (i in counts.indices) {
+                seen += counts[i]
+                if (seen >= rank) return highestValueOf(i)
+            }
+            return maxMicros
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.systema.eia.iot.tb.stats
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Receiver of request metrics, e.g. of [com.systema.eia.iot.tb.clients.MetricsInterceptor]. Implement it to forward
+ * the metrics to a monitoring system; [InMemoryMetricsRegistry] keeps them in memory.
+ */
+interface MetricsRegistry {
+
+    /**
+     * Record a completed request.
+     *
+     * @param endpoint     endpoint name, e.g. `POST /api/plugins/telemetry/{entityType}/{entityId}/timeseries/{scope}`
+     * @param latencyNanos latency of the request
+     * @param error        true, if the request failed
+     * @param bytesOut     size of the request body
+     */
+    fun recordRequest(endpoint: String, latencyNanos: Long, error: Boolean, bytesOut: Long)
+
+    /** Record the size of a response body, which is known only after it has been read. */
+    fun recordBytesIn(endpoint: String, bytesIn: Long)
+}
+
+/**
+ * Metrics of one endpoint at a point in time.
+ *
+ * @property endpoint   endpoint name
+ * @property requests   number of requests
+ * @property errors     number of failed requests
+ * @property p50Micros  median latency in µs
+ * @property p99Micros  99th percentile of the latency in µs
+ * @property p999Micros 99.9th percentile of the latency in µs
+ * @property maxMicros  maximum latency in µs
+ * @property bytesOut   total size of the request bodies
+ * @property bytesIn    total size of the response bodies
+ */
+data class EndpointSnapshot(
+    val endpoint: String,
+    val requests: Long,
+    val errors: Long,
+    val p50Micros: Long,
+    val p99Micros: Long,
+    val p999Micros: Long,
+    val maxMicros: Long,
+    val bytesOut: Long,
+    val bytesIn: Long
+)
+
+/** Thread-safe counters and latency histogram of one endpoint. */
+class EndpointMetrics internal constructor(val endpoint: String) {
+    internal val requests = AtomicLong()
+    internal val errors = AtomicLong()
+    internal val bytesOut = AtomicLong()
+    internal val bytesIn = AtomicLong()
+
+    /** latency histogram of all requests */
+    val latency = LatencyHistogram()
+
+    /** Current metrics of the endpoint. */
+    fun snapshot(): EndpointSnapshot {
+        val histogram = latency.snapshot()
+        return EndpointSnapshot(
+            endpoint,
+            requests.get(),
+            errors.get(),
+            histogram.percentile(0.5),
+            histogram.percentile(0.99),
+            histogram.percentile(0.999),
+            histogram.maxMicros,
+            bytesOut.get(),
+            bytesIn.get()
+        )
+    }
+
+    internal fun reset() {
+        requests.set(0)
+        errors.set(0)
+        bytesOut.set(0)
+        bytesIn.set(0)
+        latency.reset()
+    }
+}
+
+/**
+ * [MetricsRegistry] keeping the metrics of all endpoints in memory. Use [snapshot] to query them, or
+ * [JmxMetricsExporter] to publish them via JMX.
+ */
+class InMemoryMetricsRegistry : MetricsRegistry {
+
+    private val metrics = ConcurrentHashMap<String, EndpointMetrics>()
+    private val listeners = CopyOnWriteArrayList<(EndpointMetrics) -> Unit>()
+
+    /** Metrics of an endpoint, created on first use. */
+    fun endpoint(endpoint: String): EndpointMetrics {
+        metrics[endpoint]?.let { return it }
+        var created: EndpointMetrics? = null
+        val result = metrics.computeIfAbsent(endpoint) { EndpointMetrics(it).also { created = it } }
+        created?.let { newMetrics -> listeners.forEach { it(newMetrics) } }
+        return result
+    }
+
+    /** Metrics of all endpoints used so far. */
+    val endpoints: Collection<EndpointMetrics>
+        get() = metrics.values
+
+    /** Register a listener, which is called for each endpoint used for the first time. */
+    fun onNewEndpoint(listener: (EndpointMetrics) -> Unit) {
+        listeners.add(listener)
+    }
+
+    override fun recordRequest(endpoint: String, latencyNanos: Long, error: Boolean, bytesOut: Long) {
+        val endpointMetrics = endpoint(endpoint)
+        endpointMetrics.requests.incrementAndGet()
+        if (error) endpointMetrics.errors.incrementAndGet()
+        if (bytesOut > 0) endpointMetrics.bytesOut.addAndGet(bytesOut)
+        endpointMetrics.latency.recordNanos(latencyNanos)
+    }
+
+    override fun recordBytesIn(endpoint: String, bytesIn: Long) {
+        if (bytesIn > 0) endpoint(endpoint).bytesIn.addAndGet(bytesIn)
+    }
+
+    /** Current metrics of all endpoints, sorted by endpoint name. */
+    fun snapshot(): List<EndpointSnapshot> = metrics.values.map { it.snapshot() }.sortedBy { it.endpoint }
+
+    /** Reset the metrics of all endpoints. */
+    fun reset() {
+        metrics.values.forEach { it.reset() }
+    }
+}
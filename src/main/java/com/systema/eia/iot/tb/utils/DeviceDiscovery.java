@@ -1,6 +1,8 @@
 package com.systema.eia.iot.tb.utils;
 
+import com.systema.eia.iot.tb.clients.AttributeTable;
 import com.systema.eia.iot.tb.clients.ExtRestClient;
+import com.systema.eia.iot.tb.clients.TbSessionPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.thingsboard.server.common.data.Device;
@@ -11,6 +13,7 @@ import java.util.List;
 import java.util.TimerTask;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 public class DeviceDiscovery extends TimerTask {
 
@@ -18,6 +21,7 @@ public class DeviceDiscovery extends TimerTask {
 
     private final String tbDevProfile;
     private final ExtRestClient restClient;
+    private final TbSessionPool pool;
     private final Consumer<List<Device>> activeAction;
     private final Consumer<List<Device>> inactiveAction;
 
@@ -39,6 +43,7 @@ public class DeviceDiscovery extends TimerTask {
         log.info("Connecting to ThingsBoard at " + tbUrl + " with user: " + tbUser + " ...");
         restClient = new ExtRestClient(tbUrl, tbUser, tbPw);
         restClient.login(tbUser, tbPw);
+        pool = null;
         log.info("Login successful!");
     }
 
@@ -57,11 +62,32 @@ public class DeviceDiscovery extends TimerTask {
         this.activeAction = activeAction;
         this.inactiveAction = inactiveAction;
         restClient = client;
+        pool = null;
     }
 
     /**
-     * Query ThingsBoard for devices of the given profile. Each device that is found is checked for inactivity (see
-     * {@link #isActive(Device)}) and returned as element of the active or inactive devices list, respectively.
+     * Create device discovery class using a session of a {@link TbSessionPool}.
+     *
+     * @param pool           - session pool; the discovery takes one session, which is returned by {@link
+     *                       #closeTbRestClient()}
+     * @param tbDevProfile   - ThingsBoard device profile name, used for filtering devices during discovery
+     * @param activeAction   - function acting on discovered active devices
+     * @param inactiveAction - function acting on discovered inactive devices
+     */
+    public DeviceDiscovery(TbSessionPool pool, String tbDevProfile, Consumer<List<Device>> activeAction,
+            Consumer<List<Device>> inactiveAction) {
+        this.tbDevProfile = tbDevProfile;
+        this.activeAction = activeAction;
+        this.inactiveAction = inactiveAction;
+        this.pool = pool;
+        restClient = pool.session();
+    }
+
+    /**
+     * Query ThingsBoard for devices of the given profile. The server scope {@code active} attributes of all devices
+     * found are fetched with a single request (see {@link ExtRestClient#getAttributes(java.util.Collection, Scope,
+     * List)}), and each device is returned as element of the active or inactive devices list, respectively; a device
+     * without {@code active} attribute is inactive.
      * <p>
      * This task is designed to run periodically, e.g. by using {@link java.util.concurrent.ScheduledExecutorService#scheduleAtFixedRate(Runnable,
      * long, long, TimeUnit)}.
@@ -77,10 +103,14 @@ public class DeviceDiscovery extends TimerTask {
         if (deviceList.isEmpty()) {
             log.debug("No devices found!");
         } else {
+            // fetch the active attribute of all devices at once
+            AttributeTable attributes = restClient.getAttributes(
+                    deviceList.stream().map(Device::getId).collect(Collectors.toList()), Scope.SERVER_SCOPE,
+                    List.of(CommonDeviceAttributes.active.name));
             for (Device device : deviceList) {
                 String deviceName = device.getName();
                 log.debug("Found device: " + deviceName);
-                if (isActive(device)) {
+                if (Boolean.TRUE.equals(attributes.get(device.getId(), CommonDeviceAttributes.active.name))) {
                     activeDevices.add(device);
                 } else {
                     inactiveDevices.add(device);
@@ -92,10 +122,14 @@ public class DeviceDiscovery extends TimerTask {
     }
 
     /**
-     * Close REST client connection.
+     * Close REST client connection, or return the session to the {@link TbSessionPool}.
      */
     public void closeTbRestClient() {
-        restClient.close();
+        if (pool != null) {
+            pool.release(restClient);
+        } else {
+            restClient.close();
+        }
     }
 
     /**
@@ -0,0 +1,104 @@
+package com.systema.eia.iot.tb.utils
+
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.util.ByteArrayBuilder
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import java.math.BigDecimal
+import java.math.BigInteger
+
+/**
+ * Serializes telemetry and attribute payloads to JSON bytes with Jackson's streaming [JsonGenerator], without building
+ * a [JsonNode] tree first (as `ObjectMapper.convertValue(map, JsonNode::class.java)` does). The output buffer is
+ * reused per thread.
+ *
+ * Maps, collections, arrays, strings, numbers, booleans, enums, [TelemetryRecord]s and [JsonNode]s are written
+ * directly; other values are serialized by a default [ObjectMapper].
+ */
+object JsonStreamWriter {
+
+    private val factory = JsonFactory(ObjectMapper())
+
+    private val buffers = ThreadLocal.withInitial { ByteArrayBuilder(1024) }
+
+    /** Serialize a map, e.g. telemetry values or attributes, to a JSON object. */
+    @JvmStatic
+    fun write(map: Map<String, Any?>): ByteArray = write { writeMap(it, map) }
+
+    /** Serialize a telemetry record. */
+    @JvmStatic
+    fun write(record: TelemetryRecord): ByteArray = write { writeRecord(it, record) }
+
+    /** Serialize several telemetry records to a JSON array. */
+    @JvmStatic
+    fun write(records: Collection<TelemetryRecord>): ByteArray = write { gen ->
+        gen.writeStartArray()
+        records.forEach { writeRecord(gen, it) }
+        gen.writeEndArray()
+    }
+
+    private inline fun write(content: (JsonGenerator) -> Unit): ByteArray {
+        val buffer = buffers.get()
+        try {
+            factory.createGenerator(buffer).use { content(it) }
+            return buffer.toByteArray()
+        } finally {
+            buffer.reset()
+        }
+    }
+
+    private fun writeRecord(gen: JsonGenerator, record: TelemetryRecord) {
+        if (record.ts == null) {
+            writeMap(gen, record.values)
+            return
+        }
+        gen.writeStartObject()
+        gen.writeNumberField("ts", record.ts)
+        gen.writeFieldName("values")
+        writeMap(gen, record.values)
+        gen.writeEndObject()
+    }
+
+    private fun writeMap(gen: JsonGenerator, map: Map<*, *>) {
+        gen.writeStartObject()
+        for ((key, value) in map) {
+            gen.writeFieldName(key.toString())
+            writeValue(gen, value)
+        }
+        gen.writeEndObject()
+    }
+
+    private fun writeValue(gen: JsonGenerator, value: Any?) {
+        when (value) {
+            null -> gen.writeNull()
+            is String -> gen.writeString(value)
+            is Boolean -> gen.writeBoolean(value)
+            is Int -> gen.writeNumber(value)
+            is Long -> gen.writeNumber(value)
+            is Double -> gen.writeNumber(value)
+            is Float -> gen.writeNumber(value)
+            is Short -> gen.writeNumber(value)
+            is Byte -> gen.writeNumber(value.toInt())
+            is BigDecimal -> gen.writeNumber(value)
+            is BigInteger -> gen.writeNumber(value)
+            is CharSequence -> gen.writeString(value.toString())
+            is Enum<*> -> gen.writeString(value.name)
+            is Map<*, *> -> writeMap(gen, value)
+            is TelemetryRecord -> writeRecord(gen, value)
+            // before Iterable, since JsonNodes are iterable
+            is JsonNode -> gen.writeTree(value)
+            is Iterable<*> -> {
+                gen.writeStartArray()
+                value.forEach { writeValue(gen, it) }
+                gen.writeEndArray()
+            }
+            is Array<*> -> {
+                gen.writeStartArray()
+                value.forEach { writeValue(gen, it) }
+                gen.writeEndArray()
+            }
+            else -> gen.writeObject(value)
+        }
+    }
+}
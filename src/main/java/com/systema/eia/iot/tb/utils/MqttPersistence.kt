@@ -0,0 +1,283 @@
+package com.systema.eia.iot.tb.utils
+
+import mu.KotlinLogging
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence
+import org.eclipse.paho.client.mqttv3.MqttPersistable
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.*
+import java.util.zip.CRC32
+
+/**
+ * Persistence of in-flight messages of a [SimpleMqttClient], see its `persistence` parameter.
+ *
+ * Paho persists only messages with QoS 1 and 2, so clients, which publish and subscribe with QoS 0 only, do not need a
+ * durable persistence.
+ */
+object MqttPersistence {
+
+    /** Directory of the [file] persistence by default: `paho-tcp` in the working directory. */
+    @JvmStatic
+    val defaultDirectory: File
+        get() = File(System.getProperty("user.dir"), "paho-tcp")
+
+    /** In-memory persistence: no file I/O, but in-flight messages are lost with the application. */
+    @JvmStatic
+    fun memory(): MqttClientPersistence = MemoryPersistence()
+
+    /** Paho file persistence: one directory per client below `directory` and one file per in-flight message. */
+    @JvmStatic
+    @JvmOverloads
+    fun file(directory: File = defaultDirectory): MqttClientPersistence = MqttDefaultFilePersistence(directory.path)
+
+    /**
+     * Persistence used if none is given: [memory], if only QoS 0 is used, otherwise [file] in [defaultDirectory].
+     */
+    @JvmStatic
+    fun default(pubQoS: Int, subQoS: Int): MqttClientPersistence =
+        if (pubQoS == 0 && subQoS == 0) memory() else file()
+}
+
+/**
+ * Persistence of the in-flight messages of many MQTT clients in a single file, e.g. for simulators with thousands of
+ * devices, which would otherwise create a directory per client and a file per message.
+ *
+ * The messages are kept in memory and changes are appended to `file`, which is replayed when the store is opened
+ * again; the messages of a client are recovered by the next client with the same client ID and server URI, so pass a
+ * stable client ID to the clients. The file is compacted, as soon as it exceeds `compactionThreshold` bytes and is more
+ * than twice as large as the stored messages.
+ *
+ * Example (Kotlin):
+ * ```
+ * val store = SharedFilePersistence(File("devices.mqtt"))
+ * val clients = devices.map { device ->
+ *     SimpleMqttClient(
+ *         brokerUrl = url, username = device.token, pubQoS = 1, persistence = store.newClientPersistence(),
+ *         clientId = "simulator-${device.name}"
+ *     )
+ * }
+ * ```
+ *
+ * @property file                log file of the store, created if missing
+ * @property syncWrites          force each change to the storage device; safe against power loss but slow
+ * @property compactionThreshold minimum file size in bytes to trigger a compaction
+ */
+class SharedFilePersistence @JvmOverloads constructor(
+    val file: File,
+    val syncWrites: Boolean = false,
+    val compactionThreshold: Long = 4L * 1024 * 1024
+) : Closeable {
+
+    companion object {
+        private val log = KotlinLogging.logger {}
+
+        // record layout: length (of the following fields) | crc | op | namespace | key | data
+        private const val HEADER_SIZE = 8
+        private const val OP_PUT: Byte = 1
+        private const val OP_REMOVE: Byte = 2
+        private const val OP_CLEAR: Byte = 3
+    }
+
+    // persisted messages by client namespace and key, guarded by this
+    private val namespaces = HashMap<String, MutableMap<String, ByteArray>>()
+    private val openNamespaces = HashSet<String>()
+    private var channel: FileChannel
+    private var fileBytes = 0L
+
+    // size of the records of the current messages, i.e. of the compacted file
+    private var storedBytes = 0L
+
+    init {
+        file.absoluteFile.parentFile?.mkdirs()
+        if (file.exists()) replay()
+        channel = compact()
+    }
+
+    /** Number of persisted messages of all clients. */
+    val size: Int
+        @Synchronized get() = namespaces.values.sumOf { it.size }
+
+    /** Create the persistence for a client. Each client requires its own persistence. */
+    fun newClientPersistence(): MqttClientPersistence = ClientPersistence()
+
+    /** Close the file. The persistence of the clients can not be used afterwards. */
+    @Synchronized
+    override fun close() {
+        channel.force(true)
+        channel.close()
+    }
+
+    private inner class ClientPersistence : MqttClientPersistence {
+        private var namespace: String? = null
+
+        override fun open(clientId: String, serverURI: String) {
+            synchronized(this@SharedFilePersistence) {
+                val name = "$clientId@$serverURI"
+                if (!openNamespaces.add(name)) {
+                    throw MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE.toInt())
+                }
+                namespace = name
+            }
+        }
+
+        override fun close() {
+            synchronized(this@SharedFilePersistence) {
+                namespace?.let { openNamespaces.remove(it) }
+                namespace = null
+            }
+        }
+
+        override fun put(key: String, persistable: MqttPersistable) {
+            val payloadLength = if (persistable.payloadBytes != null) persistable.payloadLength else 0
+            val data = ByteArray(persistable.headerLength + payloadLength)
+            System.arraycopy(persistable.headerBytes, persistable.headerOffset, data, 0, persistable.headerLength)
+            persistable.payloadBytes?.let {
+                System.arraycopy(it, persistable.payloadOffset, data, persistable.headerLength, payloadLength)
+            }
+            change(OP_PUT, key, data)
+        }
+
+        override fun get(key: String): MqttPersistable? = synchronized(this@SharedFilePersistence) {
+            namespaces[checkOpen()]?.get(key)?.let { MqttPersistentData(key, it, 0, it.size, null, 0, 0) }
+        }
+
+        override fun remove(key: String) = change(OP_REMOVE, key, null)
+
+        override fun keys(): Enumeration<*> = synchronized(this@SharedFilePersistence) {
+            Collections.enumeration(namespaces[checkOpen()]?.keys?.toList() ?: listOf())
+        }
+
+        override fun clear() = change(OP_CLEAR, "", null)
+
+        override fun containsKey(key: String): Boolean = synchronized(this@SharedFilePersistence) {
+            namespaces[checkOpen()]?.containsKey(key) ?: false
+        }
+
+        private fun checkOpen(): String = namespace ?: throw MqttPersistenceException()
+
+        private fun change(op: Byte, key: String, data: ByteArray?) {
+            synchronized(this@SharedFilePersistence) {
+                val name = checkOpen()
+                if (apply(op, name, key, data)) {
+                    try {
+                        append(op, name, key, data)
+                    } catch (e: IOException) {
+                        throw MqttPersistenceException(e)
+                    }
+                }
+            }
+        }
+    }
+
+    /** Apply a change to the messages in memory; returns false, if nothing changed. */
+    private fun apply(op: Byte, namespace: String, key: String, data: ByteArray?): Boolean {
+        when (op) {
+            OP_PUT -> {
+                val previous = namespaces.getOrPut(namespace) { HashMap() }.put(key, data!!)
+                storedBytes += recordSize(namespace, key, data) - (previous?.let { recordSize(namespace, key, it) } ?: 0L)
+            }
+            OP_REMOVE -> {
+                val messages = namespaces[namespace] ?: return false
+                val previous = messages.remove(key) ?: return false
+                storedBytes -= recordSize(namespace, key, previous)
+                if (messages.isEmpty()) namespaces.remove(namespace)
+            }
+            OP_CLEAR -> {
+                val messages = namespaces.remove(namespace) ?: return false
+                storedBytes -= messages.entries.sumOf { (key, data) -> recordSize(namespace, key, data) }
+            }
+        }
+        return true
+    }
+
+    private fun append(op: Byte, namespace: String, key: String, data: ByteArray?) {
+        val record = encode(op, namespace, key, data)
+        while (record.hasRemaining()) channel.write(record)
+        if (syncWrites) channel.force(false)
+        fileBytes += record.limit()
+        if (fileBytes > compactionThreshold && fileBytes > 2 * storedBytes) {
+            channel.close()
+            channel = compact()
+        }
+    }
+
+    /** Size of the record of a message in the file, see [encode]. */
+    private fun recordSize(namespace: String, key: String, data: ByteArray): Long =
+        HEADER_SIZE + 1L + 2 + utf8Length(namespace) + 2 + utf8Length(key) + data.size
+
+    private fun utf8Length(s: String): Int =
+        if (s.all { it.code < 0x80 }) s.length else s.toByteArray(Charsets.UTF_8).size
+
+    private fun encode(op: Byte, namespace: String, key: String, data: ByteArray?): ByteBuffer {
+        val namespaceBytes = namespace.toByteArray(Charsets.UTF_8)
+        val keyBytes = key.toByteArray(Charsets.UTF_8)
+        val length = 1 + 2 + namespaceBytes.size + 2 + keyBytes.size + (data?.size ?: 0)
+        val buffer = ByteBuffer.allocate(HEADER_SIZE + length)
+        buffer.putInt(length).putInt(0).put(op)
+            .putShort(namespaceBytes.size.toShort()).put(namespaceBytes)
+            .putShort(keyBytes.size.toShort()).put(keyBytes)
+        data?.let { buffer.put(it) }
+        val crc = CRC32()
+        crc.update(buffer.array(), HEADER_SIZE, length)
+        buffer.putInt(4, crc.value.toInt())
+        return buffer.flip()
+    }
+
+    /** Read the changes of the file into memory, up to the first incomplete or corrupt record. */
+    private fun replay() {
+        DataInputStream(file.inputStream().buffered()).use { input ->
+            try {
+                while (true) {
+                    val length = input.readInt()
+                    val crc = input.readInt()
+                    if (length <= 0) break
+                    val record = ByteArray(length).also { input.readFully(it) }
+                    if (CRC32().apply { update(record) }.value.toInt() != crc) {
+                        log.warn { "Corrupt record in $file - ignoring the rest of the file" }
+                        break
+                    }
+                    val buffer = ByteBuffer.wrap(record)
+                    val op = buffer.get()
+                    val namespace = String(ByteArray(buffer.short.toInt()).also { buffer.get(it) }, Charsets.UTF_8)
+                    val key = String(ByteArray(buffer.short.toInt()).also { buffer.get(it) }, Charsets.UTF_8)
+                    val data = if (op == OP_PUT) ByteArray(buffer.remaining()).also { buffer.get(it) } else null
+                    apply(op, namespace, key, data)
+                }
+            } catch (e: EOFException) {
+                // torn record of the last write
+            }
+        }
+        if (namespaces.isNotEmpty()) log.info { "Recovered $size persisted MQTT messages from $file" }
+    }
+
+    /** Rewrite the file with the current messages only, and open it for appending. */
+    private fun compact(): FileChannel {
+        val tmp = File(file.absoluteFile.parentFile, "${file.name}.tmp")
+        fileBytes = 0
+        RandomAccessFile(tmp, "rw").use { out ->
+            out.setLength(0)
+            for ((namespace, messages) in namespaces) {
+                for ((key, data) in messages) {
+                    val record = encode(OP_PUT, namespace, key, data)
+                    while (record.hasRemaining()) out.channel.write(record)
+                    fileBytes += record.limit()
+                }
+            }
+            out.channel.force(true)
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        return RandomAccessFile(file, "rw").channel.also { it.position(it.size()) }
+    }
+}
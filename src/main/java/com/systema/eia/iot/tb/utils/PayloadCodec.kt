@@ -0,0 +1,68 @@
+package com.systema.eia.iot.tb.utils
+
+/**
+ * Encodes telemetry and attribute payloads of the device API, see
+ * [MQTT transport payload types](https://thingsboard.io/docs/user-guide/device-profiles/#mqtt-transport-type).
+ * The codec must match the transport payload type of the device profile.
+ */
+interface PayloadCodec {
+
+    /** Encode telemetry values, which ThingsBoard stores with the server time. */
+    fun encodeTelemetry(values: Map<String, Any?>): ByteArray
+
+    /** Encode a telemetry record. */
+    fun encodeTelemetry(record: TelemetryRecord): ByteArray
+
+    /**
+     * Encode several telemetry records into as few messages as the payload type allows; by default one message per
+     * record.
+     *
+     * @return messages to publish in order
+     */
+    fun encodeTelemetry(records: Collection<TelemetryRecord>): List<ByteArray> = records.map { encodeTelemetry(it) }
+
+    /** Encode client attributes. */
+    fun encodeAttributes(attributes: Map<String, Any?>): ByteArray
+}
+
+/** Compact JSON payloads, written by [JsonStreamWriter]. Default codec of the device payload type `JSON`. */
+object JsonPayloadCodec : PayloadCodec {
+
+    override fun encodeTelemetry(values: Map<String, Any?>): ByteArray = JsonStreamWriter.write(values)
+
+    override fun encodeTelemetry(record: TelemetryRecord): ByteArray = JsonStreamWriter.write(record)
+
+    /** Encode all records in one message. */
+    override fun encodeTelemetry(records: Collection<TelemetryRecord>): List<ByteArray> =
+        listOf(JsonStreamWriter.write(records))
+
+    override fun encodeAttributes(attributes: Map<String, Any?>): ByteArray = JsonStreamWriter.write(attributes)
+}
+
+/**
+ * Protobuf payloads for devices with payload type `Protobuf`, encoded according to the telemetry and attributes
+ * schemas of the device profile.
+ *
+ * Telemetry records with timestamp require a telemetry schema with an integer field `ts` and a message field `values`,
+ * holding the telemetry values. Keys, which are not defined in the schema, are rejected.
+ *
+ * Example (Kotlin):
+ * ```
+ * val codec = ProtobufPayloadCodec(ProtoSchema.parse(telemetryProto), ProtoSchema.parse(attributesProto))
+ * val client = DeviceMqttClient(SimpleMqttClient(brokerUrl = tbMqttHostPort, username = token), codec)
+ * ```
+ *
+ * @property telemetrySchema  schema of the telemetry message
+ * @property attributesSchema schema of the attributes message
+ */
+class ProtobufPayloadCodec(val telemetrySchema: ProtoSchema, val attributesSchema: ProtoSchema) : PayloadCodec {
+
+    override fun encodeTelemetry(values: Map<String, Any?>): ByteArray = telemetrySchema.encode(values)
+
+    override fun encodeTelemetry(record: TelemetryRecord): ByteArray {
+        if (record.ts == null) return telemetrySchema.encode(record.values)
+        return telemetrySchema.encode(mapOf("ts" to record.ts, "values" to record.values))
+    }
+
+    override fun encodeAttributes(attributes: Map<String, Any?>): ByteArray = attributesSchema.encode(attributes)
+}
@@ -0,0 +1,293 @@
+package com.systema.eia.iot.tb.utils
+
+/**
+ * Encoder of the Protobuf (proto3) binary format for a message defined in a `.proto` schema, e.g. the telemetry or
+ * attributes schema of a ThingsBoard device profile with payload type `Protobuf`.
+ *
+ * Supported are scalar fields (`double`, `float`, `int32`, `int64`, `uint32`, `uint64`, `sint32`, `sint64`,
+ * `fixed32`, `fixed64`, `sfixed32`, `sfixed64`, `bool`, `string`, `bytes`), enums, nested messages and `optional` /
+ * `repeated` labels. Maps, `oneof` and imports are not supported.
+ *
+ * Messages are given as maps from field name to value; fields with `null` values are omitted.
+ */
+class ProtoSchema private constructor(
+    private val messages: Map<String, MessageType>,
+    private val enums: Map<String, Map<String, Int>>,
+    /** name of the encoded message */
+    val messageName: String
+) {
+
+    private class Field(val name: String, val type: String, val number: Int, val repeated: Boolean) {
+        // resolved when the schema is created
+        var enumType: String? = null
+        var messageType: String? = null
+        var tag = 0L
+    }
+
+    private class MessageType(val name: String, val fields: Map<String, Field>)
+
+    /** Unsynchronized byte buffer, cheaper than a [java.io.ByteArrayOutputStream] for byte-wise writes. */
+    private class Buffer(capacity: Int) {
+        private var bytes = ByteArray(capacity)
+        var size = 0
+            private set
+
+        fun write(b: Int) {
+            if (size == bytes.size) bytes = bytes.copyOf(size * 2)
+            bytes[size++] = b.toByte()
+        }
+
+        fun write(b: ByteArray, length: Int = b.size) {
+            if (size + length > bytes.size) bytes = bytes.copyOf(maxOf(size * 2, size + length))
+            System.arraycopy(b, 0, bytes, size, length)
+            size += length
+        }
+
+        fun writeTo(out: Buffer) = out.write(bytes, size)
+
+        fun toByteArray(): ByteArray = bytes.copyOf(size)
+    }
+
+    init {
+        messages.values.forEach { message ->
+            message.fields.values.forEach { field ->
+                field.enumType = resolve(field.type, message.name, enums.keys)
+                field.messageType = if (field.enumType == null) resolve(field.type, message.name, messages.keys) else null
+                require(field.enumType != null || field.messageType != null || field.type in SCALAR_TYPES) {
+                    "Unknown type ${field.type} of field ${message.name}.${field.name}"
+                }
+                field.tag = (field.number.toLong() shl 3) or wireType(field.type, field.enumType != null).toLong()
+            }
+        }
+    }
+
+    companion object {
+        private val SCALAR_TYPES = setOf(
+            "double", "float", "int32", "int64", "uint32", "uint64", "sint32", "sint64",
+            "fixed32", "fixed64", "sfixed32", "sfixed64", "bool", "string", "bytes"
+        )
+
+        private val TOKEN =
+            Regex("""//[^\n]*|/\*.*?\*/|"[^"]*"|[A-Za-z_][\w.]*|-?\d+|[{}=;\[\]<>,()]""", RegexOption.DOT_MATCHES_ALL)
+
+        private const val VARINT = 0
+        private const val FIXED64 = 1
+        private const val LENGTH_DELIMITED = 2
+        private const val FIXED32 = 5
+
+        /**
+         * Parse a `.proto` schema.
+         *
+         * @param proto       schema source
+         * @param messageName (possibly nested, dot-separated) name of the message to encode; by default the first
+         *                    top-level message
+         * @throws IllegalArgumentException if the schema can not be parsed or uses unsupported features
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun parse(proto: String, messageName: String? = null): ProtoSchema {
+            val parser = Parser(TOKEN.findAll(proto).map { it.value }.filterNot { it.startsWith("/") }.toList())
+            parser.parseFile()
+            val root = messageName ?: parser.topLevel.firstOrNull()
+            ?: throw IllegalArgumentException("Schema defines no message")
+            require(root in parser.messages) { "Message $root is not defined in schema" }
+            return ProtoSchema(parser.messages, parser.enums, root)
+        }
+
+        private fun wireType(type: String, isEnum: Boolean): Int = when {
+            isEnum -> VARINT
+            type in setOf("double", "fixed64", "sfixed64") -> FIXED64
+            type in setOf("float", "fixed32", "sfixed32") -> FIXED32
+            type in setOf("int32", "int64", "uint32", "uint64", "sint32", "sint64", "bool") -> VARINT
+            else -> LENGTH_DELIMITED
+        }
+    }
+
+    /** Encode a message given as field values by field name. */
+    fun encode(values: Map<String, Any?>): ByteArray {
+        val out = Buffer(64)
+        encodeMessage(out, messages.getValue(messageName), values)
+        return out.toByteArray()
+    }
+
+    private fun encodeMessage(out: Buffer, message: MessageType, values: Map<*, *>) {
+        for ((key, value) in values) {
+            if (value == null) continue
+            val field = message.fields[key.toString()]
+                ?: throw IllegalArgumentException("Field $key is not defined in message ${message.name}")
+            if (field.repeated && value is Iterable<*>) {
+                value.forEach { if (it != null) encodeField(out, field, it) }
+            } else {
+                encodeField(out, field, value)
+            }
+        }
+    }
+
+    private fun encodeField(out: Buffer, field: Field, value: Any) {
+        val enumType = field.enumType
+        val messageType = field.messageType
+        writeVarint(out, field.tag)
+
+        try {
+            when {
+                enumType != null -> writeVarint(out, enumValue(enumType, value).toLong())
+                messageType != null -> {
+                    require(value is Map<*, *>) { "value must be a map" }
+                    val nested = Buffer(32)
+                    encodeMessage(nested, messages.getValue(messageType), value)
+                    writeVarint(out, nested.size.toLong())
+                    nested.writeTo(out)
+                }
+                else -> encodeScalar(out, field.type, value)
+            }
+        } catch (e: ClassCastException) {
+            throw IllegalArgumentException("Invalid value '$value' for field ${field.name} of type ${field.type}", e)
+        }
+    }
+
+    private fun encodeScalar(out: Buffer, type: String, value: Any) {
+        when (type) {
+            "double", "fixed64", "sfixed64" -> {
+                val bits = if (type == "double") java.lang.Double.doubleToRawLongBits((value as Number).toDouble())
+                else (value as Number).toLong()
+                for (i in 0 until 8) out.write((bits ushr (8 * i)).toInt() and 0xff)
+            }
+            "float", "fixed32", "sfixed32" -> {
+                val bits = if (type == "float") java.lang.Float.floatToRawIntBits((value as Number).toFloat())
+                else (value as Number).toInt()
+                for (i in 0 until 4) out.write((bits ushr (8 * i)) and 0xff)
+            }
+            // negative int32 values are sign-extended to 64 bit
+            "int32", "int64", "uint64" -> writeVarint(out, (value as Number).toLong())
+            "uint32" -> writeVarint(out, (value as Number).toLong() and 0xffffffffL)
+            "sint32", "sint64" -> (value as Number).toLong().let { writeVarint(out, (it shl 1) xor (it shr 63)) }
+            "bool" -> writeVarint(out, if (value as Boolean) 1 else 0)
+            "string" -> value.toString().toByteArray(Charsets.UTF_8).let {
+                writeVarint(out, it.size.toLong())
+                out.write(it)
+            }
+            "bytes" -> (value as ByteArray).let {
+                writeVarint(out, it.size.toLong())
+                out.write(it)
+            }
+            else -> throw IllegalArgumentException("Unknown type $type")
+        }
+    }
+
+    private fun enumValue(enumType: String, value: Any): Int = when (value) {
+        is Number -> value.toInt()
+        else -> enums.getValue(enumType)[value.toString()]
+            ?: throw IllegalArgumentException("$value is not a value of enum $enumType")
+    }
+
+    private fun writeVarint(out: Buffer, value: Long) {
+        var v = value
+        while (v and 0x7fL.inv() != 0L) {
+            out.write(((v and 0x7f) or 0x80).toInt())
+            v = v ushr 7
+        }
+        out.write(v.toInt())
+    }
+
+    /** Resolve a type name like protoc: relative to the enclosing scopes of the message, innermost first. */
+    private fun resolve(type: String, scope: String, names: Set<String>): String? {
+        if (type.startsWith(".")) return type.substring(1).takeIf { it in names }
+        var prefix: String? = scope
+        while (prefix != null) {
+            "$prefix.$type".let { if (it in names) return it }
+            prefix = prefix.substringBeforeLast('.', "").ifEmpty { null }
+        }
+        return type.takeIf { it in names }
+    }
+
+    private class Parser(val tokens: List<String>) {
+        val messages = LinkedHashMap<String, MessageType>()
+        val enums = HashMap<String, Map<String, Int>>()
+        val topLevel = ArrayList<String>()
+        private var pos = 0
+
+        private fun next(): String =
+            tokens.getOrNull(pos++) ?: throw IllegalArgumentException("Unexpected end of schema")
+
+        private fun peek(): String? = tokens.getOrNull(pos)
+
+        private fun expect(token: String) {
+            val actual = next()
+            require(actual == token) { "Expected '$token' but found '$actual'" }
+        }
+
+        private fun skipStatement() {
+            while (next() != ";") Unit
+        }
+
+        fun parseFile() {
+            var pkg: String? = null
+            while (peek() != null) {
+                when (val token = next()) {
+                    "syntax", "option" -> skipStatement()
+                    "package" -> pkg = next().also { expect(";") }
+                    "message" -> topLevel.add(parseMessage(null))
+                    "enum" -> parseEnum(null)
+                    ";" -> Unit
+                    else -> throw IllegalArgumentException("Unsupported schema element '$token'")
+                }
+            }
+            // the package is only used for fully qualified references
+            pkg?.let { p ->
+                messages.keys.toList().forEach { messages["$p.$it"] = messages.getValue(it) }
+                enums.keys.toList().forEach { enums["$p.$it"] = enums.getValue(it) }
+            }
+        }
+
+        private fun parseMessage(parent: String?): String {
+            val name = parent?.let { "$it.${next()}" } ?: next()
+            val fields = LinkedHashMap<String, Field>()
+            expect("{")
+            while (true) {
+                when (val token = next()) {
+                    "}" -> break
+                    ";" -> Unit
+                    "message" -> parseMessage(name)
+                    "enum" -> parseEnum(name)
+                    "option", "reserved" -> skipStatement()
+                    "map", "oneof", "extensions", "extend" ->
+                        throw IllegalArgumentException("'$token' is not supported (message $name)")
+                    else -> {
+                        val repeated = token == "repeated"
+                        val type = if (token == "optional" || token == "repeated" || token == "required") next()
+                        else token
+                        val fieldName = next()
+                        expect("=")
+                        val number = next().toIntOrNull()
+                            ?: throw IllegalArgumentException("Invalid number of field $fieldName")
+                        if (peek() == "[") while (next() != "]") Unit
+                        expect(";")
+                        fields[fieldName] = Field(fieldName, type, number, repeated)
+                    }
+                }
+            }
+            messages[name] = MessageType(name, fields)
+            return name
+        }
+
+        private fun parseEnum(parent: String?) {
+            val name = parent?.let { "$it.${next()}" } ?: next()
+            val values = HashMap<String, Int>()
+            expect("{")
+            while (true) {
+                when (val token = next()) {
+                    "}" -> break
+                    ";" -> Unit
+                    "option", "reserved" -> skipStatement()
+                    else -> {
+                        expect("=")
+                        values[token] = next().toInt()
+                        if (peek() == "[") while (next() != "]") Unit
+                        expect(";")
+                    }
+                }
+            }
+            enums[name] = values
+        }
+    }
+}
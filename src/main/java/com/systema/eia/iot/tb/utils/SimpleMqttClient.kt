@@ -3,40 +3,83 @@ package com.systema.eia.iot.tb.utils
 import com.fasterxml.jackson.databind.JsonNode
 import mu.KLogging
 import org.eclipse.paho.client.mqttv3.*
-import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.Semaphore
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 
 /**
- * Mqtt Client for based on mqttv3.MqttClient
+ * Mqtt Client for based on mqttv3.MqttAsyncClient
  * used slf4j for logging
  * @author ViB
- * @param connOpt  MqttConnectOptions
- * @param reconnectIfLost  if true, try to reconnect if connection has been lost
+ * @param connOpt  MqttConnectOptions; `maxInflight` limits the number of messages published concurrently
+ * @param pubQoS  QoS of published messages, see
+ * [MQTT essentials](https://www.hivemq.com/blog/mqtt-essentials-part-6-mqtt-quality-of-service-levels/)
+ * @param subQoS  QoS of subscriptions
+ * @param persistence  persistence of in-flight messages, see [MqttPersistence]; by default in memory if only QoS 0 is
+ * used, otherwise in files below `user.dir/paho-tcp`
+ * @param clientId  MQTT client ID, random by default; pass a stable ID, which must not be a secret like the device
+ * token, to recover the persisted in-flight messages of a client with the next client of the same ID
  */
 
 //https://gist.githubusercontent.com/m2mIO-gister/5275324/raw/2df225d4473f832002a3302ed54a32bd7c5c824e/SimpleMqttClient.java
-class SimpleMqttClient(val connOpt: MqttConnectOptions) : MqttCallback {
-
-    val client: MqttClient // mqttv3.MqttClient
+class SimpleMqttClient @JvmOverloads constructor(
+    val connOpt: MqttConnectOptions,
+    val pubQoS: Int = 0, // At most once (0)
+    val subQoS: Int = 0,
+    val persistence: MqttClientPersistence = MqttPersistence.default(pubQoS, subQoS),
+    clientId: String = UUID.randomUUID().toString()
+) : MqttCallbackExtended {
+
+    val client: MqttAsyncClient // mqttv3.MqttAsyncClient
     private val BROKER_URL: String // broker url without protocol name
 
-    // https://www.hivemq.com/blog/mqtt-essentials-part-6-mqtt-quality-of-service-levels/
-    private val pubQoS = 0 //At most once (0)
-    private val subQoS = 0 //At most once (0)
-
     private val disconnectAttemps = 5
-    private val persistence: MqttDefaultFilePersistence
 
-    // logger
-    companion object : KLogging()
+    // limits the published messages waiting for completion to the in-flight window of the client
+    private val inflight: Semaphore
 
-    //listeners for delivered messages
-    private val messageDeliveredListenerFuncMap: MutableMap<IMqttDeliveryToken, () -> Unit> = mutableMapOf()
+    // logger
+    companion object : KLogging() {
+        private const val FORWARD_RETRY_DELAY_MS = 5000L
+    }
 
     // listener for all input messages
     public val messageArrivedListener: (topic: String, message: MqttMessage) -> Unit = { _, _ -> }
 
+    /**
+     * Optional store-and-forward queue: messages, which can not be published since the client is not connected or the
+     * publish fails, are stored in the queue and replayed after (re)connect. While messages are stored, new messages are
+     * appended to the queue as well, to keep their order. Use `pubQoS` 1 to also detect messages lost with a broken
+     * connection.
+     */
+    var storeAndForward: StoreAndForwardQueue? = null
+        set(value) {
+            field = value
+            if (value != null && !value.isEmpty) triggerForward()
+        }
+
+    // replays stored messages and reconnects while messages are stored, shut down on disconnect
+    private val forwarderDelegate = lazy {
+        Executors.newSingleThreadScheduledExecutor { r -> Thread(r, "mqtt-store-and-forward").apply { isDaemon = true } }
+    }
+    private val forwarder by forwarderDelegate
+    private val forwarding = AtomicBoolean()
+
+    // subscriptions to be renewed after reconnect
+    private val subscriptions = ConcurrentHashMap<String, IMqttMessageListener>()
+    private val reconnectScheduled = AtomicBoolean()
+
+    // a store before the first connect connects at once, later reconnects are delayed
+    private val connectAttempted = AtomicBoolean()
+
+    @Volatile
+    private var disconnected = false
+
 
     constructor(
         brokerUrl: String = "localhost:1883",
@@ -44,23 +87,34 @@ class SimpleMqttClient(val connOpt: MqttConnectOptions) : MqttCallback {
         password: String? = null,
         keepAliveInterval: Int = 500,
         isCleanSession: Boolean = true,
-        isAutomaticReconnect: Boolean = true
+        isAutomaticReconnect: Boolean = true,
+        pubQoS: Int = 0,
+        subQoS: Int = 0,
+        maxInflight: Int = MqttConnectOptions.MAX_INFLIGHT_DEFAULT,
+        persistence: MqttClientPersistence = MqttPersistence.default(pubQoS, subQoS),
+        clientId: String = UUID.randomUUID().toString()
     ) : this(
         MqttConnectOptions().also {
             it.isCleanSession = isCleanSession
             it.keepAliveInterval = keepAliveInterval
             it.userName = username
-            it.password = password?.toCharArray()
+            password?.let { p -> it.password = p.toCharArray() }
             it.serverURIs = arrayOf("tcp://$brokerUrl")
             it.isAutomaticReconnect = isAutomaticReconnect
-        }
+            it.maxInflight = maxInflight
+        },
+        pubQoS,
+        subQoS,
+        persistence,
+        clientId
     )
 
     init {
+        require(pubQoS in 0..2 && subQoS in 0..2) { "QoS must be 0, 1 or 2" }
         BROKER_URL = connOpt.serverURIs.first()
-        persistence = MqttDefaultFilePersistence(System.getProperty("user.dir") + "/paho-tcp")
-        client = MqttClient(BROKER_URL, UUID.randomUUID().toString(), persistence)
+        client = MqttAsyncClient(BROKER_URL, clientId, persistence)
         client.setCallback(this)
+        inflight = Semaphore(connOpt.maxInflight)
     }
 
 
@@ -68,9 +122,24 @@ class SimpleMqttClient(val connOpt: MqttConnectOptions) : MqttCallback {
      * connect client with connOpt from constructor
      * @throws MqttException
      */
+    @Synchronized
     fun connect() {
+        disconnected = false
+        connectClient()
+    }
+
+    /** Reconnect to replay stored messages, unless the client has been disconnected meanwhile. */
+    @Synchronized
+    private fun reconnect() {
+        if (!disconnected) connectClient()
+    }
+
+    @Synchronized
+    private fun connectClient() {
+        connectAttempted.set(true)
+        if (client.isConnected) return
         logger.info { "connect ${client.clientId} to $BROKER_URL" }
-        client.connect(connOpt)
+        client.connect(connOpt).waitForCompletion()
         logger.info { "Connected to $BROKER_URL" }
     }
 
@@ -81,6 +150,9 @@ class SimpleMqttClient(val connOpt: MqttConnectOptions) : MqttCallback {
      * @param force forcibly disconnect
      */
     fun disconnect(force: Boolean = false) {
+        disconnected = true
+        if (forwarderDelegate.isInitialized()) forwarder.shutdownNow()
+        storeAndForward?.sync()
         try {
             if (force) {
                 logger.info { "force disconnect ${client.clientId}" }
@@ -90,7 +162,7 @@ class SimpleMqttClient(val connOpt: MqttConnectOptions) : MqttCallback {
             }
 
             logger.info { "Try disconnect ${client.clientId}" }
-            client.disconnect()
+            client.disconnect().waitForCompletion()
 
             for (i in 1..disconnectAttemps) {
                 if (!client.isConnected) {
@@ -98,7 +170,7 @@ class SimpleMqttClient(val connOpt: MqttConnectOptions) : MqttCallback {
                 }
                 Thread.sleep(TimeUnit.SECONDS.toMillis(1))
                 logger.info { "Try disconnect ${client.clientId} ($i)" }
-                client.disconnect()
+                client.disconnect().waitForCompletion()
             }
 
             if (client.isConnected) {
@@ -126,6 +198,27 @@ class SimpleMqttClient(val connOpt: MqttConnectOptions) : MqttCallback {
         logger.error(cause) { "Connection has not been re-established" }
     }
 
+    /**
+     * override MqttCallbackExtended methods
+     * replay stored messages after (re)connect
+     * @param reconnect
+     * @param serverURI
+     */
+    override fun connectComplete(reconnect: Boolean, serverURI: String) {
+        if (reconnect) logger.info { "Reconnected to $serverURI" }
+        // a clean session has lost the subscriptions; do not wait for completion in the callback thread
+        if (reconnect && connOpt.isCleanSession) {
+            subscriptions.forEach { (topic, listener) ->
+                try {
+                    client.subscribe(topic, subQoS, listener)
+                } catch (e: MqttException) {
+                    logger.error(e) { "Can not resubscribe to '$topic'" }
+                }
+            }
+        }
+        if (storeAndForward?.isEmpty == false) triggerForward()
+    }
+
     /**
      * override MqttCallback methods
      * called if message has been arrived
@@ -142,13 +235,11 @@ class SimpleMqttClient(val connOpt: MqttConnectOptions) : MqttCallback {
     /**
      * override MqttCallback methods
      * called if message has been delivered
-     * run listeners for a message.
-     * Because every message is unique, remove listener after calling
-     * @param topic
-     * @param message
+     * listeners of a message are called via the action callback of its publish
+     * @param token
      */
     override fun deliveryComplete(token: IMqttDeliveryToken) {
-        messageDeliveredListenerFuncMap.remove(token)?.invoke()
+        logger.trace { "Delivery complete ${token.messageId}" }
     }
 
 
@@ -165,33 +256,183 @@ class SimpleMqttClient(val connOpt: MqttConnectOptions) : MqttCallback {
         message: JsonNode,
         waitForCompletion: Boolean = false,
         deliveryCompleteListener: () -> Unit = {}
+    ): IMqttDeliveryToken = publish(topic, message.toString().toByteArray(), waitForCompletion, deliveryCompleteListener)
+
+    /**
+     * Publish a serialized message to a topic, e.g. a payload written by [JsonStreamWriter]
+     * @param topic
+     * @param payload
+     * @param waitForCompletion if true, return only after message has been delivered
+     * @param deliveryCompleteListener -> called after a message has been delivered
+     * @return IMqttDeliveryToken
+     */
+    fun publish(
+        topic: String,
+        payload: ByteArray,
+        waitForCompletion: Boolean = false,
+        deliveryCompleteListener: () -> Unit = {}
     ): IMqttDeliveryToken {
+        if (shouldStore()) return store(topic, payload)
+
+        val token = try {
+            send(topic, payload, pubQoS) { _, exception ->
+                if (exception == null) deliveryCompleteListener()
+                else logger.error(exception) { "Can not publish to topic \"$topic\"" }
+            }
+        } catch (e: MqttException) {
+            if (storeAndForward == null) throw e
+            return store(topic, payload)
+        }
+
+        // Wait until the message has been delivered to the broker
+        if (waitForCompletion) {
+            try {
+                token.waitForCompletion()
+            } catch (e: Exception) {
+                if (storeAndForward != null) return store(topic, payload)
+                logger.error(e) { "Can not publish to topic \"$topic\"" }
+            }
+        }
+
+        return token
+    }
 
+    /**
+     * Publish a message without waiting for its delivery, to pipeline many messages. If `maxInflight` messages (see
+     * [MqttConnectOptions.setMaxInflight]) are in flight, the call blocks until one of them has been delivered; thus
+     * do not call it from a subscription listener, since deliveries are completed by the same thread.
+     * @param topic
+     * @param payload
+     * @param qos QoS of the message; the future completes when the message has been sent (QoS 0), or acknowledged by
+     * the broker (QoS 1 and 2)
+     * @return future completed with the delivery token, or completed exceptionally, if the message can not be delivered;
+     * with a [storeAndForward] queue, a message which can not be delivered is stored and the future is completed with an
+     * empty token
+     */
+    @JvmOverloads
+    fun publishAsync(topic: String, payload: ByteArray, qos: Int = pubQoS): CompletableFuture<IMqttDeliveryToken> {
+        val future = CompletableFuture<IMqttDeliveryToken>()
+        if (shouldStore()) return future.also { it.complete(store(topic, payload)) }
+        try {
+            send(topic, payload, qos) { token, exception ->
+                when {
+                    exception == null -> future.complete(token)
+                    storeAndForward != null -> future.complete(store(topic, payload))
+                    else -> future.completeExceptionally(exception)
+                }
+            }
+        } catch (e: Exception) {
+            if (e is MqttException && storeAndForward != null) future.complete(store(topic, payload))
+            else future.completeExceptionally(e)
+        }
+        return future
+    }
+
+    /**
+     * Publish a json message without waiting for its delivery, see [publishAsync].
+     */
+    @JvmOverloads
+    fun publishAsync(topic: String, message: JsonNode, qos: Int = pubQoS): CompletableFuture<IMqttDeliveryToken> =
+        publishAsync(topic, message.toString().toByteArray(), qos)
+
+    private fun shouldStore(): Boolean {
+        val queue = storeAndForward ?: return false
+        return !client.isConnected || !queue.isEmpty
+    }
+
+    /** Store a message in the store-and-forward queue, return an empty token. */
+    private fun store(topic: String, payload: ByteArray): IMqttDeliveryToken {
+        try {
+            if (!storeAndForward!!.append(topic, payload)) logger.warn { "Store-and-forward queue full - message dropped" }
+        } catch (e: IllegalStateException) {
+            logger.warn { "Store-and-forward queue closed - message to \"$topic\" dropped" }
+        }
+        triggerForward()
+        return MqttDeliveryToken(client.clientId)
+    }
+
+    /** Replay the stored messages, or reconnect first. */
+    private fun triggerForward() {
+        val queue = storeAndForward ?: return
+        if (disconnected) return
+        try {
+            scheduleForward(queue)
+        } catch (e: RejectedExecutionException) {
+            // disconnected meanwhile
+        }
+    }
+
+    private fun scheduleForward(queue: StoreAndForwardQueue) {
+        if (!client.isConnected) {
+            if (reconnectScheduled.compareAndSet(false, true)) {
+                val delay = if (connectAttempted.get()) FORWARD_RETRY_DELAY_MS else 0L
+                forwarder.schedule({
+                    reconnectScheduled.set(false)
+                    try {
+                        reconnect()
+                    } catch (e: MqttException) {
+                        logger.debug { "Reconnect failed: ${e.message}" }
+                        triggerForward()
+                    }
+                }, delay, TimeUnit.MILLISECONDS)
+            }
+            return
+        }
+        if (!forwarding.compareAndSet(false, true)) return
+        forwarder.execute {
+            val sent = try {
+                queue.drain { message ->
+                    send(message.topic, message.payload, pubQoS) { _, _ -> }.waitForCompletion()
+                    true
+                }
+            } finally {
+                forwarding.set(false)
+            }
+            if (sent > 0) logger.info { "Replayed $sent stored messages" }
+            // messages stored meanwhile are replayed at once, retry after failures
+            if (!queue.isEmpty) {
+                if (sent > 0) triggerForward()
+                else forwarder.schedule({ triggerForward() }, FORWARD_RETRY_DELAY_MS, TimeUnit.MILLISECONDS)
+            }
+        }
+    }
+
+    /** Number of published messages, which have not been delivered yet. */
+    fun inflightMessages(): Int = connOpt.maxInflight - inflight.availablePermits()
+
+    private fun send(
+        topic: String,
+        payload: ByteArray,
+        qos: Int,
+        onComplete: (IMqttDeliveryToken, Throwable?) -> Unit
+    ): IMqttDeliveryToken {
         if (!client.isConnected) {
             connect()
         }
 
-        val mqttMessage = MqttMessage(message.toPrettyString().toByteArray())
-        mqttMessage.qos = pubQoS
+        val mqttMessage = MqttMessage(payload)
+        mqttMessage.qos = qos
         mqttMessage.isRetained = false
 
-        logger.info { "Publishing to topic \"$topic\" message: $message" }
+        logger.debug { "Publishing to topic \"$topic\" message: ${String(payload)}" }
 
-        var token: MqttDeliveryToken? = null
+        inflight.acquire()
         try {
-            // publish message to broker
-            token = client.getTopic(topic).publish(mqttMessage)
+            return client.publish(topic, mqttMessage, null, object : IMqttActionListener {
+                override fun onSuccess(token: IMqttToken) {
+                    inflight.release()
+                    onComplete(token as IMqttDeliveryToken, null)
+                }
 
-            // Wait until the message has been delivered to the broker
-            if (waitForCompletion) {
-                messageDeliveredListenerFuncMap[token] = deliveryCompleteListener
-                token.waitForCompletion()
-            }
+                override fun onFailure(token: IMqttToken, exception: Throwable) {
+                    inflight.release()
+                    onComplete(token as IMqttDeliveryToken, exception)
+                }
+            })
         } catch (e: Exception) {
-            e.printStackTrace()
+            inflight.release()
+            throw e
         }
-
-        return token!!;
     }
 
 
@@ -205,7 +446,22 @@ class SimpleMqttClient(val connOpt: MqttConnectOptions) : MqttCallback {
         if (!client.isConnected) {
             connect()
         }
-        client.subscribe(topic, subQoS) { topic, message -> messageArrivedListener(topic, message) }
+        val listener = IMqttMessageListener { topic, message -> messageArrivedListener(topic, message) }
+        client.subscribe(topic, subQoS, listener).waitForCompletion()
+        subscriptions[topic] = listener
         logger.info { "subscribed to '$topic'" }
     }
+
+    /**
+     * unsubscribe from a topic
+     * @param topic
+     * @throws MqttException
+     */
+    fun unsubscribe(topic: String) {
+        subscriptions.remove(topic)
+        if (client.isConnected) {
+            client.unsubscribe(topic).waitForCompletion()
+        }
+        logger.info { "unsubscribed from '$topic'" }
+    }
 }
\ No newline at end of file
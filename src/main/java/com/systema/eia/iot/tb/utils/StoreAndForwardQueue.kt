@@ -0,0 +1,348 @@
+package com.systema.eia.iot.tb.utils
+
+import com.systema.eia.iot.tb.clients.TokenBucket
+import mu.KotlinLogging
+import java.io.Closeable
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.time.Duration
+import java.util.zip.CRC32
+
+/**
+ * Persistent FIFO queue of MQTT messages, which could not be published, e.g. while the broker is not reachable. See
+ * [SimpleMqttClient.storeAndForward].
+ *
+ * Messages are appended to a log of memory-mapped segment files of `segmentSize` bytes in `directory`, stamped with
+ * the time they were stored, and replayed in that order. The read position is kept in the file `cursor`, so messages
+ * survive a restart of the application; segments are deleted as soon as they have been replayed.
+ *
+ * The disk usage is limited to `maxBytes`: if all segments are full, the oldest segment is dropped
+ * ([Overflow.DROP_OLDEST]) or new messages are rejected ([Overflow.REJECT]). Messages older than `retention` are
+ * dropped, too. Replay is limited to `drainRate` messages per second, to not overload the broker after reconnect.
+ *
+ * @property directory   directory of the segment files, created if missing
+ * @property segmentSize size of a segment file in bytes, i.e. the maximum size of a message
+ * @property maxBytes    maximum disk usage in bytes (at least one segment)
+ * @property retention   maximum age of stored messages
+ * @property drainRate   maximum number of replayed messages per second
+ * @property overflow    behaviour if `maxBytes` is reached
+ */
+class StoreAndForwardQueue @JvmOverloads constructor(
+    val directory: File,
+    val segmentSize: Int = 16 * 1024 * 1024,
+    val maxBytes: Long = 1024L * 1024 * 1024,
+    val retention: Duration = Duration.ofDays(7),
+    val drainRate: Double = 100.0,
+    val overflow: Overflow = Overflow.DROP_OLDEST
+) : Closeable {
+
+    /** Behaviour if the disk usage limit is reached. */
+    enum class Overflow {
+        /** drop the oldest segment to make room for new messages */
+        DROP_OLDEST,
+
+        /** reject new messages */
+        REJECT
+    }
+
+    /**
+     * Stored message.
+     *
+     * @property ts      time the message was stored in epoch ms
+     * @property topic   MQTT topic
+     * @property payload message payload
+     */
+    class Message internal constructor(
+        val ts: Long,
+        val topic: String,
+        val payload: ByteArray,
+        internal val segment: Long,
+        internal val pos: Int
+    )
+
+    companion object {
+        private val log = KotlinLogging.logger {}
+
+        // record layout: length (of the following fields) | crc | ts | topic length | topic | payload
+        private const val HEADER_SIZE = 8
+        private const val SEGMENT_PREFIX = "segment-"
+        private const val SEGMENT_SUFFIX = ".log"
+    }
+
+    private class Segment(val seq: Long, val file: File, val buffer: MappedByteBuffer) {
+        var writePos = 0
+        var records = 0
+        var lastTs = 0L
+    }
+
+    private val segments = ArrayDeque<Segment>()
+    private val maxSegments = maxOf(1L, maxBytes / segmentSize).toInt()
+
+    // read position
+    private val cursor: MappedByteBuffer
+    private var readPos = 0
+    private var readRecords = 0
+
+    private var pendingCount = 0L
+    private var droppedCount = 0L
+    private var closed = false
+
+    private val bucket = TokenBucket(drainRate, maxOf(1, drainRate.toInt()))
+
+    init {
+        require(segmentSize > HEADER_SIZE + 12) { "segmentSize too small" }
+        require(drainRate > 0) { "drainRate must be positive" }
+        directory.mkdirs()
+        cursor = RandomAccessFile(File(directory, "cursor"), "rw").use {
+            it.channel.map(FileChannel.MapMode.READ_WRITE, 0, 12)
+        }
+        recover()
+    }
+
+    /** Number of stored messages. */
+    val size: Long
+        @Synchronized get() = pendingCount
+
+    /** True, if no messages are stored. */
+    val isEmpty: Boolean
+        @Synchronized get() = pendingCount == 0L
+
+    /** Number of messages dropped due to `maxBytes` or `retention`. */
+    val dropped: Long
+        @Synchronized get() = droppedCount
+
+    /**
+     * Store a message.
+     *
+     * @return false, if the message was rejected, since the queue is full ([Overflow.REJECT])
+     * @throws IllegalArgumentException if the message does not fit into a segment
+     * @throws IllegalStateException if the queue has been closed
+     */
+    @JvmOverloads
+    @Synchronized
+    fun append(topic: String, payload: ByteArray, ts: Long = System.currentTimeMillis()): Boolean {
+        check(!closed) { "StoreAndForwardQueue has been closed" }
+        val topicBytes = topic.toByteArray(Charsets.UTF_8)
+        val length = 8 + 2 + topicBytes.size + payload.size
+        require(HEADER_SIZE + length <= segmentSize) { "Message of ${payload.size} bytes exceeds the segment size" }
+
+        var segment = segments.lastOrNull()
+        if (segment == null || segment.writePos + HEADER_SIZE + length > segmentSize) {
+            segment = newSegment() ?: return false
+        }
+
+        val crc = CRC32()
+        val buffer = segment.buffer
+        buffer.position(segment.writePos + HEADER_SIZE)
+        buffer.putLong(ts).putShort(topicBytes.size.toShort()).put(topicBytes).put(payload)
+        crc.update(buffer.duplicate().position(segment.writePos + HEADER_SIZE).limit(buffer.position()))
+        // write the length last, so that a torn record is not read
+        buffer.putInt(segment.writePos + 4, crc.value.toInt())
+        buffer.putInt(segment.writePos, length)
+
+        segment.writePos += HEADER_SIZE + length
+        segment.records++
+        segment.lastTs = ts
+        pendingCount++
+        return true
+    }
+
+    /** Oldest stored message, which is not expired, or null if the queue is empty. */
+    @Synchronized
+    fun peek(): Message? {
+        dropExpired()
+        while (true) {
+            val segment = segments.firstOrNull() ?: return null
+            if (readPos < segment.writePos) return read(segment, readPos)
+            if (segment === segments.last()) return null
+            removeFirstSegment()
+        }
+    }
+
+    /**
+     * Remove the message returned by [peek]. Nothing is removed, if the message is not the oldest one anymore, e.g.
+     * because its segment has been dropped meanwhile.
+     */
+    @Synchronized
+    fun remove(message: Message) {
+        val segment = segments.firstOrNull() ?: return
+        if (segment.seq != message.segment || readPos != message.pos || readPos >= segment.writePos) return
+        readPos += HEADER_SIZE + segment.buffer.getInt(readPos)
+        readRecords++
+        pendingCount--
+        if (readPos >= segment.writePos && segment !== segments.last()) removeFirstSegment()
+        saveCursor()
+    }
+
+    /**
+     * Replay stored messages in order at most at `drainRate`, until the queue is empty or `sender` fails.
+     *
+     * @param sender publishes a message; returns false or throws, if the message could not be published, which stops
+     *               the replay and keeps the message in the queue
+     * @return number of replayed messages
+     */
+    fun drain(sender: (Message) -> Boolean): Int {
+        var sent = 0
+        while (true) {
+            val message = peek() ?: return sent
+            bucket.acquire()
+            val success = try {
+                sender(message)
+            } catch (e: Exception) {
+                log.debug { "Replay stopped: ${e.message}" }
+                false
+            }
+            if (!success) return sent
+            remove(message)
+            sent++
+        }
+    }
+
+    /** Write the stored messages to disk, e.g. before shutdown. */
+    @Synchronized
+    fun sync() {
+        segments.forEach { it.buffer.force() }
+        cursor.force()
+    }
+
+    /**
+     * Sync and release the segments. Stored messages are replayed by the next queue on the same directory; the queue
+     * appears empty and rejects new messages afterwards.
+     */
+    @Synchronized
+    override fun close() {
+        if (closed) return
+        closed = true
+        sync()
+        segments.clear()
+        pendingCount = 0
+    }
+
+    private fun read(segment: Segment, pos: Int): Message {
+        val buffer = segment.buffer.duplicate()
+        val length = buffer.getInt(pos)
+        buffer.position(pos + HEADER_SIZE)
+        val ts = buffer.long
+        val topic = ByteArray(buffer.short.toInt()).also { buffer.get(it) }
+        val payload = ByteArray(length - 10 - topic.size).also { buffer.get(it) }
+        return Message(ts, String(topic, Charsets.UTF_8), payload, segment.seq, pos)
+    }
+
+    private fun dropExpired() {
+        val threshold = System.currentTimeMillis() - retention.toMillis()
+        while (true) {
+            val segment = segments.firstOrNull() ?: return
+            if (readPos < segment.writePos && segment.buffer.getLong(readPos + HEADER_SIZE) < threshold) {
+                if (segment.lastTs < threshold && segment !== segments.last()) {
+                    removeFirstSegment()
+                } else {
+                    // skip expired messages of the segment one by one
+                    readPos += HEADER_SIZE + segment.buffer.getInt(readPos)
+                    readRecords++
+                    pendingCount--
+                    droppedCount++
+                    saveCursor()
+                }
+            } else return
+        }
+    }
+
+    private fun newSegment(): Segment? {
+        val last = segments.last()
+        last.buffer.force()
+        if (segments.size >= maxSegments) {
+            if (overflow == Overflow.REJECT) {
+                droppedCount++
+                return null
+            }
+            log.warn { "Store-and-forward queue full - dropping oldest segment" }
+            removeFirstSegment(replace = false)
+        }
+        val segment = openSegment(last.seq + 1)
+        segments.addLast(segment)
+        saveCursor()
+        return segment
+    }
+
+    /** Remove the first segment; its unread messages are dropped. */
+    private fun removeFirstSegment(replace: Boolean = true) {
+        val segment = segments.removeFirst()
+        val unread = segment.records - readRecords
+        if (unread > 0) {
+            pendingCount -= unread
+            droppedCount += unread
+        }
+        if (!segment.file.delete()) log.warn { "Can not delete ${segment.file}" }
+        readPos = 0
+        readRecords = 0
+        if (segments.isEmpty() && replace) segments.addLast(openSegment(segment.seq + 1))
+        if (segments.isNotEmpty()) saveCursor()
+    }
+
+    private fun openSegment(seq: Long): Segment {
+        val file = File(directory, "$SEGMENT_PREFIX${"%012d".format(seq)}$SEGMENT_SUFFIX")
+        val buffer = RandomAccessFile(file, "rw").use {
+            it.channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize.toLong())
+        }
+        return Segment(seq, file, buffer)
+    }
+
+    private fun saveCursor() {
+        cursor.putLong(0, segments.firstOrNull()?.seq ?: 0)
+        cursor.putInt(8, readPos)
+    }
+
+    /** Open the existing segments and determine their valid records and the read position. */
+    private fun recover() {
+        val cursorSeq = cursor.getLong(0)
+        val cursorPos = cursor.getInt(8)
+
+        val files = directory.listFiles { _, name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) }
+            ?.sortedBy { it.name } ?: listOf()
+        for (file in files) {
+            val seq = file.name.removePrefix(SEGMENT_PREFIX).removeSuffix(SEGMENT_SUFFIX).toLongOrNull() ?: continue
+            if (seq < cursorSeq || file.length() != segmentSize.toLong()) {
+                file.delete()
+                continue
+            }
+            val segment = openSegment(seq)
+            scan(segment)
+            segments.addLast(segment)
+        }
+
+        if (segments.isEmpty()) {
+            segments.addLast(openSegment(cursorSeq + 1))
+        } else if (segments.first().seq == cursorSeq) {
+            // skip the records, which have been replayed already
+            val segment = segments.first()
+            while (readPos < minOf(cursorPos, segment.writePos)) {
+                readPos += HEADER_SIZE + segment.buffer.getInt(readPos)
+                readRecords++
+            }
+        }
+        pendingCount = segments.sumOf { it.records.toLong() } - readRecords
+        saveCursor()
+        if (pendingCount > 0) log.info { "Recovered $pendingCount stored messages from $directory" }
+    }
+
+    private fun scan(segment: Segment) {
+        val buffer = segment.buffer
+        var pos = 0
+        while (pos + HEADER_SIZE <= segmentSize) {
+            val length = buffer.getInt(pos)
+            if (length <= 0 || pos + HEADER_SIZE + length > segmentSize) break
+            val crc = CRC32()
+            crc.update(buffer.duplicate().position(pos + HEADER_SIZE).limit(pos + HEADER_SIZE + length))
+            if (crc.value.toInt() != buffer.getInt(pos + 4)) {
+                log.warn { "Corrupt record in ${segment.file} at $pos - ignoring the rest of the segment" }
+                break
+            }
+            segment.lastTs = buffer.getLong(pos + HEADER_SIZE)
+            segment.records++
+            pos += HEADER_SIZE + length
+        }
+        segment.writePos = pos
+    }
+}
@@ -0,0 +1,15 @@
+package com.systema.eia.iot.tb.utils
+
+/**
+ * Telemetry values of one timestamp, serialized as `{"ts": 1451649600512, "values": {"key1": "value1"}}` (see
+ * [ThingsBoard telemetry upload API](https://thingsboard.io/docs/reference/http-api/#telemetry-upload-api)).
+ *
+ * @property ts     timestamp in epoch ms; if null, the server time is used and only the values are serialized
+ * @property values telemetry values by key
+ */
+data class TelemetryRecord @JvmOverloads constructor(
+    val values: Map<String, Any?>,
+    val ts: Long? = null
+) {
+    constructor(ts: Long, key: String, value: Any?) : this(mapOf(key to value), ts)
+}
@@ -0,0 +1,393 @@
+package com.systema.eia.iot.tb.ws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar representation of the updates of a ThingsBoard websocket message, see
+ * {@link WsParserUtils#parseMessage(String, AttrUpdateBatch)}. In contrast to a list of {@link AttrUpdate}s, numeric
+ * and boolean values are not boxed, and a batch can be reused for many messages, so that high-rate telemetry can be
+ * consumed without garbage per sample.
+ * <p>
+ * Each row holds timestamp, key index and type of an update; its value is stored in the column of its type. Keys are
+ * interned per batch: the index of a key stays the same for all messages parsed into the batch. The rows are sorted
+ * by timestamp (ascending), like the result of {@link WsParserUtils#parseMessage(String)}.
+ * <p>
+ * ThingsBoard sends all values as strings; strings with a plain decimal number (e.g. {@code "-0.0175"}) are stored
+ * as {@link #TYPE_LONG} or {@link #TYPE_DOUBLE}, {@code "true"} and {@code "false"} as {@link #TYPE_BOOLEAN}.
+ * <p>
+ * A batch is not thread-safe. Handlers must not keep a reference to a batch passed to them, since it is refilled
+ * with the next message.
+ */
+public class AttrUpdateBatch {
+
+    /** Type of a {@code null} value. */
+    public static final byte TYPE_NULL = 0;
+    /** Type of a floating point value, see {@link #doubleValue(int)}. */
+    public static final byte TYPE_DOUBLE = 1;
+    /** Type of an integer value, see {@link #longValue(int)}. */
+    public static final byte TYPE_LONG = 2;
+    /** Type of a boolean value, see {@link #booleanValue(int)}. */
+    public static final byte TYPE_BOOLEAN = 3;
+    /** Type of a string value, see {@link #value(int)}. */
+    public static final byte TYPE_STRING = 4;
+    /** Type of any other value, e.g. a JSON object, see {@link #value(int)}. */
+    public static final byte TYPE_OBJECT = 5;
+
+    // powers of 10, which are exact doubles
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private int size;
+    private long[] timestamps;
+    private int[] keyIndexes;
+    private byte[] types;
+    private double[] doubles;
+    private long[] longs;
+    private boolean[] booleans;
+    private Object[] objects;
+
+    // interned keys
+    private final Map<String, Integer> keyIndex = new HashMap<>();
+    private final List<String> keys = new ArrayList<>();
+
+    // scratch space for sorting
+    private int[] order = new int[0];
+    private int[] mergeBuffer = new int[0];
+
+    public AttrUpdateBatch() {
+        this(64);
+    }
+
+    /**
+     * @param capacity initial number of rows
+     */
+    public AttrUpdateBatch(int capacity) {
+        capacity = Math.max(capacity, 1);
+        timestamps = new long[capacity];
+        keyIndexes = new int[capacity];
+        types = new byte[capacity];
+        doubles = new double[capacity];
+        longs = new long[capacity];
+        booleans = new boolean[capacity];
+        objects = new Object[capacity];
+    }
+
+    /** Number of updates. */
+    public int size() {
+        return size;
+    }
+
+    /** Timestamp of an update in epoch ms. */
+    public long timestamp(int row) {
+        return timestamps[checkRow(row)];
+    }
+
+    /** Index of the key of an update, see {@link #keyName(int)}. */
+    public int keyIndex(int row) {
+        return keyIndexes[checkRow(row)];
+    }
+
+    /** Key of an update. */
+    public String key(int row) {
+        return keys.get(keyIndex(row));
+    }
+
+    /** Number of interned keys. */
+    public int keyCount() {
+        return keys.size();
+    }
+
+    /** Key of a key index. */
+    public String keyName(int keyIndex) {
+        return keys.get(keyIndex);
+    }
+
+    /**
+     * Index of a key.
+     *
+     * @return key index, -1 if the key has not been received yet
+     */
+    public int indexOfKey(String key) {
+        Integer index = keyIndex.get(key);
+        return index == null ? -1 : index;
+    }
+
+    /** Type of the value of an update, one of the {@code TYPE_...} constants. */
+    public byte type(int row) {
+        return types[checkRow(row)];
+    }
+
+    /**
+     * Numeric value of an update.
+     *
+     * @throws IllegalStateException if the value is not of type {@link #TYPE_DOUBLE} or {@link #TYPE_LONG}
+     */
+    public double doubleValue(int row) {
+        switch (type(row)) {
+            case TYPE_DOUBLE:
+                return doubles[row];
+            case TYPE_LONG:
+                return longs[row];
+            default:
+                throw new IllegalStateException("Value of row " + row + " is not numeric: " + value(row));
+        }
+    }
+
+    /**
+     * Integer value of an update.
+     *
+     * @throws IllegalStateException if the value is not of type {@link #TYPE_LONG}
+     */
+    public long longValue(int row) {
+        if (type(row) != TYPE_LONG) {
+            throw new IllegalStateException("Value of row " + row + " is not an integer: " + value(row));
+        }
+        return longs[row];
+    }
+
+    /**
+     * Boolean value of an update.
+     *
+     * @throws IllegalStateException if the value is not of type {@link #TYPE_BOOLEAN}
+     */
+    public boolean booleanValue(int row) {
+        if (type(row) != TYPE_BOOLEAN) {
+            throw new IllegalStateException("Value of row " + row + " is not a boolean: " + value(row));
+        }
+        return booleans[row];
+    }
+
+    /** Value of an update; numbers and booleans are boxed. */
+    public Object value(int row) {
+        switch (type(row)) {
+            case TYPE_DOUBLE:
+                return doubles[row];
+            case TYPE_LONG:
+                return longs[row];
+            case TYPE_BOOLEAN:
+                return booleans[row];
+            default:
+                return objects[row];
+        }
+    }
+
+    /** Copy the updates to a list of {@link AttrUpdate}s. */
+    public List<AttrUpdate> toAttrUpdates() {
+        List<AttrUpdate> updates = new ArrayList<>(size);
+        for (int row = 0; row < size; row++) {
+            updates.add(new AttrUpdate(key(row), timestamps[row], value(row)));
+        }
+        return updates;
+    }
+
+    /** Remove all updates. The interned keys are kept. */
+    public void clear() {
+        Arrays.fill(objects, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        var builder = new StringBuilder(getClass().getSimpleName()).append('[');
+        for (int row = 0; row < size; row++) {
+            if (row > 0) builder.append(", ");
+            builder.append(key(row)).append('@').append(timestamps[row]).append('=').append(value(row));
+        }
+        return builder.append(']').toString();
+    }
+
+    /** Intern a key. */
+    int internKey(String key) {
+        Integer index = keyIndex.get(key);
+        if (index == null) {
+            index = keys.size();
+            keys.add(key);
+            keyIndex.put(key, index);
+        }
+        return index;
+    }
+
+    void addNull(int keyIndex, long timestamp) {
+        addRow(keyIndex, timestamp, TYPE_NULL);
+    }
+
+    void addDouble(int keyIndex, long timestamp, double value) {
+        int row = addRow(keyIndex, timestamp, TYPE_DOUBLE);
+        doubles[row] = value;
+    }
+
+    void addLong(int keyIndex, long timestamp, long value) {
+        int row = addRow(keyIndex, timestamp, TYPE_LONG);
+        longs[row] = value;
+    }
+
+    void addBoolean(int keyIndex, long timestamp, boolean value) {
+        int row = addRow(keyIndex, timestamp, TYPE_BOOLEAN);
+        booleans[row] = value;
+    }
+
+    void addObject(int keyIndex, long timestamp, Object value) {
+        if (value == null) {
+            addNull(keyIndex, timestamp);
+        } else {
+            // the columns may be replaced by addRow
+            int row = addRow(keyIndex, timestamp, value instanceof String ? TYPE_STRING : TYPE_OBJECT);
+            objects[row] = value;
+        }
+    }
+
+    /**
+     * Add a string value, stored as number or boolean if possible.
+     *
+     * @param chars  characters of the string
+     * @param offset offset of the string in {@code chars}
+     * @param length length of the string
+     */
+    void addText(int keyIndex, long timestamp, char[] chars, int offset, int length) {
+        if (!addNumber(keyIndex, timestamp, chars, offset, length)) {
+            if (equals("true", chars, offset, length)) {
+                addBoolean(keyIndex, timestamp, true);
+            } else if (equals("false", chars, offset, length)) {
+                addBoolean(keyIndex, timestamp, false);
+            } else {
+                addObject(keyIndex, timestamp, new String(chars, offset, length));
+            }
+        }
+    }
+
+    /**
+     * Sort the rows by timestamp, keeping the order of equal timestamps.
+     *
+     * @param runs     start rows of the runs of the single keys, see {@link WsParserUtils#mergeRuns}
+     * @param runCount number of runs
+     */
+    void sort(int[] runs, int runCount) {
+        if (size < 2) return;
+        if (order.length < size) {
+            order = new int[timestamps.length];
+            mergeBuffer = new int[timestamps.length];
+        }
+        for (int i = 0; i < size; i++) order[i] = i;
+        int[] sorted = WsParserUtils.mergeRuns(order, mergeBuffer, size, runs, runCount, timestamps);
+        applyOrder(sorted);
+    }
+
+    /** Move row {@code order[i]} to row {@code i}, following the cycles of the permutation. */
+    private void applyOrder(int[] order) {
+        for (int start = 0; start < size; start++) {
+            if (order[start] < 0 || order[start] == start) continue;
+            long ts = timestamps[start];
+            int key = keyIndexes[start];
+            byte type = types[start];
+            double d = doubles[start];
+            long l = longs[start];
+            boolean b = booleans[start];
+            Object o = objects[start];
+            int target = start;
+            while (true) {
+                int source = order[target];
+                order[target] = -1;
+                if (source == start) break;
+                timestamps[target] = timestamps[source];
+                keyIndexes[target] = keyIndexes[source];
+                types[target] = types[source];
+                doubles[target] = doubles[source];
+                longs[target] = longs[source];
+                booleans[target] = booleans[source];
+                objects[target] = objects[source];
+                target = source;
+            }
+            timestamps[target] = ts;
+            keyIndexes[target] = key;
+            types[target] = type;
+            doubles[target] = d;
+            longs[target] = l;
+            booleans[target] = b;
+            objects[target] = o;
+        }
+    }
+
+    private int addRow(int keyIndex, long timestamp, byte type) {
+        if (size == timestamps.length) grow();
+        int row = size++;
+        timestamps[row] = timestamp;
+        keyIndexes[row] = keyIndex;
+        types[row] = type;
+        return row;
+    }
+
+    private void grow() {
+        int capacity = timestamps.length * 2;
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        keyIndexes = Arrays.copyOf(keyIndexes, capacity);
+        types = Arrays.copyOf(types, capacity);
+        doubles = Arrays.copyOf(doubles, capacity);
+        longs = Arrays.copyOf(longs, capacity);
+        booleans = Arrays.copyOf(booleans, capacity);
+        objects = Arrays.copyOf(objects, capacity);
+    }
+
+    private int checkRow(int row) {
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        return row;
+    }
+
+    /**
+     * Add a plain decimal number ({@code -?(0|[1-9][0-9]*)(\.[0-9]+)?}) without allocation, if its value is exact.
+     *
+     * @return false, if the string is not such a number
+     */
+    private boolean addNumber(int keyIndex, long timestamp, char[] chars, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        boolean negative = i < end && chars[i] == '-';
+        if (negative) i++;
+        int integerStart = i;
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            char c = chars[i];
+            if (c == '.' && !fraction) {
+                if (i == integerStart || i == end - 1) return false;
+                fraction = true;
+            } else if (c >= '0' && c <= '9') {
+                // more than 18 digits may overflow; left as string
+                if (++digits > 18) return false;
+                mantissa = mantissa * 10 + (c - '0');
+                if (fraction) fractionDigits++;
+            } else {
+                return false;
+            }
+        }
+        if (digits == 0) return false;
+        // no leading zeros, e.g. serial numbers like "0042" are kept as strings
+        if (chars[integerStart] == '0' && integerStart + 1 < end && chars[integerStart + 1] != '.') return false;
+        if (negative) mantissa = -mantissa;
+
+        if (!fraction) {
+            addLong(keyIndex, timestamp, mantissa);
+        } else if (Math.abs(mantissa) < (1L << 53) && fractionDigits < POWERS_OF_TEN.length) {
+            // both operands are exact, so the division is correctly rounded
+            addDouble(keyIndex, timestamp, mantissa / POWERS_OF_TEN[fractionDigits]);
+        } else {
+            addDouble(keyIndex, timestamp, Double.parseDouble(new String(chars, offset, length)));
+        }
+        return true;
+    }
+
+    private static boolean equals(String expected, char[] chars, int offset, int length) {
+        if (expected.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (expected.charAt(i) != chars[offset + i]) return false;
+        }
+        return true;
+    }
+}
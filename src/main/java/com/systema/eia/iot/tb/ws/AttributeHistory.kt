@@ -1,15 +1,12 @@
 package com.systema.eia.iot.tb.ws
 
-import com.fasterxml.jackson.databind.ObjectMapper
 import com.systema.eia.iot.tb.clients.ExtRestClient
 import com.systema.eia.iot.tb.utils.Scope
 import com.systema.eia.iot.tb.utils.SubscriptionType
-import com.systema.eia.iot.tb.utils.json
+import com.systema.eia.iot.tb.utils.TelemetryRecord
 import org.java_websocket.client.WebSocketClient
 import org.thingsboard.server.common.data.id.DeviceId
 
-private val mapper = ObjectMapper()
-
 
 //TODO: add docs
 fun ExtRestClient.saveAttributeChanges(deviceId: DeviceId): List<Pair<Scope, WebSocketClient>> {
@@ -23,17 +20,11 @@ fun ExtRestClient.saveAttributeChanges(deviceId: DeviceId): List<Pair<Scope, Web
 //        val sortedBy = attrChanges.sortedBy { it.timestamp }
 
             attrChanges.forEach { attrUpdate ->
-                // https://stackoverflow.com/questions/12539489/from-org-json-jsonobject-to-org-codehaus-jackson
-                val json = json {
-                    "ts" to attrUpdate.timestamp
-                    "values" to {
-                        telemetryAttribute(attrScope, attrUpdate.key) to attrUpdate.value
-                    }
-                }
-
                 // attrTelemetryPrefix + "::" + attrScope.toString() + "::" + attrUpdate.key to attrUpdate.value
+                val record =
+                    TelemetryRecord(attrUpdate.timestamp, telemetryAttribute(attrScope, attrUpdate.key), attrUpdate.value)
 
-                sendTelemetry(deviceId, mapper.readTree(json.toString()))
+                sendTelemetry(deviceId, record)
             }
         }
 
@@ -41,6 +32,26 @@ fun ExtRestClient.saveAttributeChanges(deviceId: DeviceId): List<Pair<Scope, Web
     }
 }
 
+/**
+ * Store the attribute changes of a device as telemetry like [saveAttributeChanges], but subscribe via a shared
+ * [WsSubscriptionManager] instead of opening a websocket per scope, e.g. for many devices.
+ *
+ * @return subscription per scope
+ */
+fun ExtRestClient.saveAttributeChanges(
+    deviceId: DeviceId,
+    manager: WsSubscriptionManager
+): List<Pair<Scope, WsSubscriptionManager.Subscription>> = Scope.values().map { attrScope ->
+    attrScope to manager.subscribe(deviceId, SubscriptionType.valueOf(attrScope.name)) { attrChanges ->
+        attrChanges.forEach { attrUpdate ->
+            sendTelemetry(
+                deviceId,
+                TelemetryRecord(attrUpdate.timestamp, telemetryAttribute(attrScope, attrUpdate.key), attrUpdate.value)
+            )
+        }
+    }
+}
+
 //TODO: simplify naming pattern "attrHist__${scope}__${attributeName}"?
 /** We simply set a convention of how attribute names can be mapped to telemetry names. This includes the scope and the attribute names to become unique.  */
 // json does not work here as key yet, see https://github.com/thingsboard/thingsboard/issues/4657
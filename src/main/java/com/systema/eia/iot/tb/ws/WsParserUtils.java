@@ -1,16 +1,18 @@
 package com.systema.eia.iot.tb.ws;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.text.ParseException;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class WsParserUtils {
@@ -19,6 +21,10 @@ public class WsParserUtils {
 
     private static final Logger log = LoggerFactory.getLogger(CLASS_NAME);
 
+    // shared, thread-safe instances
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonFactory FACTORY = MAPPER.getFactory();
+
     // @formatter:off
     /**
      * Parse ThingsBoard JSON message and extract relevant information.
@@ -61,52 +67,353 @@ public class WsParserUtils {
     // @formatter:on
     public static List<AttrUpdate> parseMessage(String message) throws ParseException {
         // TODO: handle errorMsg / errorCode
-        List<AttrUpdate> updateList = new LinkedList<>();
-        log.debug("Trying to parse message: " + message);
-        final var mapper = new ObjectMapper();
-        final var data = extractTopLevelNode(message, "data", mapper);
-        if (data != null) {
-            log.debug("Found ThingsBoard update data:\n" + data.toPrettyString());
-            // get all values out of the {<key>: [[<timestamp>, <value>]]} map and put them
-            // into a list [{key: <key>, timestamp: <timestamp>, value: <value>}]
-            final ObjectReader reader = mapper.readerFor(new TypeReference<List<List<Object>>>() {
-            });
-            for (Iterator<String> keys = data.fieldNames(); keys.hasNext(); ) {
-                final var key = keys.next();
-                List<List<Object>> dataArray = null;
-                try {
-                    dataArray = reader.readValue(data.get(key));
-                } catch (IOException e) {
-                    log.warn("Error reading array: " + e + "\nmessage: " + message);
-                    continue;
-                }
-                for (List<Object> innerArray : dataArray) {
-                    Object value = null;
-                    try {
-                        var update = new AttrUpdate();
-                        update.key = key;
-                        update.timestamp = Long.parseLong(innerArray.get(0).toString());
-                        value = innerArray.get(1);
-                        update.value = value;
-                        updateList.add(update);
-                        log.trace("Found update: " + update.key + ": " + update.value + " (" + update.timestamp + ")");
-                    } catch (Exception e) {
-                        log.warn("Error reading value: " + e.getMessage() + "\nvalue: " + value + "\nmessage: " +
-                                 message);
+        ListSink sink = new ListSink();
+        if (!parse(message, sink)) {
+            return sink.updates;
+        }
+        // sort all values in the list by timestamp (ascending)
+        final int size = sink.updates.size();
+        final long[] timestamps = new long[size];
+        final int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            timestamps[i] = sink.updates.get(i).timestamp;
+            order[i] = i;
+        }
+        final int[] sorted = mergeRuns(order, new int[size], size, sink.runs, sink.runCount, timestamps);
+        final AttrUpdate[] updates = sink.updates.toArray(new AttrUpdate[0]);
+        for (int i = 0; i < size; i++) {
+            sink.updates.set(i, updates[sorted[i]]);
+        }
+        if (log.isTraceEnabled()) {
+            var sortedListString = new StringBuilder();
+            for (AttrUpdate u : sink.updates)
+                sortedListString.append(u).append("\n");
+            log.trace("Sorted update list:\n" + sortedListString);
+        }
+        return sink.updates;
+    }
+
+    /**
+     * Parse a ThingsBoard JSON message (see {@link #parseMessage(String)}) into a reusable {@link AttrUpdateBatch},
+     * without boxing numeric and boolean values.
+     *
+     * @param message JSON message
+     * @param batch   batch to be filled; it is cleared first
+     * @return {@code batch}, holding the updates sorted by timestamp (asc); empty, if the data field is empty
+     * @throws ParseException if message could not be parsed as JSON
+     */
+    public static AttrUpdateBatch parseMessage(String message, AttrUpdateBatch batch) throws ParseException {
+        batch.clear();
+        BatchSink sink = new BatchSink(batch);
+        if (parse(message, sink)) {
+            batch.sort(sink.runs, sink.runCount);
+        }
+        return batch;
+    }
+
+    /** Receiver of the updates read by {@link #parse}. */
+    private abstract static class UpdateSink {
+        // start index of the updates of each key; the arrays of the keys are merged afterwards
+        int[] runs = new int[8];
+        int runCount = 0;
+
+        void startKey(String key) {
+            if (runCount == runs.length) runs = Arrays.copyOf(runs, runCount * 2);
+            runs[runCount++] = size();
+        }
+
+        abstract int size();
+
+        /** Add an update of the current key; the parser is positioned at the value. */
+        abstract void add(long timestamp, JsonParser parser, JsonToken token) throws IOException;
+    }
+
+    private static class ListSink extends UpdateSink {
+        final List<AttrUpdate> updates = new ArrayList<>();
+        String key;
+
+        @Override
+        void startKey(String key) {
+            super.startKey(key);
+            this.key = key;
+        }
+
+        @Override
+        int size() {
+            return updates.size();
+        }
+
+        @Override
+        void add(long timestamp, JsonParser parser, JsonToken token) throws IOException {
+            AttrUpdate update = new AttrUpdate(key, timestamp, readValue(parser, token));
+            updates.add(update);
+            if (log.isTraceEnabled()) {
+                log.trace("Found update: " + update.key + ": " + update.value + " (" + update.timestamp + ")");
+            }
+        }
+    }
+
+    private static class BatchSink extends UpdateSink {
+        final AttrUpdateBatch batch;
+        int keyIndex;
+
+        BatchSink(AttrUpdateBatch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        void startKey(String key) {
+            super.startKey(key);
+            keyIndex = batch.internKey(key);
+        }
+
+        @Override
+        int size() {
+            return batch.size();
+        }
+
+        @Override
+        void add(long timestamp, JsonParser parser, JsonToken token) throws IOException {
+            switch (token) {
+                case VALUE_STRING:
+                    batch.addText(keyIndex, timestamp, parser.getTextCharacters(), parser.getTextOffset(),
+                            parser.getTextLength());
+                    break;
+                case VALUE_NUMBER_INT:
+                    if (parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) {
+                        batch.addObject(keyIndex, timestamp, parser.getBigIntegerValue());
+                    } else {
+                        batch.addLong(keyIndex, timestamp, parser.getLongValue());
                     }
+                    break;
+                case VALUE_NUMBER_FLOAT:
+                    batch.addDouble(keyIndex, timestamp, parser.getDoubleValue());
+                    break;
+                case VALUE_TRUE:
+                case VALUE_FALSE:
+                    batch.addBoolean(keyIndex, timestamp, token == JsonToken.VALUE_TRUE);
+                    break;
+                case VALUE_NULL:
+                    batch.addNull(keyIndex, timestamp);
+                    break;
+                default:
+                    batch.addObject(keyIndex, timestamp, parser.readValueAs(Object.class));
+            }
+        }
+    }
 
+    /**
+     * Stream the updates of the "data" field of a message to a sink.
+     *
+     * @return false, if the message has no "data" field
+     */
+    private static boolean parse(String message, UpdateSink sink) throws ParseException {
+        log.debug("Trying to parse message: {}", message);
+        boolean dataFound = false;
+        if (message != null && !message.isEmpty()) {
+            try (JsonParser parser = FACTORY.createParser(message)) {
+                if (parser.nextToken() == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        final String field = parser.getCurrentName();
+                        final JsonToken token = parser.nextToken();
+                        if (!"data".equals(field) || token != JsonToken.START_OBJECT) {
+                            dataFound |= "data".equals(field);
+                            parser.skipChildren();
+                            continue;
+                        }
+                        dataFound = true;
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            final String key = parser.getCurrentName();
+                            sink.startKey(key);
+                            parseKeyData(parser, key, sink, message);
+                        }
+                    }
                 }
+            } catch (JsonProcessingException e) {
+                throw new ParseException(
+                        "Error parsing message: " + e.getClass() + " - " + e.getMessage() + "\nmessage:\n" + message,
+                        0);
+            } catch (IOException e) {
+                throw new ParseException("Error parsing message: " + e.getMessage() + "\nmessage:\n" + message, 0);
             }
-            // sort all values in the list by timestamp (ascending)
-            updateList.sort((u1, u2) -> (int) (u1.timestamp - u2.timestamp));
-            var sortedListString = new StringBuilder();
-            for (AttrUpdate u : updateList)
-                sortedListString.append(u).append("\n");
-            log.trace("Sorted update list:\n" + sortedListString);
-        } else {
+        }
+        if (!dataFound) {
             log.warn("Received ThingsBoard message with empty \"data\" item: " + message);
         }
-        return updateList;
+        return dataFound;
+    }
+
+    /**
+     * Read the {@code [[<timestamp>, <value>], ...]} array of a key. Invalid items are skipped.
+     */
+    private static void parseKeyData(JsonParser parser, String key, UpdateSink sink, String message)
+            throws IOException {
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+            log.warn("Error reading array of key " + key + "\nmessage: " + message);
+            parser.skipChildren();
+            return;
+        }
+        JsonToken item;
+        while ((item = parser.nextToken()) != JsonToken.END_ARRAY && item != null) {
+            if (item != JsonToken.START_ARRAY) {
+                log.warn("Error reading item of key " + key + "\nmessage: " + message);
+                parser.skipChildren();
+                continue;
+            }
+            JsonToken token = parser.nextToken();
+            final Long timestamp = token == JsonToken.END_ARRAY ? null : readTimestamp(parser, token);
+            if (token != JsonToken.END_ARRAY) token = parser.nextToken();
+            if (timestamp == null || token == JsonToken.END_ARRAY) {
+                log.warn("Error reading value of key " + key + "\nmessage: " + message);
+                skipItem(parser, token);
+                continue;
+            }
+            sink.add(timestamp, parser, token);
+            skipItem(parser, parser.nextToken());
+        }
+    }
+
+    /** Skip the remaining elements of a {@code [<timestamp>, <value>]} item, starting at {@code token}. */
+    private static void skipItem(JsonParser parser, JsonToken token) throws IOException {
+        while (token != JsonToken.END_ARRAY && token != null) {
+            parser.skipChildren();
+            token = parser.nextToken();
+        }
+    }
+
+    private static Long readTimestamp(JsonParser parser, JsonToken token) throws IOException {
+        try {
+            switch (token) {
+                case VALUE_NUMBER_INT:
+                    return parser.getLongValue();
+                case VALUE_STRING:
+                    return Long.parseLong(parser.getText());
+                default:
+                    parser.skipChildren();
+                    return null;
+            }
+        } catch (NumberFormatException | JsonProcessingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read a value like {@link ObjectMapper#readValue} into {@code Object}: strings, numbers, booleans, null, or
+     * maps and lists for nested JSON.
+     */
+    private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                return parser.readValueAs(Object.class);
+        }
+    }
+
+    /**
+     * Stable sort of update indexes by timestamp, given the runs of the single keys: ThingsBoard sends the values of a
+     * key ordered by timestamp (usually descending), so each run is only reversed or - if unordered - sorted, and the
+     * runs are merged pairwise. Updates with equal timestamps keep their order in the message.
+     *
+     * @param order      indexes of the updates, initially {@code 0 .. size - 1}
+     * @param buffer     scratch array of at least {@code size} elements
+     * @param size       number of updates
+     * @param runs       start indexes of the runs
+     * @param runCount   number of runs
+     * @param timestamps timestamps of the updates by index
+     * @return {@code order} or {@code buffer}, holding the sorted indexes
+     */
+    static int[] mergeRuns(int[] order, int[] buffer, int size, int[] runs, int runCount, long[] timestamps) {
+        if (size < 2) return order;
+        int[] bounds = Arrays.copyOf(runs, runCount + 1);
+        bounds[runCount] = size;
+        for (int r = 0; r < runCount; r++) {
+            normalizeRun(order, buffer, bounds[r], bounds[r + 1], timestamps);
+        }
+        int[] source = order;
+        int[] target = buffer;
+        // merge adjacent runs until a single run is left
+        while (runCount > 1) {
+            int merged = 0;
+            for (int r = 0; r < runCount; r += 2) {
+                int from = bounds[r];
+                int mid = bounds[Math.min(r + 1, runCount)];
+                int to = bounds[Math.min(r + 2, runCount)];
+                merge(source, target, from, mid, to, timestamps);
+                bounds[merged++] = from;
+            }
+            bounds[merged] = size;
+            runCount = merged;
+            int[] tmp = source;
+            source = target;
+            target = tmp;
+        }
+        return source;
+    }
+
+    /** Bring the indexes {@code [from, to)} of a key into ascending order of their timestamps. */
+    private static void normalizeRun(int[] order, int[] buffer, int from, int to, long[] timestamps) {
+        boolean ascending = true;
+        boolean strictlyDescending = true;
+        for (int i = from + 1; i < to; i++) {
+            ascending &= timestamps[order[i - 1]] <= timestamps[order[i]];
+            strictlyDescending &= timestamps[order[i - 1]] > timestamps[order[i]];
+        }
+        if (ascending) return;
+        if (strictlyDescending) {
+            for (int i = from, j = to - 1; i < j; i++, j--) {
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+        } else {
+            sortRun(order, buffer, from, to, timestamps);
+        }
+    }
+
+    /** Stable merge sort of the indexes {@code [from, to)}. */
+    private static void sortRun(int[] order, int[] buffer, int from, int to, long[] timestamps) {
+        if (to - from <= 16) {
+            // insertion sort
+            for (int i = from + 1; i < to; i++) {
+                int index = order[i];
+                int j = i - 1;
+                for (; j >= from && timestamps[order[j]] > timestamps[index]; j--) {
+                    order[j + 1] = order[j];
+                }
+                order[j + 1] = index;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sortRun(order, buffer, from, mid, timestamps);
+        sortRun(order, buffer, mid, to, timestamps);
+        if (timestamps[order[mid - 1]] <= timestamps[order[mid]]) return;
+        merge(order, buffer, from, mid, to, timestamps);
+        System.arraycopy(buffer, from, order, from, to - from);
+    }
+
+    private static void merge(int[] source, int[] target, int from, int mid, int to, long[] timestamps) {
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k++) {
+            // take from the left run on equal timestamps to keep the sort stable
+            if (j >= to || (i < mid && timestamps[source[i]] <= timestamps[source[j]])) {
+                target[k] = source[i++];
+            } else {
+                target[k] = source[j++];
+            }
+        }
     }
 
     /**
@@ -137,14 +444,42 @@ public class WsParserUtils {
      *                               @throws {@link ParseException} if subscription ID could not be parsed
      */
     public static int parseSubscriptionId(String message) throws ParseException {
-        log.debug("Trying to parse subscription ID in message: " + message);
-        final var mapper = new ObjectMapper();
-        final var id = extractTopLevelNode(message, "subscriptionId", mapper);
-        try {
-            return Integer.parseInt(id.asText());
-        } catch (NumberFormatException | NullPointerException e) {
-            throw new ParseException(
-                    "Error reading subscription ID in message: \"" + message + "\" - " + e.getMessage(), 0);
+        log.debug("Trying to parse subscription ID in message: {}", message);
+        final Integer id = readSubscriptionId(message);
+        if (id == null) {
+            throw new ParseException("Error reading subscription ID in message: \"" + message + "\"", 0);
+        }
+        return id;
+    }
+
+    /**
+     * Read the top-level "subscriptionId" field of a message with the streaming parser, without reading the rest of
+     * the message into memory.
+     *
+     * @return subscription ID, null if the message has no "subscriptionId" field with an integer
+     * @throws ParseException if the message is not valid JSON
+     */
+    static Integer readSubscriptionId(String message) throws ParseException {
+        if (message == null || message.isEmpty()) return null;
+        try (JsonParser parser = FACTORY.createParser(message)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) return null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+                if ("subscriptionId".equals(field)) {
+                    if (token == JsonToken.VALUE_NUMBER_INT) return parser.getIntValue();
+                    if (token != JsonToken.VALUE_STRING) return null;
+                    try {
+                        return Integer.parseInt(parser.getText());
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                }
+                parser.skipChildren();
+            }
+            return null;
+        } catch (IOException e) {
+            throw new ParseException("Error parsing message: " + e.getMessage() + "\nmessage:\n" + message, 0);
         }
     }
 
@@ -35,12 +35,33 @@ fun ExtRestClient.subscribeToWS(
     msgHandler(parseMessage)
 }
 
+/**
+ * Subscribe to updates like [subscribeToWS], but without boxing numeric and boolean values. The batch passed to
+ * `msgHandler` is reused for the next message and must not be kept.
+ */
+@JvmOverloads
+fun ExtRestClient.subscribeToWSBatch(
+    deviceId: DeviceId,
+    type: SubscriptionType,
+    keys: List<String>? = null,
+    msgHandler: (AttrUpdateBatch) -> Unit
+): WebSocketClient {
+    val batch = AttrUpdateBatch()
+    return subscribeToWSMsg(deviceId, type, keys) { message: String ->
+        msgHandler(WsParserUtils.parseMessage(message, batch))
+    }
+}
+
 fun ExtRestClient.subscribeToWSMsg(
     deviceId: DeviceId,
     type: SubscriptionType,
     msgHandler: (String) -> Unit
 ) = subscribeToWSMsg(deviceId, type, null, msgHandler)
 
+/**
+ * Subscribe to updates with a websocket of its own, which passes each raw JSON message to `msgHandler`. The websocket
+ * is not reopened, if it is closed; use a [WsSubscriptionManager] for subscriptions, which survive connection losses.
+ */
 fun ExtRestClient.subscribeToWSMsg(
     deviceId: DeviceId,
     type: SubscriptionType,
@@ -99,12 +120,30 @@ fun buildWsSubscriptionJson(deviceId: DeviceId, type: SubscriptionType, keys: Li
 fun buildWsSubscriptionJsonWithId(deviceId: DeviceId, type: SubscriptionType, keys: List<String>?): Pair<Int,
         JSONObject> {
     val id = Random().nextInt()
+    return Pair(id, buildWsSubscriptionJson(id, deviceId, type, keys))
+}
+
+/**
+ * Build a ThingsBoard websocket subscription command with the given `cmdId` (see [buildWsSubscriptionJson]), which is
+ * returned as `subscriptionId` in the updates of the subscription.
+ *
+ * @param unsubscribe if true, build the command to cancel the subscription with the given `cmdId`
+ */
+@JvmOverloads
+fun buildWsSubscriptionJson(
+    cmdId: Int,
+    deviceId: DeviceId,
+    type: SubscriptionType,
+    keys: List<String>?,
+    unsubscribe: Boolean = false
+): JSONObject {
     val subscriptionConfig = json {
         "entityType" to "DEVICE"
         "entityId" to deviceId.id
         "scope" to type.toString()
-        "cmdId" to id
+        "cmdId" to cmdId
     }
+    if (unsubscribe) subscriptionConfig.put("unsubscribe", true)
     keys?.let { subscriptionConfig.put("keys", StringBuilder(keys.toString()).replace(Regex("[\\s\\[\\]]"), "")) }
     val subscr = json {
         if (type == SubscriptionType.LATEST_TELEMETRY) {
@@ -117,9 +156,145 @@ fun buildWsSubscriptionJsonWithId(deviceId: DeviceId, type: SubscriptionType, ke
 
         "historyCmds" to arrayOf<String>()
     }
-    return Pair(id, subscr)
+    return subscr
 }
 
+/**
+ * Build a ThingsBoard websocket command, which queries the raw telemetry of a device in a time range once, of the
+ * format:
+ * ```
+ *  {
+ *      "historyCmds": [
+ *          {
+ *              "cmdId": <cmdId>,
+ *              "entityType": "DEVICE",
+ *              "entityId": <deviceId>,
+ *              "keys": <keys>,
+ *              "startTs": <startTs>,
+ *              "endTs": <endTs>,
+ *              "limit": <limit>,
+ *              "agg": "NONE"
+ *          }
+ *      ],
+ *      "attrSubCmds": [],
+ *      "tsSubCmds": []
+ *  }
+ * ```
+ * The reply has the format of a telemetry update with `subscriptionId` `cmdId`. If there are more than `limit`
+ * values of a key in the range, ThingsBoard returns the latest `limit` ones.
+ *
+ * @param startTs start of the range in epoch ms, inclusive
+ * @param endTs   end of the range in epoch ms, inclusive
+ * @param limit   maximum number of values per key
+ */
+fun buildHistoryCmdJson(
+    cmdId: Int,
+    deviceId: DeviceId,
+    keys: List<String>,
+    startTs: Long,
+    endTs: Long,
+    limit: Int
+): JSONObject = json {
+    "historyCmds" to arrayOf(json {
+        "cmdId" to cmdId
+        "entityType" to "DEVICE"
+        "entityId" to deviceId.id
+        "keys" to keys.joinToString(",")
+        "startTs" to startTs
+        "endTs" to endTs
+        "interval" to 0
+        "limit" to limit
+        "agg" to "NONE"
+    })
+    "attrSubCmds" to arrayOf<String>()
+    "tsSubCmds" to arrayOf<String>()
+}
+
+
+/**
+ * Build a ThingsBoard websocket entity data command, which subscribes to the latest values of all entities matching
+ * an entity filter, of the format:
+ * ```
+ *  {
+ *      "entityDataCmds": [
+ *          {
+ *              "cmdId": <cmdId>,
+ *              "query": {
+ *                  "entityFilter": <entityFilter>,
+ *                  "pageLink": { "page": <page>, "pageSize": <pageSize>, "dynamic": true, "sortOrder": ... },
+ *                  "entityFields": [ { "type": "ENTITY_FIELD", "key": "name" } ],
+ *                  "latestValues": [ { "type": "TIME_SERIES", "key": <key> }, { "type": "ATTRIBUTE", "key": <key> } ]
+ *              },
+ *              "latestCmd": { "keys": <latestValues> }
+ *          }
+ *      ]
+ *  }
+ * ```
+ * With a dynamic page link, ThingsBoard re-evaluates the query periodically, so that entities joining or leaving the
+ * filter are reflected.
+ *
+ * @param cmdId        command id, returned as `cmdId` in the updates
+ * @param entityFilter entity filter, e.g. [buildDeviceTypeFilter]
+ * @param timeseries   latest telemetry keys
+ * @param attributes   attribute keys (of any scope)
+ * @param page         page of the matching entities, sorted by creation time
+ * @param pageSize     number of entities per page
+ */
+@JvmOverloads
+fun buildEntityDataCmdJson(
+    cmdId: Int,
+    entityFilter: JSONObject,
+    timeseries: List<String>,
+    attributes: List<String>,
+    page: Int = 0,
+    pageSize: Int = 1024
+): JSONObject {
+    val keys = timeseries.map { json { "type" to "TIME_SERIES"; "key" to it } } +
+            attributes.map { json { "type" to "ATTRIBUTE"; "key" to it } }
+    return json {
+        "entityDataCmds" to arrayOf(json {
+            "cmdId" to cmdId
+            "query" to {
+                "entityFilter" to entityFilter
+                "pageLink" to {
+                    "page" to page
+                    "pageSize" to pageSize
+                    "dynamic" to true
+                    "sortOrder" to {
+                        "key" to {
+                            "type" to "ENTITY_FIELD"
+                            "key" to "createdTime"
+                        }
+                        "direction" to "ASC"
+                    }
+                }
+                "entityFields" to arrayOf(json { "type" to "ENTITY_FIELD"; "key" to "name" })
+                "latestValues" to keys.toTypedArray()
+            }
+            "latestCmd" to {
+                "keys" to keys.toTypedArray()
+            }
+        })
+    }
+}
+
+/** Build the ThingsBoard websocket command to cancel the entity data subscription with the given `cmdId`. */
+fun buildEntityDataUnsubscribeJson(cmdId: Int): JSONObject = json {
+    "entityDataUnsubscribeCmds" to arrayOf(json { "cmdId" to cmdId })
+}
+
+/**
+ * Build a ThingsBoard entity filter matching all devices of a device type (i.e. profile).
+ *
+ * @param deviceType       device type
+ * @param deviceNameFilter prefix of the device names; all devices if empty
+ */
+@JvmOverloads
+fun buildDeviceTypeFilter(deviceType: String, deviceNameFilter: String = ""): JSONObject = json {
+    "type" to "deviceType"
+    "deviceType" to deviceType
+    "deviceNameFilter" to deviceNameFilter
+}
 
 // usage example
 fun main() {
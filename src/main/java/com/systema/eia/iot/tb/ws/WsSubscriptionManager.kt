@@ -0,0 +1,670 @@
+package com.systema.eia.iot.tb.ws
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.node.ArrayNode
+import com.fasterxml.jackson.databind.node.ObjectNode
+import com.systema.eia.iot.tb.clients.ExtRestClient
+import com.systema.eia.iot.tb.utils.SubscriptionType
+import mu.KotlinLogging
+import org.java_websocket.client.WebSocketClient
+import org.java_websocket.handshake.ServerHandshake
+import org.json.JSONObject
+import org.thingsboard.server.common.data.id.DeviceId
+import org.thingsboard.server.common.data.id.EntityId
+import org.thingsboard.server.common.data.id.EntityIdFactory
+import java.io.Closeable
+import java.net.URI
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Latest values of an entity, received via [WsSubscriptionManager.subscribeEntityData].
+ *
+ * @property entityId entity id
+ * @property name     entity name
+ * @property values   latest values of the subscribed keys; with timestamp 0 for keys without value
+ */
+data class EntityLatestValues(val entityId: EntityId, val name: String?, val values: List<AttrUpdate>)
+
+/**
+ * Multiplexes many ThingsBoard attribute and telemetry subscriptions (`attrSubCmds` / `tsSubCmds`) over a few
+ * websockets, instead of one websocket (and two threads) per subscription as with [subscribeToWS].
+ *
+ * Each subscription gets a `cmdId` unique within the manager, and the updates are routed to the handlers by their
+ * `subscriptionId`. A new websocket is opened, as soon as all open websockets carry `maxSubscriptionsPerSocket`
+ * subscriptions. Subscriptions can be added and cancelled at any time.
+ *
+ * Entity data subscriptions ([subscribeEntityData]) stream the latest values of all entities matching a filter, e.g.
+ * all devices of a profile, with a single command per page of entities, instead of a subscription per device.
+ *
+ * If a websocket is closed, e.g. by a restart of ThingsBoard, its subscriptions are kept: the manager refreshes the
+ * token of the client (or logs in again), opens a new websocket and re-issues their commands, retrying with
+ * exponential backoff. The telemetry missed by latest telemetry subscriptions in the meantime is queried with a
+ * `historyCmd` and passed to the handlers before any newer update, so that the handlers see a continuous stream
+ * ordered by message. Attribute and entity data subscriptions get the current values with the first message after the
+ * reconnect.
+ *
+ * Without `handlerExecutor`, the handlers run on the reader thread of the websocket, which is shared by up to
+ * `maxSubscriptionsPerSocket` subscriptions: a handler, which blocks (e.g. on a REST call), delays the updates of all
+ * of them. Pass an executor to run the handlers on its threads instead; the updates of a subscription are still passed
+ * in order, one at a time. Updates queue up in memory while the handlers of a subscription fall behind.
+ *
+ * Example (Kotlin):
+ * ```
+ * WsSubscriptionManager(client).use { manager ->
+ *     devices.forEach { device ->
+ *         manager.subscribe(device.id, SubscriptionType.SHARED_SCOPE) { changes -> changes.forEach { println(it) } }
+ *     }
+ * }
+ * ```
+ *
+ * @property client                    ThingsBoard REST client providing host, port and token
+ * @property maxSubscriptionsPerSocket maximum number of subscriptions per websocket
+ * @property reconnectDelay            delay of the first reconnect attempt; doubled with each failed attempt
+ * @property maxReconnectDelay         maximum delay between reconnect attempts
+ * @property gapFillLimit              maximum number of missed values per key queried after a reconnect; if more
+ *                                     values were missed, only the latest ones are passed to the handler
+ * @property handlerExecutor           executor running the handlers; null to run them on the websocket thread
+ */
+class WsSubscriptionManager @JvmOverloads constructor(
+    val client: ExtRestClient,
+    val maxSubscriptionsPerSocket: Int = 1000,
+    val reconnectDelay: Duration = Duration.ofSeconds(1),
+    val maxReconnectDelay: Duration = Duration.ofMinutes(1),
+    val gapFillLimit: Int = 10000,
+    val handlerExecutor: Executor? = null
+) : Closeable {
+
+    companion object {
+        private val log = KotlinLogging.logger {}
+        private val mapper = ObjectMapper()
+        private const val CONNECT_TIMEOUT_S = 30L
+    }
+
+    init {
+        require(maxSubscriptionsPerSocket > 0) { "maxSubscriptionsPerSocket must be positive" }
+        require(!reconnectDelay.isNegative && !reconnectDelay.isZero) { "reconnectDelay must be positive" }
+        require(gapFillLimit > 0) { "gapFillLimit must be positive" }
+    }
+
+    /**
+     * Subscription of a [WsSubscriptionManager]; [close] cancels it.
+     *
+     * @property id       `cmdId` of the subscription, i.e. `subscriptionId` of its updates
+     * @property deviceId subscribed device
+     * @property type     subscription type
+     * @property keys     subscribed keys, all if null
+     */
+    inner class Subscription internal constructor(
+        val id: Int,
+        val deviceId: DeviceId,
+        val type: SubscriptionType,
+        val keys: List<String>?,
+        private val handler: Subscription.(String) -> Unit
+    ) : Closeable {
+        internal var socket: Socket? = null
+
+        // runs the handler in order
+        internal val queue = HandlerQueue()
+
+        // latest timestamp passed to the handler per key, tracked for latest telemetry only; start of the gap to
+        // fill after a reconnect
+        internal val lastTs = ConcurrentHashMap<String, LongArray>()
+
+        // updates received after a reconnect, until the reply of the gap fill query; guarded by this
+        internal var pending: MutableList<String>? = null
+
+        // the first update after a reconnect repeats the latest values
+        internal var awaitingSnapshot = false
+
+        internal val tracksTimestamps: Boolean
+            get() = type == SubscriptionType.LATEST_TELEMETRY
+
+        internal fun receive(message: String) = queue.dispatch { handler(message) }
+
+        // runs the handler directly, called by the queue
+        internal fun handle(message: String) = handler(message)
+
+        internal fun track(key: String, ts: Long) {
+            val last = lastTs[key]
+            if (last == null) lastTs[key] = longArrayOf(ts) else if (ts > last[0]) last[0] = ts
+        }
+
+        internal fun track(batch: AttrUpdateBatch) {
+            for (row in 0 until batch.size()) track(batch.key(row), batch.timestamp(row))
+        }
+
+        override fun close() = unsubscribe(this)
+
+        override fun toString() = "Subscription(id=$id, deviceId=$deviceId, type=$type, keys=$keys)"
+    }
+
+    /**
+     * Entity data subscription of a [WsSubscriptionManager]; [close] cancels it.
+     *
+     * @property entityFilter ThingsBoard entity filter
+     * @property timeseries   subscribed latest telemetry keys
+     * @property attributes   subscribed attribute keys
+     * @property pageSize     number of entities per command
+     */
+    inner class EntityDataSubscription internal constructor(
+        val entityFilter: JSONObject,
+        val timeseries: List<String>,
+        val attributes: List<String>,
+        val pageSize: Int,
+        internal val handler: (EntityLatestValues) -> Unit
+    ) : Closeable {
+        // cmdId per page of entities
+        internal val pages = CopyOnWriteArrayList<Int>()
+        internal var socket: Socket? = null
+
+        // runs the handler in order
+        internal val queue = HandlerQueue()
+
+        /** Number of pages of entities subscribed so far. */
+        val pageCount: Int
+            get() = pages.size
+
+        override fun close() = unsubscribe(this)
+
+        override fun toString() = "EntityDataSubscription(filter=$entityFilter, pages=$pages)"
+    }
+
+    /** Runs the handler tasks of a subscription one at a time in order, on the `handlerExecutor` if set. */
+    internal inner class HandlerQueue {
+        // guarded by this
+        private val tasks = ArrayDeque<() -> Unit>()
+        private var running = false
+
+        fun dispatch(task: () -> Unit) {
+            val executor = handlerExecutor ?: return task()
+            synchronized(this) {
+                tasks.addLast(task)
+                if (running) return
+                running = true
+            }
+            try {
+                executor.execute { drain() }
+            } catch (e: RejectedExecutionException) {
+                synchronized(this) {
+                    tasks.clear()
+                    running = false
+                }
+                if (!closed) log.warn { "Handler executor rejected the updates of a subscription - dropped" }
+            }
+        }
+
+        private fun drain() {
+            while (true) {
+                val task = synchronized(this) {
+                    tasks.removeFirstOrNull() ?: run {
+                        running = false
+                        return
+                    }
+                }
+                try {
+                    task()
+                } catch (e: Exception) {
+                    log.warn(e) { "Subscription handler failed" }
+                }
+            }
+        }
+    }
+
+    internal inner class Socket(uri: URI) : WebSocketClient(uri) {
+        val subscriptions: MutableSet<Int> = ConcurrentHashMap.newKeySet()
+
+        @Volatile
+        private var opened = false
+
+        override fun onOpen(handshakedata: ServerHandshake?) {
+            opened = true
+            log.debug { "Opened subscription websocket $uri" }
+        }
+
+        override fun onMessage(message: String?) {
+            message?.let { route(it) }
+        }
+
+        override fun onClose(code: Int, reason: String?, remote: Boolean) {
+            // a failed connect is reported by selectSocket, which holds the lock of the manager meanwhile
+            if (opened) onSocketClosed(this, code, reason)
+        }
+
+        override fun onError(ex: Exception?) {
+            if (opened) log.error(ex) { "Subscription websocket error" } else log.debug { "Connect failed: $ex" }
+        }
+    }
+
+    private val cmdIds = AtomicInteger()
+    private val subscriptions = ConcurrentHashMap<Int, Subscription>()
+    private val entityDataSubscriptions = ConcurrentHashMap<Int, EntityDataSubscription>()
+
+    // subscription by cmdId of its gap fill query
+    private val gapFills = ConcurrentHashMap<Int, Subscription>()
+
+    private val reconnects = AtomicLong()
+    private val reconnector = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "ws-reconnect").apply { isDaemon = true }
+    }
+
+    // guarded by this
+    private val sockets = ArrayList<Socket>()
+
+    @Volatile
+    private var closed = false
+
+    /** Number of active subscriptions, counting entity data subscriptions once per page. */
+    val subscriptionCount: Int
+        get() = subscriptions.size + entityDataSubscriptions.size
+
+    /** Number of open websockets. */
+    val socketCount: Int
+        @Synchronized get() = sockets.size
+
+    /** Number of websockets opened again after a websocket was closed. */
+    val reconnectCount: Long
+        get() = reconnects.get()
+
+    /**
+     * Subscribe to attribute or latest telemetry updates of a device.
+     *
+     * @param deviceId device to subscribe to
+     * @param type     subscription type
+     * @param keys     keys to subscribe to; all keys if null or empty
+     * @param handler  called with the updates of each message, on the thread of the websocket or the `handlerExecutor`
+     * @return subscription, to be closed to cancel it
+     */
+    @JvmOverloads
+    fun subscribe(
+        deviceId: DeviceId,
+        type: SubscriptionType,
+        keys: List<String>? = null,
+        handler: (List<AttrUpdate>) -> Unit
+    ): Subscription = add(deviceId, type, keys) { message ->
+        val updates = WsParserUtils.parseMessage(message)
+        if (tracksTimestamps) updates.forEach { track(it.key, it.timestamp) }
+        handler(updates)
+    }
+
+    /**
+     * Subscribe to attribute or latest telemetry updates of a device, see [subscribe]. Numeric and boolean values are
+     * not boxed, which suits high-rate telemetry.
+     *
+     * @param handler called with the updates of each message; the batch is reused for the next message of the
+     *                subscription and must not be kept
+     */
+    @JvmOverloads
+    fun subscribeBatch(
+        deviceId: DeviceId,
+        type: SubscriptionType,
+        keys: List<String>? = null,
+        handler: (AttrUpdateBatch) -> Unit
+    ): Subscription {
+        val batch = AttrUpdateBatch()
+        return add(deviceId, type, keys) { message ->
+            WsParserUtils.parseMessage(message, batch)
+            if (tracksTimestamps) track(batch)
+            handler(batch)
+        }
+    }
+
+    /**
+     * Subscribe to attribute or latest telemetry updates of a device, see [subscribe].
+     *
+     * @param handler called with each raw JSON message of the subscription
+     */
+    @JvmOverloads
+    fun subscribeMsg(
+        deviceId: DeviceId,
+        type: SubscriptionType,
+        keys: List<String>? = null,
+        handler: (String) -> Unit
+    ): Subscription {
+        // timestamps of latest telemetry are read into a batch of the subscription
+        val batch = if (type == SubscriptionType.LATEST_TELEMETRY) AttrUpdateBatch() else null
+        return add(deviceId, type, keys) { message ->
+            batch?.let { track(WsParserUtils.parseMessage(message, it)) }
+            handler(message)
+        }
+    }
+
+    private fun add(
+        deviceId: DeviceId,
+        type: SubscriptionType,
+        keys: List<String>?,
+        handler: Subscription.(String) -> Unit
+    ): Subscription {
+        check(!closed) { "WsSubscriptionManager has been closed" }
+        val subscription = Subscription(cmdIds.incrementAndGet(), deviceId, type, keys, handler)
+        subscriptions[subscription.id] = subscription
+        val socket = synchronized(this) {
+            selectSocket().also {
+                it.subscriptions.add(subscription.id)
+                subscription.socket = it
+            }
+        }
+        socket.send(buildWsSubscriptionJson(subscription.id, deviceId, type, keys).toString())
+        return subscription
+    }
+
+    /** Cancel a subscription. */
+    fun unsubscribe(subscription: Subscription) {
+        if (subscriptions.remove(subscription.id) == null) return
+        gapFills.values.remove(subscription)
+        val socket = synchronized(this) {
+            subscription.socket?.also { it.subscriptions.remove(subscription.id) }
+        }
+        subscription.socket = null
+        if (socket?.isOpen == true) {
+            val cmd = buildWsSubscriptionJson(
+                subscription.id, subscription.deviceId, subscription.type, subscription.keys, unsubscribe = true
+            )
+            socket.send(cmd.toString())
+        }
+    }
+
+    /**
+     * Subscribe to the latest values of all entities matching a filter. The first message of each page of entities
+     * holds the current values of all its entities, later messages the changed values only. Further pages are
+     * subscribed, as soon as ThingsBoard reports more entities than fit into the subscribed pages.
+     *
+     * Example (Kotlin):
+     * ```
+     * manager.subscribeEntityData(buildDeviceTypeFilter("thermostat"), listOf("temperature")) { entity ->
+     *     println("${entity.name}: ${entity.values}")
+     * }
+     * ```
+     *
+     * @param entityFilter ThingsBoard entity filter, e.g. [buildDeviceTypeFilter]
+     * @param timeseries   latest telemetry keys
+     * @param attributes   attribute keys (of any scope)
+     * @param pageSize     number of entities per command
+     * @param handler      called for each entity in each message, on the thread of the websocket or the
+     *                     `handlerExecutor`
+     * @return subscription, to be closed to cancel it
+     */
+    @JvmOverloads
+    fun subscribeEntityData(
+        entityFilter: JSONObject,
+        timeseries: List<String>,
+        attributes: List<String> = listOf(),
+        pageSize: Int = 1024,
+        handler: (EntityLatestValues) -> Unit
+    ): EntityDataSubscription {
+        check(!closed) { "WsSubscriptionManager has been closed" }
+        require(pageSize > 0) { "pageSize must be positive" }
+        val subscription = EntityDataSubscription(entityFilter, timeseries, attributes, pageSize, handler)
+        synchronized(this) {
+            subscription.socket = selectSocket()
+            subscribePage(subscription)
+        }
+        return subscription
+    }
+
+    /** Cancel an entity data subscription. */
+    fun unsubscribe(subscription: EntityDataSubscription) {
+        val socket = synchronized(this) { subscription.socket.also { subscription.socket = null } } ?: return
+        subscription.pages.forEach { cmdId ->
+            entityDataSubscriptions.remove(cmdId)
+            socket.subscriptions.remove(cmdId)
+            if (socket.isOpen) socket.send(buildEntityDataUnsubscribeJson(cmdId).toString())
+        }
+    }
+
+    /** Cancel all subscriptions and close the websockets. */
+    override fun close() {
+        closed = true
+        reconnector.shutdownNow()
+        subscriptions.clear()
+        gapFills.clear()
+        entityDataSubscriptions.clear()
+        val open = synchronized(this) { sockets.toList().also { sockets.clear() } }
+        open.forEach { it.close() }
+    }
+
+    /** Socket with the fewest subscriptions, if below the limit; else a new one. */
+    private fun selectSocket(): Socket {
+        sockets.filter { it.isOpen && it.subscriptions.size < maxSubscriptionsPerSocket }
+            .minByOrNull { it.subscriptions.size }
+            ?.let { return it }
+
+        val uri = URI("ws://${client.tbHost}:${client.tbPort}/api/ws/plugins/telemetry?token=${client.token}")
+        val socket = Socket(uri)
+        require(socket.connectBlocking(CONNECT_TIMEOUT_S, TimeUnit.SECONDS)) {
+            "Failed to open subscription websocket to ${client.tbHost}"
+        }
+        sockets.add(socket)
+        return socket
+    }
+
+    /** Subscribe the next page of entities of an entity data subscription; called with the lock held. */
+    private fun subscribePage(subscription: EntityDataSubscription) {
+        val socket = subscription.socket ?: return
+        val cmdId = cmdIds.incrementAndGet()
+        val page = subscription.pages.size
+        subscription.pages.add(cmdId)
+        entityDataSubscriptions[cmdId] = subscription
+        socket.subscriptions.add(cmdId)
+        val cmd = buildEntityDataCmdJson(
+            cmdId, subscription.entityFilter, subscription.timeseries, subscription.attributes,
+            page, subscription.pageSize
+        )
+        socket.send(cmd.toString())
+    }
+
+    private fun route(message: String) {
+        try {
+            // entity data updates carry the cmdId, attribute and telemetry updates the subscriptionId
+            val id = WsParserUtils.readSubscriptionId(message)
+            if (id == null) {
+                onEntityData(mapper.readTree(message))
+                return
+            }
+            gapFills.remove(id)?.let {
+                onGapFill(it, mapper.readTree(message))
+                return
+            }
+            val subscription = subscriptions[id]
+            if (subscription == null) {
+                log.debug { "Dropping message of unknown subscription $id" }
+                return
+            }
+            if (!subscription.tracksTimestamps) {
+                subscription.receive(message)
+                return
+            }
+            synchronized(subscription) {
+                val snapshot = subscription.awaitingSnapshot
+                subscription.awaitingSnapshot = false
+                val pending = subscription.pending
+                when {
+                    pending != null -> pending.add(message)
+                    snapshot -> subscription.queue.dispatch { deliverNew(subscription, mapper.readTree(message)) }
+                    else -> subscription.receive(message)
+                }
+            }
+        } catch (e: Exception) {
+            log.warn(e) { "Failed to process subscription update: $message" }
+        }
+    }
+
+    private fun onEntityData(node: JsonNode) {
+        val cmdId = node.path("cmdId").asInt()
+        val subscription = entityDataSubscriptions[cmdId] ?: return
+        if (node.path("errorCode").asInt() != 0) {
+            log.warn { "Entity data subscription $cmdId failed: ${node.path("errorMsg").asText()}" }
+            return
+        }
+        val data = node.path("data")
+        val entities = data.path("data").map { parseEntity(it) } + node.path("update").map { parseEntity(it) }
+        subscription.queue.dispatch { entities.forEach(subscription.handler) }
+        // more entities than subscribed: subscribe the next page
+        if (data.path("hasNext").asBoolean() && subscription.pages.lastOrNull() == cmdId) {
+            synchronized(this) { subscribePage(subscription) }
+        }
+    }
+
+    private fun parseEntity(node: JsonNode): EntityLatestValues {
+        val entityId = node.path("entityId")
+        val latest = node.path("latest")
+        val values = ArrayList<AttrUpdate>()
+        for (type in listOf("TIME_SERIES", "ATTRIBUTE")) {
+            latest.path(type).fields().forEach { (key, value) ->
+                values.add(AttrUpdate(key, value.path("ts").asLong(), value.path("value").asText()))
+            }
+        }
+        return EntityLatestValues(
+            EntityIdFactory.getByTypeAndId(entityId.path("entityType").asText(), entityId.path("id").asText()),
+            latest.path("ENTITY_FIELD").path("name").path("value").textValue(),
+            values
+        )
+    }
+
+    /**
+     * Pass the values of a telemetry update, which are newer than the values already passed, to the handler of a
+     * subscription; called by the [HandlerQueue] of the subscription, after the handler has processed the preceding
+     * updates. Only used while recovering from a reconnect.
+     */
+    private fun deliverNew(subscription: Subscription, node: JsonNode) {
+        val data = node.path("data")
+        if (data is ObjectNode) {
+            data.fields().forEach { (key, values) ->
+                val last = subscription.lastTs[key]?.get(0) ?: return@forEach
+                if (values is ArrayNode) {
+                    val iterator = values.elements()
+                    while (iterator.hasNext()) if (iterator.next().path(0).asLong() <= last) iterator.remove()
+                }
+            }
+            data.fields().let { fields -> while (fields.hasNext()) if (fields.next().value.isEmpty) fields.remove() }
+        }
+        if (data.isEmpty) return
+        subscription.handle(mapper.writeValueAsString(node))
+    }
+
+    /** Pass the missed telemetry and then the updates received meanwhile to the handler. */
+    private fun onGapFill(subscription: Subscription, node: JsonNode) {
+        if (node.path("errorCode").asInt() != 0) {
+            log.warn { "Gap fill of subscription ${subscription.id} failed: ${node.path("errorMsg").asText()}" }
+        } else if (node.path("data").any { it.size() >= gapFillLimit }) {
+            log.warn { "Gap fill of subscription ${subscription.id} exceeds $gapFillLimit values - older values lost" }
+        }
+        synchronized(subscription) {
+            if (node.path("errorCode").asInt() == 0) subscription.queue.dispatch { deliverNew(subscription, node) }
+            flushPending(subscription)
+        }
+    }
+
+    /** Pass the updates received since a reconnect to the handler; called with the subscription locked. */
+    private fun flushPending(subscription: Subscription) {
+        val pending = subscription.pending ?: return
+        subscription.pending = null
+        pending.forEach { message ->
+            subscription.queue.dispatch { deliverNew(subscription, mapper.readTree(message)) }
+        }
+    }
+
+    private fun onSocketClosed(socket: Socket, code: Int, reason: String?) {
+        synchronized(this) { sockets.remove(socket) }
+        if (closed) return
+        val lost = socket.subscriptions.toList()
+        if (lost.isEmpty()) return
+        log.warn { "Subscription websocket closed ($code $reason) - reconnecting ${lost.size} subscriptions" }
+        scheduleReconnect(lost, 0)
+    }
+
+    private fun scheduleReconnect(lost: List<Int>, attempt: Int) {
+        val delay = reconnectDelay.toMillis().shl(minOf(attempt, 20)).coerceAtMost(maxReconnectDelay.toMillis())
+        try {
+            reconnector.schedule({ reconnect(lost, attempt) }, delay, TimeUnit.MILLISECONDS)
+        } catch (e: RejectedExecutionException) {
+            // closed meanwhile
+        }
+    }
+
+    /** Re-issue the commands of the subscriptions of a closed websocket on a new websocket. */
+    private fun reconnect(lost: List<Int>, attempt: Int) {
+        if (closed) return
+        val remaining = lost.toMutableList()
+        try {
+            refreshToken()
+            val entityData = HashSet<EntityDataSubscription>()
+            while (remaining.isNotEmpty() && !closed) {
+                val cmdId = remaining.first()
+                subscriptions[cmdId]?.let { resubscribe(it) }
+                entityDataSubscriptions[cmdId]?.let { if (entityData.add(it)) resubscribe(it) }
+                remaining.removeAt(0)
+            }
+            reconnects.incrementAndGet()
+            log.info { "Resubscribed ${lost.size} subscriptions" }
+        } catch (e: Exception) {
+            log.warn { "Reconnect attempt ${attempt + 1} failed (${e.message}) - retrying" }
+            scheduleReconnect(remaining, attempt + 1)
+        }
+    }
+
+    /** Refresh the token used for new websockets, or log in again, if the refresh token has expired as well. */
+    private fun refreshToken() {
+        try {
+            client.refreshToken()
+        } catch (e: Exception) {
+            log.info { "Token refresh failed (${e.message}) - logging in again" }
+            client.login(client.login, client.password)
+        }
+    }
+
+    private fun resubscribe(subscription: Subscription) {
+        if (subscription.socket?.isOpen == true) return
+        val socket = synchronized(this) {
+            selectSocket().also {
+                it.subscriptions.add(subscription.id)
+                subscription.socket = it
+            }
+        }
+        synchronized(subscription) {
+            // updates of an interrupted gap fill
+            gapFills.values.remove(subscription)
+            flushPending(subscription)
+            val cmd = with(subscription) { buildWsSubscriptionJson(id, deviceId, type, keys) }
+            socket.send(cmd.toString())
+            if (!subscription.tracksTimestamps) return
+            // nothing received yet: the first update holds the latest values
+            val start = subscription.lastTs.values.minOfOrNull { it[0] } ?: return
+            val keys = subscription.keys?.takeIf { it.isNotEmpty() } ?: subscription.lastTs.keys.toList()
+            val cmdId = cmdIds.incrementAndGet()
+            subscription.pending = ArrayList()
+            subscription.awaitingSnapshot = true
+            gapFills[cmdId] = subscription
+            socket.send(
+                buildHistoryCmdJson(
+                    cmdId, subscription.deviceId, keys, start + 1, System.currentTimeMillis(), gapFillLimit
+                ).toString()
+            )
+        }
+    }
+
+    private fun resubscribe(subscription: EntityDataSubscription) {
+        if (subscription.socket?.isOpen == true) return
+        synchronized(this) {
+            if (subscription.socket == null) return
+            val socket = selectSocket()
+            subscription.socket = socket
+            subscription.pages.forEachIndexed { page, cmdId ->
+                socket.subscriptions.add(cmdId)
+                val cmd = buildEntityDataCmdJson(
+                    cmdId, subscription.entityFilter, subscription.timeseries, subscription.attributes,
+                    page, subscription.pageSize
+                )
+                socket.send(cmd.toString())
+            }
+        }
+    }
+}
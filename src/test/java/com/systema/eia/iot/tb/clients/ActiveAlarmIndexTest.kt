@@ -0,0 +1,79 @@
+package com.systema.eia.iot.tb.clients
+
+import com.systema.eia.iot.tb.persistence.remove.TB_URL
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.shouldNotBe
+import org.awaitility.Awaitility.await
+import org.junit.Test
+import org.thingsboard.server.common.data.alarm.Alarm
+import org.thingsboard.server.common.data.alarm.AlarmSeverity
+import org.thingsboard.server.common.data.alarm.AlarmStatus
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+class ActiveAlarmIndexTest {
+
+    val restClient = ExtRestClient(TB_URL)
+
+    @Test
+    fun `it should find alarms beyond the first page`() {
+        val device = restClient.getOrCreateDevice("alarm_index_${UUID.randomUUID()}")
+        repeat(150) { restClient.newAlarmIfNotActive(device.id, device.name, "type$it", AlarmSeverity.MINOR) }
+
+        val index = restClient.enableAlarmIndex(subscribe = false)
+        index.isActive(device.id, "type0") shouldBe true
+        index.isActive(device.id, "type149") shouldBe true
+        index.size() shouldBe 150
+
+        restClient.clearAlarmIfActive(device.id, device.name, "type149")
+        index.isActive(device.id, "type149") shouldBe false
+
+        // cleared directly by ID
+        restClient.clearAlarm(index.getActive(device.id, "type148")!!.id)
+        index.isActive(device.id, "type148") shouldBe false
+
+        restClient.deleteDevice(device.id)
+    }
+
+    @Test
+    fun `it should reflect alarms raised and cleared by other clients`() {
+        val device = restClient.getOrCreateDevice("alarm_index_${UUID.randomUUID()}")
+        val index = restClient.enableAlarmIndex()
+        index.isActive(device.id, "ExternalAlarm") shouldBe false
+
+        // raise alarm with another client, bypassing the index
+        val otherClient = ExtRestClient(TB_URL)
+        val alarm = otherClient.saveAlarm(Alarm().apply {
+            type = "ExternalAlarm"
+            originator = device.id
+            severity = AlarmSeverity.MAJOR
+            status = AlarmStatus.ACTIVE_UNACK
+        })
+        await().atMost(10, TimeUnit.SECONDS).until { index.isActive(device.id, "ExternalAlarm") }
+        index.getActive(device.id, "ExternalAlarm")?.id shouldNotBe null
+
+        otherClient.clearAlarm(alarm!!.id)
+        await().atMost(10, TimeUnit.SECONDS).until { !index.isActive(device.id, "ExternalAlarm") }
+
+        index.close()
+        restClient.deleteDevice(device.id)
+    }
+
+    @Test
+    fun `it should reflect alarms cleared by other clients beyond the first page`() {
+        val device = restClient.getOrCreateDevice("alarm_index_${UUID.randomUUID()}")
+        repeat(150) { restClient.newAlarmIfNotActive(device.id, device.name, "type$it", AlarmSeverity.MINOR) }
+
+        val index = restClient.enableAlarmIndex()
+        val oldest = index.getActive(device.id, "type0")!!
+        index.size() shouldBe 150
+
+        // the oldest alarm is not among the newest 100 alarms of the device
+        ExtRestClient(TB_URL).clearAlarm(oldest.id)
+        await().atMost(10, TimeUnit.SECONDS).until { !index.isActive(device.id, "type0") }
+        index.isActive(device.id, "type149") shouldBe true
+
+        index.close()
+        restClient.deleteDevice(device.id)
+    }
+}
@@ -0,0 +1,37 @@
+package com.systema.eia.iot.tb.clients
+
+import com.systema.eia.iot.tb.persistence.remove.TB_URL
+import io.kotest.matchers.shouldBe
+import org.junit.Test
+import org.thingsboard.server.common.data.alarm.AlarmSearchStatus
+import org.thingsboard.server.common.data.alarm.AlarmSeverity
+import java.util.*
+import java.util.stream.Collectors
+
+class AlarmIteratorTest {
+
+    val restClient = ExtRestClient(TB_URL)
+
+    @Test
+    fun `it should iterate over all alarm pages`() {
+        val device = restClient.getOrCreateDevice("alarm_iterator_${UUID.randomUUID()}")
+        val startTime = System.currentTimeMillis()
+        repeat(250) { restClient.newAlarmIfNotActive(device.id, device.name, "type$it", AlarmSeverity.MINOR) }
+        val endTime = System.currentTimeMillis()
+
+        val alarms = restClient.getAllAlarms(device.id, pageSize = 100).toList()
+        alarms.size shouldBe 250
+        alarms.map { it.createdTime } shouldBe alarms.map { it.createdTime }.sortedDescending()
+
+        restClient.getAllAlarms(device.id, AlarmSearchStatus.ACTIVE, prefetch = true).count() shouldBe 250
+        restClient.streamAllAlarms(device.id).collect(Collectors.toList()) shouldBe alarms
+
+        // lazy: only the first page is requested
+        restClient.getAllAlarms(device.id, pageSize = 10).take(5).count() shouldBe 5
+
+        restClient.getAllAlarmsParallel(device.id, startTime, endTime, slices = 4).toList()
+            .map { it.id } shouldBe alarms.map { it.id }
+
+        restClient.deleteDevice(device.id)
+    }
+}
@@ -0,0 +1,52 @@
+package com.systema.eia.iot.tb.clients
+
+import com.systema.eia.iot.tb.persistence.remove.TB_URL
+import com.systema.eia.iot.tb.utils.Scope
+import io.kotest.matchers.shouldBe
+import kotlinx.coroutines.runBlocking
+import org.junit.Test
+import org.thingsboard.server.common.data.alarm.AlarmSeverity
+import java.util.*
+import java.util.concurrent.CompletableFuture
+
+class AsyncExtRestClientTest {
+
+    val restClient = ExtRestClient(TB_URL)
+    val asyncClient = AsyncExtRestClient(restClient)
+
+    @Test
+    fun `it should read and write attributes concurrently`() {
+        val device = asyncClient.getOrCreateDeviceAsync("async_${UUID.randomUUID()}").join()
+
+        val writes = (1..20).map { asyncClient.saveAttributeAsync(device.id, Scope.SERVER_SCOPE, "attr$it", it) }
+        CompletableFuture.allOf(*writes.toTypedArray()).join()
+
+        val attributes = asyncClient.getAttributesAsync(device.id, Scope.SERVER_SCOPE, (1..20).map { "attr$it" }).join()
+        attributes.size shouldBe 20
+        attributes["attr7"] shouldBe 7
+
+        restClient.deleteDevice(device.id)
+    }
+
+    @Test
+    fun `it should save client attributes using suspend functions`() = runBlocking {
+        val device = asyncClient.getOrCreateDevice("async_${UUID.randomUUID()}")
+
+        asyncClient.saveAttribute(device.id, Scope.CLIENT_SCOPE, "foo", "bar")
+        asyncClient.getAttribute(device.id, Scope.CLIENT_SCOPE, "foo") shouldBe "bar"
+
+        restClient.deleteDevice(device.id)
+    }
+
+    @Test
+    fun `it should create and clear alarms`() = runBlocking {
+        val device = asyncClient.getOrCreateDevice("async_${UUID.randomUUID()}")
+
+        asyncClient.newAlarmIfNotActive(device.id, device.name, "AsyncAlarm", AlarmSeverity.MINOR) shouldBe true
+        asyncClient.newAlarmIfNotActive(device.id, device.name, "AsyncAlarm", AlarmSeverity.MINOR) shouldBe false
+        asyncClient.clearAlarmIfActive(device.id, device.name, "AsyncAlarm") shouldBe true
+        asyncClient.clearAlarmIfActive(device.id, device.name, "AsyncAlarm") shouldBe false
+
+        restClient.deleteDevice(device.id)
+    }
+}
@@ -0,0 +1,28 @@
+package com.systema.eia.iot.tb.clients
+
+import com.systema.eia.iot.tb.clients.DeviceProvisioningResult.Status
+import com.systema.eia.iot.tb.persistence.remove.TB_URL
+import io.kotest.matchers.shouldBe
+import org.junit.Test
+import java.util.*
+
+class BulkDeviceProvisioningTest {
+
+    val restClient = ExtRestClient(TB_URL, transport = PooledHttpTransport())
+
+    @Test
+    fun `it should create missing devices only`() {
+        val prefix = "bulk_${UUID.randomUUID()}"
+        val names = (1..50).map { "${prefix}_$it" }
+        restClient.getOrCreateDevice(names[0])
+
+        val results = restClient.getOrCreateDevices(names + names[1], parallelism = 4)
+        results.map { it.name } shouldBe names
+        results[0].status shouldBe Status.EXISTING
+        results.drop(1).all { it.status == Status.CREATED } shouldBe true
+
+        restClient.getOrCreateDevices(names).all { it.status == Status.EXISTING } shouldBe true
+
+        results.forEach { restClient.deleteDevice(it.device!!.id) }
+    }
+}
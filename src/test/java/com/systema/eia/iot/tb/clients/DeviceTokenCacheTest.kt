@@ -0,0 +1,89 @@
+package com.systema.eia.iot.tb.clients
+
+import io.kotest.matchers.shouldBe
+import org.junit.Test
+import org.thingsboard.server.common.data.id.DeviceId
+import java.time.Clock
+import java.time.Duration
+import java.time.Instant
+import java.time.ZoneOffset
+import java.util.*
+
+class DeviceTokenCacheTest {
+
+    private class MutableClock(var now: Instant = Instant.EPOCH) : Clock() {
+        override fun getZone() = ZoneOffset.UTC
+        override fun withZone(zone: java.time.ZoneId?) = this
+        override fun instant() = now
+    }
+
+    private val clock = MutableClock()
+    private val cache = DeviceTokenCache(2, Duration.ofMinutes(1), clock)
+
+    private val device1 = DeviceId(UUID.randomUUID())
+    private val device2 = DeviceId(UUID.randomUUID())
+    private val device3 = DeviceId(UUID.randomUUID())
+
+    private var loads = 0
+    private val loader: (DeviceId) -> String? = { loads++; "token-$it" }
+
+    @Test
+    fun `it should load a token only once`() {
+        cache.get(device1, loader) shouldBe "token-$device1"
+        cache.get(device1, loader) shouldBe "token-$device1"
+
+        loads shouldBe 1
+        cache.stats() shouldBe DeviceTokenCache.Stats(1, 1, 1)
+    }
+
+    @Test
+    fun `it should reload expired tokens`() {
+        cache.get(device1, loader)
+        clock.now = clock.now.plusSeconds(61)
+        cache.get(device1, loader)
+
+        loads shouldBe 2
+    }
+
+    @Test
+    fun `it should evict the least recently used token`() {
+        cache.get(device1, loader)
+        cache.get(device2, loader)
+        cache.get(device1, loader)
+        cache.get(device3, loader)
+
+        // device2 has been evicted, device1 is still present
+        cache.get(device1, loader)
+        loads shouldBe 3
+        cache.get(device2, loader)
+        loads shouldBe 4
+    }
+
+    @Test
+    fun `it should not cache unknown devices`() {
+        cache.get(device1) { loads++; null } shouldBe null
+        cache.get(device1) { loads++; null } shouldBe null
+
+        loads shouldBe 2
+        cache.stats().size shouldBe 0
+    }
+
+    @Test
+    fun `it should invalidate by id and name`() {
+        cache.get("device A") { loads++; device1 to "token-A" } shouldBe "token-A"
+        // loading by name also caches the token by id
+        cache.get(device1, loader) shouldBe "token-A"
+        loads shouldBe 1
+
+        cache.invalidate(device1)
+        cache.get("device A") { loads++; device1 to "token-A2" } shouldBe "token-A2"
+        loads shouldBe 2
+
+        cache.invalidate("device A")
+        cache.get(device1, loader) shouldBe "token-$device1"
+        loads shouldBe 3
+
+        cache.invalidateAll()
+        cache.stats().size shouldBe 0
+    }
+}
@@ -0,0 +1,43 @@
+package com.systema.eia.iot.tb.clients
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.systema.eia.iot.tb.persistence.remove.TB_MQTT_HP
+import com.systema.eia.iot.tb.persistence.remove.TB_URL
+import com.systema.eia.iot.tb.utils.TelemetryRecord
+import io.kotest.matchers.shouldBe
+import org.junit.Test
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+class GatewayMqttClientTest {
+
+    val restClient = ExtRestClient(TB_URL)
+
+    private fun gatewayToken(): DeviceToken {
+        val gateway = restClient.getOrCreateDevice("Test Gateway G1")
+        gateway.additionalInfo = ObjectMapper().createObjectNode().put("gateway", true)
+        restClient.saveDevice(gateway)
+        return DeviceToken(restClient.getDeviceTokenByDeviceId(gateway.id)!!)
+    }
+
+    @Test
+    fun `it should publish batched telemetry of several devices`() {
+        val names = (1..3).map { "Test Gateway G1 Device $it" }
+        val random = UUID.randomUUID().toString()
+
+        GatewayMqttClient(TB_MQTT_HP, gatewayToken(), maxBatchSize = 3, maxDelay = Duration.ofMinutes(1)).use { gateway ->
+            names.forEach { gateway.connectDevice(it, "default") }
+            gateway.devices shouldBe names.toSet()
+
+            names.forEach { gateway.addTelemetry(it, TelemetryRecord(System.currentTimeMillis(), "test", random)) }
+            gateway.pending() shouldBe 0
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1))
+
+        names.forEach { name ->
+            val device = restClient.getTenantDevice(name).get()
+            restClient.getLatestTimeseries(device.id, listOf("test")).first().value shouldBe random
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.systema.eia.iot.tb.clients
+
+import com.sun.net.httpserver.HttpServer
+import com.systema.eia.iot.tb.stats.InMemoryMetricsRegistry
+import com.systema.eia.iot.tb.stats.JmxMetricsExporter
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.shouldBe
+import org.junit.After
+import org.junit.Test
+import org.springframework.web.client.HttpClientErrorException
+import org.springframework.web.client.RestTemplate
+import java.lang.management.ManagementFactory
+import java.net.InetSocketAddress
+
+class MetricsInterceptorTest {
+
+    private val server = HttpServer.create(InetSocketAddress("localhost", 0), 0).apply {
+        createContext("/api/device/") { exchange ->
+            val response = "{\"id\":1}".toByteArray()
+            exchange.sendResponseHeaders(if (exchange.requestURI.path.endsWith("missing")) 404 else 200, 0)
+            exchange.responseBody.write(response)
+            exchange.close()
+        }
+        start()
+    }
+
+    private val url = "http://localhost:${server.address.port}/api/device/"
+
+    @After
+    fun tearDown() {
+        server.stop(0)
+    }
+
+    @Test
+    fun `it should record requests per endpoint`() {
+        val registry = InMemoryMetricsRegistry()
+        val restTemplate = RestTemplate().also { it.interceptors.add(MetricsInterceptor(registry)) }
+
+        restTemplate.getForObject("${url}4c2a0e10-1a7b-11ec-9621-0242ac130002/credentials", String::class.java)
+        restTemplate.postForObject("${url}123/credentials", "{\"a\":1}", String::class.java)
+        shouldThrow<HttpClientErrorException.NotFound> {
+            restTemplate.getForObject("${url}missing", String::class.java)
+        }
+
+        val snapshot = registry.snapshot().associateBy { it.endpoint }
+        snapshot.keys shouldBe setOf(
+            "GET /api/device/{id}/credentials", "POST /api/device/{n}/credentials", "GET /api/device/missing"
+        )
+        with(snapshot.getValue("POST /api/device/{n}/credentials")) {
+            requests shouldBe 1L
+            errors shouldBe 0L
+            bytesOut shouldBe 7L
+            bytesIn shouldBe 8L
+            (p999Micros >= p50Micros && p50Micros > 0) shouldBe true
+        }
+        snapshot.getValue("GET /api/device/missing").errors shouldBe 1L
+    }
+
+    @Test
+    fun `it should export the metrics via JMX`() {
+        val registry = InMemoryMetricsRegistry()
+        val restTemplate = RestTemplate().also { it.interceptors.add(MetricsInterceptor(registry)) }
+
+        JmxMetricsExporter(registry, domain = "test.metrics").use { exporter ->
+            restTemplate.getForObject("${url}4c2a0e10-1a7b-11ec-9621-0242ac130002", String::class.java)
+
+            val name = exporter.objectName("GET /api/device/{id}")
+            ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Requests") shouldBe 1L
+        }
+    }
+
+    @Test
+    fun `it should name device api endpoints without token`() {
+        MetricsInterceptor.endpointOf("POST", "/api/v1/A1_TEST_TOKEN/telemetry") shouldBe
+                "POST /api/v1/{token}/telemetry"
+    }
+}
@@ -2,11 +2,18 @@ package com.systema.eia.iot.tb.clients
 
 import com.systema.eia.iot.tb.persistence.remove.TB_MQTT_HP
 import com.systema.eia.iot.tb.persistence.remove.TB_URL
+import com.systema.eia.iot.tb.stats.InMemoryMetricsRegistry
 import com.systema.eia.iot.tb.utils.Scope
+import com.systema.eia.iot.tb.utils.TelemetryRecord
 import org.junit.Assert
 import org.junit.Test
+import org.springframework.http.HttpEntity
+import org.springframework.http.HttpHeaders
+import org.springframework.http.MediaType
+import org.springframework.web.client.RestTemplate
 import org.thingsboard.server.common.data.Device
 import java.util.*
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.TimeUnit
 
 class MqttClientTest {
@@ -40,6 +47,19 @@ class MqttClientTest {
         Assert.assertEquals("test", entry.key)
     }
 
+    @Test
+    fun `send telemetry async`() {
+        val client = DeviceMqttClient(TB_MQTT_HP, DeviceToken(testDeviceToken), qos = 1, maxInflight = 50)
+        val futures = (1..200).map { client.sendTelemetryAsync(TelemetryRecord(mapOf("testAsync" to it), it.toLong())) }
+        CompletableFuture.allOf(*futures.toTypedArray()).get(30, TimeUnit.SECONDS)
+        Assert.assertEquals(0, client.mqttClient.inflightMessages())
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1))
+
+        val entry = restClient.getLatestTimeseries(testDevice.id, listOf("testAsync")).first()
+        Assert.assertEquals(200L, entry.value)
+        client.mqttClient.disconnect()
+    }
+
     @Test
     fun `send client attribute`() {
         val random = UUID.randomUUID().toString()
@@ -104,5 +124,50 @@ class MqttClientTest {
 
     }
 
+    @Test
+    fun `handle rpc requests`() {
+        deviceMqttClient.registerRpcHandler("echo") { params -> mapOf("echo" to params?.get("value")?.asText()) }
+        deviceMqttClient.enableRpc(workers = 2)
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1))
+
+        val headers = HttpHeaders().apply {
+            contentType = MediaType.APPLICATION_JSON
+            set("X-Authorization", "Bearer ${restClient.token}")
+        }
+        val response = RestTemplate().postForObject(
+            "$TB_URL/api/plugins/rpc/twoway/${testDevice.id}",
+            HttpEntity("""{"method":"echo","params":{"value":"hello"}}""", headers),
+            String::class.java
+        )
+        Assert.assertEquals("""{"echo":"hello"}""", response)
+
+        val metrics = (deviceMqttClient.rpcMetrics as InMemoryMetricsRegistry).snapshot().single()
+        Assert.assertEquals("rpc echo", metrics.endpoint)
+        Assert.assertEquals(1L, metrics.requests)
+
+        // methods without handler share one endpoint
+        listOf("unknown1", "unknown2").forEach { method ->
+            RestTemplate().postForObject(
+                "$TB_URL/api/plugins/rpc/twoway/${testDevice.id}",
+                HttpEntity("""{"method":"$method","params":{}}""", headers),
+                String::class.java
+            )
+        }
+        val endpoints = (deviceMqttClient.rpcMetrics as InMemoryMetricsRegistry).snapshot().map { it.endpoint }
+        Assert.assertEquals(setOf("rpc echo", "rpc <unknown>"), endpoints.toSet())
+        deviceMqttClient.disableRpc()
+    }
+
+    @Test
+    fun `request attributes concurrently`() {
+        val random = UUID.randomUUID().toString()
+        restClient.saveAttributes(testDevice.id, mapOf(Pair("testSharedAttr", random)), Scope.SHARED_SCOPE)
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1))
+
+        val futures = (1..20).map { deviceMqttClient.requestAttributes(sharedAttributesKeys = listOf("testSharedAttr")) }
+        futures.forEach { Assert.assertEquals(random, it.get(10, TimeUnit.SECONDS).shared["testSharedAttr"]) }
+        Assert.assertEquals(0, deviceMqttClient.pendingAttributeRequests())
+    }
+
 
 }
\ No newline at end of file
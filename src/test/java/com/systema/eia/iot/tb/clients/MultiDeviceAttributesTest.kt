@@ -0,0 +1,35 @@
+package com.systema.eia.iot.tb.clients
+
+import com.systema.eia.iot.tb.persistence.remove.TB_URL
+import com.systema.eia.iot.tb.utils.Scope
+import io.kotest.matchers.shouldBe
+import org.junit.Test
+import java.util.*
+
+class MultiDeviceAttributesTest {
+
+    val restClient = ExtRestClient(TB_URL)
+
+    @Test
+    fun `it should fetch several attributes of several devices`() {
+        val devices = (1..5).map { restClient.getOrCreateDevice("multi_attr_${UUID.randomUUID()}") }
+        devices.forEachIndexed { i, device ->
+            restClient.saveAttribute(device.id, Scope.SERVER_SCOPE, "active", i % 2 == 0)
+            restClient.saveAttribute(device.id, Scope.SERVER_SCOPE, "count", i)
+            restClient.saveAttribute(device.id, Scope.SERVER_SCOPE, "label", "device $i")
+        }
+
+        val keys = listOf("active", "count", "label", "missing")
+        val table = restClient.getAttributes(devices.map { it.id }, Scope.SERVER_SCOPE, keys)
+        table.size shouldBe 5
+        devices.forEachIndexed { i, device ->
+            table[device.id, "active"] shouldBe (i % 2 == 0)
+            table[device.id, "count"] shouldBe i.toLong()
+            table[device.id, "label"] shouldBe "device $i"
+            table[device.id, "missing"] shouldBe null
+            table.row(device.id).keys shouldBe setOf("active", "count", "label")
+        }
+
+        devices.forEach { restClient.deleteDevice(it.id) }
+    }
+}
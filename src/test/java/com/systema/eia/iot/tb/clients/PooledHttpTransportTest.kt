@@ -0,0 +1,47 @@
+package com.systema.eia.iot.tb.clients
+
+import com.sun.net.httpserver.HttpServer
+import io.kotest.matchers.shouldBe
+import org.junit.After
+import org.junit.Test
+import org.springframework.web.client.RestTemplate
+import java.net.InetSocketAddress
+import java.util.*
+
+class PooledHttpTransportTest {
+
+    private val remotePorts = Collections.synchronizedSet(HashSet<Int>())
+
+    private val server = HttpServer.create(InetSocketAddress("localhost", 0), 0).apply {
+        createContext("/ping") { exchange ->
+            remotePorts.add(exchange.remoteAddress.port)
+            val body = "pong".toByteArray()
+            exchange.sendResponseHeaders(200, body.size.toLong())
+            exchange.responseBody.use { it.write(body) }
+        }
+        start()
+    }
+
+    private val transport = PooledHttpTransport(maxConnectionsPerRoute = 2)
+
+    @After
+    fun tearDown() {
+        transport.close()
+        server.stop(0)
+    }
+
+    @Test
+    fun `it should reuse pooled connections`() {
+        val template = RestTemplate(transport.requestFactory())
+        val url = "http://localhost:${server.address.port}/ping"
+
+        repeat(10) {
+            template.getForObject(url, String::class.java) shouldBe "pong"
+        }
+
+        // all requests have been sent over the same connection, which is back in the pool now
+        remotePorts.size shouldBe 1
+        transport.stats().leased shouldBe 0
+        transport.stats().available shouldBe 1
+    }
+}
@@ -0,0 +1,76 @@
+package com.systema.eia.iot.tb.clients
+
+import com.sun.net.httpserver.HttpServer
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.shouldBe
+import org.junit.After
+import org.junit.Test
+import org.springframework.web.client.HttpClientErrorException
+import org.springframework.web.client.RestTemplate
+import java.net.InetSocketAddress
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicInteger
+
+class RateLimitInterceptorTest {
+
+    /** number of requests to be rejected before accepting requests again */
+    private val rejections = AtomicInteger()
+
+    private val server = HttpServer.create(InetSocketAddress("localhost", 0), 0).apply {
+        createContext("/api/plugins/telemetry/") { exchange ->
+            val status = if (rejections.getAndDecrement() > 0) 429 else 200
+            exchange.sendResponseHeaders(status, -1)
+            exchange.close()
+        }
+        start()
+    }
+
+    private val url = "http://localhost:${server.address.port}/api/plugins/telemetry/DEVICE/1/timeseries/ANY"
+
+    @After
+    fun tearDown() {
+        server.stop(0)
+    }
+
+    private fun restTemplate(interceptor: RateLimitInterceptor) =
+        RestTemplate().also { it.interceptors.add(interceptor) }
+
+    @Test
+    fun `it should retry rejected requests and reduce the rate`() {
+        val interceptor = RateLimitInterceptor(initialRate = 100.0, backoff = Duration.ofMillis(10))
+        rejections.set(3)
+
+        restTemplate(interceptor).postForEntity(url, "{}", String::class.java).statusCodeValue shouldBe 200
+
+        val stats = interceptor.stats(EndpointClass.TELEMETRY)
+        stats.requests shouldBe 4
+        stats.rejected shouldBe 3
+        stats.retries shouldBe 3
+        (interceptor.rate(EndpointClass.TELEMETRY) < 100.0) shouldBe true
+        interceptor.rate(EndpointClass.ATTRIBUTES) shouldBe 100.0
+    }
+
+    @Test
+    fun `it should give up after the maximum number of retries`() {
+        val interceptor = RateLimitInterceptor(maxRetries = 2, backoff = Duration.ofMillis(10))
+        rejections.set(10)
+
+        shouldThrow<HttpClientErrorException.TooManyRequests> {
+            restTemplate(interceptor).postForEntity(url, "{}", String::class.java)
+        }
+        interceptor.stats(EndpointClass.TELEMETRY).requests shouldBe 3
+    }
+
+    @Test
+    fun `it should throttle requests`() {
+        val interceptor = RateLimitInterceptor(initialRate = 20.0, minRate = 1.0, maxRate = 20.0, burst = 1)
+        val template = restTemplate(interceptor)
+
+        val start = System.nanoTime()
+        repeat(11) { template.postForEntity(url, "{}", String::class.java) }
+        val elapsed = Duration.ofNanos(System.nanoTime() - start)
+
+        // 10 requests after the first one at 20 requests per second
+        (elapsed >= Duration.ofMillis(450)) shouldBe true
+    }
+}
@@ -0,0 +1,41 @@
+package com.systema.eia.iot.tb.clients
+
+import com.systema.eia.iot.tb.persistence.remove.TB_URL
+import io.kotest.matchers.shouldBe
+import org.junit.Test
+import org.thingsboard.server.common.data.page.PageLink
+import java.time.Instant
+import java.util.*
+
+class TbSessionPoolTest {
+
+    @Test
+    fun `it should spread handlers and operations over the sessions`() {
+        TbSessionPool(TB_URL, size = 2).use { pool ->
+            val first = pool.session()
+            val second = pool.session()
+            (first === second) shouldBe false
+
+            pool.release(first)
+            pool.session() shouldBe first
+
+            repeat(4) { pool.withSession { it.getTenantDevices("", PageLink(10)) } }
+
+            val stats = pool.stats()
+            stats.sessions shouldBe 2
+            stats.handlers shouldBe listOf(1, 1)
+            stats.inFlight shouldBe 0
+            stats.operations.sum() shouldBe 4L
+        }
+    }
+
+    @Test
+    fun `it should read the token expiry`() {
+        val encoder = Base64.getUrlEncoder().withoutPadding()
+        val payload = encoder.encodeToString("""{"sub":"tenant@thingsboard.org","exp":1700000000}""".toByteArray())
+        TbSessionPool.tokenExpiry("header.$payload.signature") shouldBe Instant.ofEpochSecond(1700000000)
+
+        TbSessionPool.tokenExpiry(null) shouldBe null
+        TbSessionPool.tokenExpiry("no-jwt") shouldBe null
+    }
+}
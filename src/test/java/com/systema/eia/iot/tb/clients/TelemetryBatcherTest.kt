@@ -0,0 +1,99 @@
+package com.systema.eia.iot.tb.clients
+
+import com.fasterxml.jackson.databind.JsonNode
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.shouldBe
+import org.awaitility.Awaitility.await
+import org.junit.Test
+import org.thingsboard.server.common.data.id.DeviceId
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class TelemetryBatcherTest {
+
+    private val device1 = DeviceId(UUID.randomUUID())
+    private val device2 = DeviceId(UUID.randomUUID())
+
+    private val writes = CopyOnWriteArrayList<Pair<DeviceId, JsonNode>>()
+
+    @Test
+    fun `it should write a batch once it is full`() {
+        TelemetryBatcher({ id, batch -> writes.add(id to batch) }, 3, Duration.ofHours(1)).use { batcher ->
+            batcher.add(device1, mapOf("a" to 1), 1)
+            batcher.add(device2, mapOf("a" to 2), 2)
+            batcher.add(device1, mapOf("a" to 3), 3)
+            batcher.add(device1, mapOf("b" to "x"), 4)
+
+            await().atMost(5, TimeUnit.SECONDS).until { writes.size == 1 }
+            val (id, batch) = writes.first()
+            id shouldBe device1
+            batch.toString() shouldBe """[{"ts":1,"values":{"a":1}},{"ts":3,"values":{"a":3}},{"ts":4,"values":{"b":"x"}}]"""
+        }
+
+        // remaining sample of device2 is written on close
+        writes.size shouldBe 2
+        writes[1].first shouldBe device2
+    }
+
+    @Test
+    fun `it should write a batch once it is too old`() {
+        TelemetryBatcher({ id, batch -> writes.add(id to batch) }, 100, Duration.ofMillis(50)).use { batcher ->
+            batcher.add(device1, mapOf("a" to 1))
+
+            await().atMost(5, TimeUnit.SECONDS).until { writes.size == 1 }
+            batcher.pending() shouldBe 0
+            batcher.writtenSamples() shouldBe 1
+        }
+    }
+
+    @Test
+    fun `it should apply back-pressure if the buffer is full`() {
+        val blocked = CountDownLatch(1)
+        TelemetryBatcher({ _, _ -> blocked.await() }, 2, Duration.ofHours(1), 2).use { batcher ->
+            batcher.offer(device1, mapOf("a" to 1)) shouldBe true
+            batcher.offer(device1, mapOf("a" to 2)) shouldBe true
+            batcher.offer(device1, mapOf("a" to 3), timeout = Duration.ofMillis(10)) shouldBe false
+            batcher.pending() shouldBe 2
+
+            blocked.countDown()
+            await().atMost(5, TimeUnit.SECONDS).until { batcher.pending() == 0 }
+            batcher.offer(device1, mapOf("a" to 3)) shouldBe true
+        }
+    }
+
+    @Test
+    fun `it should count failed writes`() {
+        TelemetryBatcher({ _, _ -> throw IllegalStateException("rate limit") }).use { batcher ->
+            batcher.add(device1, mapOf("a" to 1))
+            batcher.flush().join()
+
+            batcher.failedSamples() shouldBe 1
+            batcher.pending() shouldBe 0
+        }
+    }
+
+    @Test
+    fun `it should release the buffer if the executor rejects a write`() {
+        val executor = Executors.newSingleThreadExecutor().apply { shutdown() }
+        TelemetryBatcher({ id, batch -> writes.add(id to batch) }, 1, Duration.ofHours(1), 1, executor).use { batcher ->
+            batcher.add(device1, mapOf("a" to 1))
+            batcher.add(device1, mapOf("a" to 2))
+
+            batcher.failedSamples() shouldBe 2
+            batcher.pending() shouldBe 0
+        }
+    }
+
+    @Test
+    fun `it should reject samples after close`() {
+        val batcher = TelemetryBatcher({ id, batch -> writes.add(id to batch) })
+        batcher.close()
+
+        shouldThrow<IllegalStateException> { batcher.add(device1, mapOf("a" to 1)) }
+        batcher.pending() shouldBe 0
+    }
+}
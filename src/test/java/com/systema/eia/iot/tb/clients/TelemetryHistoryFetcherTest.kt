@@ -0,0 +1,42 @@
+package com.systema.eia.iot.tb.clients
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.systema.eia.iot.tb.persistence.remove.TB_URL
+import com.systema.eia.iot.tb.ws.AttrUpdate
+import io.kotest.matchers.shouldBe
+import org.junit.Test
+import java.time.Duration
+import java.util.*
+
+class TelemetryHistoryFetcherTest {
+
+    val restClient = ExtRestClient(TB_URL)
+
+    @Test
+    fun `it should fetch the history in timestamp order`() {
+        val device = restClient.getOrCreateDevice("history_${UUID.randomUUID()}")
+        val startTs = System.currentTimeMillis() - Duration.ofDays(1).toMillis()
+        val samples = (0 until 500).map { i ->
+            mapOf("ts" to startTs + i * 1000L, "values" to mapOf("x" to i, "y" to -i))
+        }
+        restClient.sendTelemetry(device.id, ObjectMapper().valueToTree<JsonNode>(samples))
+        val endTs = startTs + 500 * 1000L
+
+        // small limit and long slices, so that the slices have to be split
+        val fetcher = TelemetryHistoryFetcher(restClient, Duration.ofMinutes(30), limit = 40, parallelism = 4)
+        val values = mutableListOf<AttrUpdate>()
+        fetcher.fetch(device.id, listOf("x", "y"), startTs, endTs) { values.add(it) } shouldBe 1000L
+
+        values.map { it.timestamp } shouldBe values.map { it.timestamp }.sorted()
+        values.take(4).map { it.key to it.value } shouldBe listOf("x" to 0L, "y" to 0L, "x" to 1L, "y" to -1L)
+
+        // resume after the 100th sample
+        val resumed = mutableListOf<AttrUpdate>()
+        restClient.fetchTelemetryHistory(device.id, listOf("x"), startTs + 100 * 1000L, endTs) { resumed.add(it) }
+        resumed.size shouldBe 400
+        resumed.first().value shouldBe 100L
+
+        restClient.deleteDevice(device.id)
+    }
+}
@@ -0,0 +1,35 @@
+package com.systema.eia.iot.tb.stats
+
+import io.kotest.matchers.shouldBe
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class LatencyHistogramTest {
+
+    @Test
+    fun `it should calculate percentiles with bounded relative error`() {
+        val histogram = LatencyHistogram()
+        (1L..10000L).forEach { histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(it)) }
+
+        val snapshot = histogram.snapshot()
+        snapshot.count shouldBe 10000L
+        listOf(0.5 to 5000_000L, 0.99 to 9900_000L, 0.999 to 9990_000L, 1.0 to 10000_000L).forEach { (q, expected) ->
+            val error = Math.abs(snapshot.percentile(q) - expected).toDouble() / expected
+            (error < 0.04) shouldBe true
+        }
+    }
+
+    @Test
+    fun `it should keep small values exact and cap large values`() {
+        val histogram = LatencyHistogram()
+        histogram.recordNanos(TimeUnit.MICROSECONDS.toNanos(17))
+        histogram.recordNanos(TimeUnit.DAYS.toNanos(100))
+
+        histogram.snapshot().percentile(0.5) shouldBe 17L
+        (histogram.snapshot().maxMicros > TimeUnit.DAYS.toMicros(10)) shouldBe true
+
+        histogram.reset()
+        histogram.snapshot().count shouldBe 0L
+        histogram.snapshot().percentile(0.99) shouldBe 0L
+    }
+}
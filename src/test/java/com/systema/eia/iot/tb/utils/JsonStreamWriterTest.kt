@@ -0,0 +1,52 @@
+package com.systema.eia.iot.tb.utils
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.kotest.matchers.shouldBe
+import org.junit.Test
+import java.math.BigDecimal
+
+class JsonStreamWriterTest {
+
+    private val mapper = ObjectMapper()
+
+    private val values = mapOf(
+        "temperature" to 21.5,
+        "count" to 42,
+        "total" to 1234567890123L,
+        "price" to BigDecimal("9.99"),
+        "active" to true,
+        "name" to "pump \"1\"",
+        "missing" to null,
+        "state" to Scope.SHARED_SCOPE,
+        "list" to listOf(1, "two", 3.0),
+        "array" to arrayOf("a", "b"),
+        "nested" to mapOf("x" to 1, "y" to mapOf("z" to false)),
+        "node" to mapper.readTree("""{"a":[1,2]}""")
+    )
+
+    @Test
+    fun `it should write maps like the object mapper`() {
+        val json = String(JsonStreamWriter.write(values))
+        json shouldBe mapper.writeValueAsString(values)
+    }
+
+    @Test
+    fun `it should write telemetry records`() {
+        String(JsonStreamWriter.write(TelemetryRecord(1000L, "x", 1))) shouldBe """{"ts":1000,"values":{"x":1}}"""
+        String(JsonStreamWriter.write(TelemetryRecord(mapOf("x" to 1)))) shouldBe """{"x":1}"""
+
+        val records = listOf(TelemetryRecord(1000L, "x", 1), TelemetryRecord(2000L, "x", 2))
+        String(JsonStreamWriter.write(records)) shouldBe
+                """[{"ts":1000,"values":{"x":1}},{"ts":2000,"values":{"x":2}}]"""
+
+        // gateway API format
+        String(JsonStreamWriter.write(mapOf("Device A" to records.take(1)))) shouldBe
+                """{"Device A":[{"ts":1000,"values":{"x":1}}]}"""
+    }
+
+    @Test
+    fun `it should reuse the buffer`() {
+        String(JsonStreamWriter.write(mapOf("long" to "x".repeat(5000)))).length shouldBe 5011
+        String(JsonStreamWriter.write(mapOf("a" to 1))) shouldBe """{"a":1}"""
+    }
+}
@@ -0,0 +1,64 @@
+package com.systema.eia.iot.tb.utils
+
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.shouldBe
+import org.junit.Test
+
+class ProtoSchemaTest {
+
+    private val telemetryProto = """
+        syntax = "proto3";
+        package telemetry;
+
+        // telemetry with timestamp
+        message Reading {
+          optional int64 ts = 1;
+          Values values = 2;
+
+          message Values {
+            optional int32 a = 1;
+            optional string b = 2;
+            optional double c = 3;
+            optional sint32 d = 4;
+            optional State state = 5;
+            repeated int32 list = 6;
+          }
+        }
+
+        enum State {
+          IDLE = 0;
+          RUNNING = 1;
+        }
+    """.trimIndent()
+
+    private fun hex(bytes: ByteArray) = bytes.joinToString(" ") { "%02x".format(it) }
+
+    @Test
+    fun `it should encode scalars like protoc`() {
+        val schema = ProtoSchema.parse(telemetryProto, "Reading.Values")
+
+        hex(schema.encode(mapOf("a" to 150))) shouldBe "08 96 01"
+        hex(schema.encode(mapOf("b" to "testing"))) shouldBe "12 07 74 65 73 74 69 6e 67"
+        hex(schema.encode(mapOf("c" to 1.0))) shouldBe "19 00 00 00 00 00 00 f0 3f"
+        hex(schema.encode(mapOf("d" to -1, "state" to "RUNNING"))) shouldBe "20 01 28 01"
+        hex(schema.encode(mapOf("a" to -1))) shouldBe "08 ff ff ff ff ff ff ff ff ff 01"
+        hex(schema.encode(mapOf("list" to listOf(1, 2), "b" to null))) shouldBe "30 01 30 02"
+    }
+
+    @Test
+    fun `it should encode telemetry records with nested values`() {
+        val codec = ProtobufPayloadCodec(ProtoSchema.parse(telemetryProto), ProtoSchema.parse(telemetryProto))
+
+        hex(codec.encodeTelemetry(TelemetryRecord(1L, "a", 150))) shouldBe "08 01 12 03 08 96 01"
+        shouldThrow<IllegalArgumentException> { codec.encodeTelemetry(mapOf("unknown" to 1)) }
+        codec.encodeTelemetry(listOf(TelemetryRecord(1L, "a", 150), TelemetryRecord(2L, "a", 150))).map { hex(it) } shouldBe
+                listOf("08 01 12 03 08 96 01", "08 02 12 03 08 96 01")
+    }
+
+    @Test
+    fun `it should reject unsupported schemas`() {
+        shouldThrow<IllegalArgumentException> { ProtoSchema.parse("message M { map<string, int32> m = 1; }") }
+        shouldThrow<IllegalArgumentException> { ProtoSchema.parse("message M { Unknown u = 1; }") }
+        shouldThrow<IllegalArgumentException> { ProtoSchema.parse("syntax = \"proto3\";") }
+    }
+}
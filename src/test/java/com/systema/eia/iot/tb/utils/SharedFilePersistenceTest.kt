@@ -0,0 +1,107 @@
+package com.systema.eia.iot.tb.utils
+
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.shouldNotBe
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData
+import org.junit.After
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.attribute.BasicFileAttributes
+
+class SharedFilePersistenceTest {
+
+    private val directory: File = Files.createTempDirectory("mqtt-persistence").toFile()
+    private val file = File(directory, "clients.mqtt")
+
+    @After
+    fun tearDown() {
+        directory.deleteRecursively()
+    }
+
+    private fun message(key: String, header: String, payload: String) =
+        MqttPersistentData(key, header.toByteArray(), 0, header.length, payload.toByteArray(), 0, payload.length)
+
+    private fun SharedFilePersistence.open(clientId: String) =
+        newClientPersistence().also { it.open(clientId, "tcp://localhost:1883") }
+
+    @Test
+    fun `it should keep the messages of clients apart`() {
+        SharedFilePersistence(file).use { store ->
+            val a = store.open("a")
+            val b = store.open("b")
+            a.put("s-1", message("s-1", "head", "er"))
+            b.put("s-1", message("s-1", "other", ""))
+
+            String(a.get("s-1")!!.headerBytes) shouldBe "header"
+            String(b.get("s-1")!!.headerBytes) shouldBe "other"
+            a.keys().toList() shouldBe listOf("s-1")
+
+            a.clear()
+            a.containsKey("s-1") shouldBe false
+            b.containsKey("s-1") shouldBe true
+        }
+    }
+
+    @Test
+    fun `it should recover the messages after reopening`() {
+        SharedFilePersistence(file).use { store ->
+            val client = store.open("a")
+            (1..10).forEach { client.put("s-$it", message("s-$it", "message", " $it")) }
+            (1..5).forEach { client.remove("s-$it") }
+            client.close()
+        }
+
+        SharedFilePersistence(file).use { store ->
+            store.size shouldBe 5
+            val client = store.open("a")
+            client.keys().toList().map { it.toString() }.sorted() shouldBe (6..10).map { "s-$it" }.sorted()
+            String(client.get("s-7")!!.headerBytes) shouldBe "message 7"
+        }
+    }
+
+    @Test
+    fun `it should compact the file`() {
+        SharedFilePersistence(file, compactionThreshold = 1024).use { store ->
+            val client = store.open("a")
+            repeat(1000) {
+                client.put("s-$it", message("s-$it", "header", "payload $it"))
+                client.remove("s-$it")
+            }
+            (file.length() < 2048) shouldBe true
+        }
+    }
+
+    @Test
+    fun `it should not compact a file of many small messages on every change`() {
+        SharedFilePersistence(file, compactionThreshold = 1024).use { store ->
+            val client = store.open("a-client-with-a-long-client-id")
+            repeat(200) { client.put("sc-$it", message("sc-$it", "r", "")) }
+            val fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes::class.java).fileKey()
+
+            client.put("sc-200", message("sc-200", "r", ""))
+            Files.readAttributes(file.toPath(), BasicFileAttributes::class.java).fileKey() shouldBe fileKey
+            client.keys().toList().size shouldBe 201
+        }
+    }
+
+    @Test
+    fun `it should reject a client id in use`() {
+        SharedFilePersistence(file).use { store ->
+            store.open("a")
+            shouldThrow<MqttPersistenceException> { store.open("a") }
+        }
+    }
+
+    @Test
+    fun `it should use the given client id, to recover the messages of the client`() {
+        SharedFilePersistence(file).use { store ->
+            SimpleMqttClient(username = "token-1", persistence = store.newClientPersistence())
+                .client.clientId shouldNotBe "token-1"
+            SimpleMqttClient(username = "token-1", persistence = store.newClientPersistence(), clientId = "device-1")
+                .client.clientId shouldBe "device-1"
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.systema.eia.iot.tb.utils
+
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.matchers.shouldBe
+import org.awaitility.Awaitility.await
+import org.junit.After
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+
+class StoreAndForwardQueueTest {
+
+    private val directory: File = Files.createTempDirectory("store-and-forward").toFile()
+
+    @After
+    fun tearDown() {
+        directory.deleteRecursively()
+    }
+
+    private fun StoreAndForwardQueue.drainAll(): List<String> {
+        val messages = ArrayList<String>()
+        drain { messages.add(String(it.payload)) }
+        return messages
+    }
+
+    @Test
+    fun `it should replay messages in order across segments and restarts`() {
+        val queue = StoreAndForwardQueue(directory, segmentSize = 256, drainRate = 10000.0)
+        (1..20).forEach { queue.append("v1/devices/me/telemetry", "{\"i\":$it}".toByteArray()) }
+        queue.size shouldBe 20L
+
+        // replay some, fail on the 6th
+        var count = 0
+        queue.drain { ++count <= 5 } shouldBe 5
+        queue.close()
+
+        val reopened = StoreAndForwardQueue(directory, segmentSize = 256, drainRate = 10000.0)
+        reopened.size shouldBe 15L
+        reopened.peek()!!.topic shouldBe "v1/devices/me/telemetry"
+        reopened.drainAll() shouldBe (6..20).map { "{\"i\":$it}" }
+        reopened.isEmpty shouldBe true
+        directory.listFiles()!!.count { it.name.startsWith("segment-") } shouldBe 1
+    }
+
+    @Test
+    fun `it should drop the oldest segment if full`() {
+        val queue = StoreAndForwardQueue(directory, segmentSize = 128, maxBytes = 256, drainRate = 10000.0)
+        (1..20).forEach { queue.append("t", "message $it".toByteArray()) }
+
+        val replayed = queue.drainAll()
+        replayed.last() shouldBe "message 20"
+        (replayed.size + queue.dropped) shouldBe 20L
+        (queue.dropped > 0) shouldBe true
+    }
+
+    @Test
+    fun `it should ignore the removal of a message dropped while it was replayed`() {
+        val queue = StoreAndForwardQueue(directory, segmentSize = 128, maxBytes = 256, drainRate = 10000.0)
+        queue.append("t", "message 1".toByteArray())
+        val message = queue.peek()!!
+
+        // fill the queue, so that the segment of the peeked message is dropped
+        (2..20).forEach { queue.append("t", "message $it".toByteArray()) }
+        val head = queue.peek()!!
+        queue.remove(message)
+
+        queue.peek()!!.payload shouldBe head.payload
+        queue.size shouldBe 20L - queue.dropped
+    }
+
+    @Test
+    fun `it should reject messages if full`() {
+        val queue = StoreAndForwardQueue(
+            directory, segmentSize = 128, maxBytes = 128, overflow = StoreAndForwardQueue.Overflow.REJECT
+        )
+        val accepted = (1..20).count { queue.append("t", "message $it".toByteArray()) }
+        queue.size shouldBe accepted.toLong()
+        queue.drainAll() shouldBe (1..accepted).map { "message $it" }
+    }
+
+    @Test
+    fun `it should store messages published while the broker is unreachable`() {
+        val queue = StoreAndForwardQueue(directory)
+        val client = SimpleMqttClient(brokerUrl = "localhost:1")
+        client.storeAndForward = queue
+
+        client.publish("v1/devices/me/telemetry", "{\"a\":1}".toByteArray(), true)
+        client.publishAsync("v1/devices/me/telemetry", "{\"a\":2}".toByteArray()).get()
+        client.disconnect(true)
+
+        queue.drainAll() shouldBe listOf("{\"a\":1}", "{\"a\":2}")
+        await().atMost(5, TimeUnit.SECONDS).until {
+            Thread.getAllStackTraces().keys.none { it.name == "mqtt-store-and-forward" && it.isAlive }
+        }
+    }
+
+    @Test
+    fun `it should reject messages after close`() {
+        val queue = StoreAndForwardQueue(directory)
+        queue.append("t", "stored".toByteArray())
+        queue.close()
+
+        shouldThrow<IllegalStateException> { queue.append("t", "late".toByteArray()) }
+        queue.isEmpty shouldBe true
+        StoreAndForwardQueue(directory).drainAll() shouldBe listOf("stored")
+    }
+
+    @Test
+    fun `it should drop expired messages`() {
+        val queue = StoreAndForwardQueue(directory, retention = Duration.ofMinutes(1))
+        queue.append("t", "old".toByteArray(), System.currentTimeMillis() - 120_000)
+        queue.append("t", "new".toByteArray())
+
+        queue.drainAll() shouldBe listOf("new")
+        queue.dropped shouldBe 1L
+    }
+}
@@ -142,6 +142,87 @@ public class WsParserUtilsTest {
         }
     }
 
+    /**
+     * Test {@link WsParserUtils#parseMessage(String)} method for timestamps more than 2^31 ms apart, descending
+     * arrays as sent by ThingsBoard and values of different types.
+     */
+    @Test
+    public void parseMessageOrderTest() throws ParseException {
+        //@formatter:off
+        String message = "{" +
+                "  \"subscriptionId\": 1," +
+                "  \"data\": {" +
+                "    \"temperature\": [[1617975311084, 41.5], [1617975309584, 42], [1000, \"x\"]]," +
+                "    \"active\": [[1617975310000, true], [1617975309584, null]]" +
+                "  }" +
+                "}";
+        //@formatter:on
+        List<AttrUpdate> expectedUpdateList = List.of(
+                new AttrUpdate("temperature", 1000L, "x"),
+                new AttrUpdate("temperature", 1617975309584L, 42),
+                new AttrUpdate("active", 1617975309584L, null),
+                new AttrUpdate("active", 1617975310000L, true),
+                new AttrUpdate("temperature", 1617975311084L, 41.5));
+        assertEquals(expectedUpdateList, WsParserUtils.parseMessage(message));
+    }
+
+    /**
+     * Test {@link WsParserUtils#parseMessage(String)} method for items of a key, which are not arrays: only these items
+     * are skipped.
+     */
+    @Test
+    public void parseMessageInvalidItemTest() throws ParseException {
+        String message = "{\"subscriptionId\": 1, \"data\": {\"a\": [1, [2, \"x\"], {}], \"b\": [[3, \"y\"]]}}";
+        List<AttrUpdate> expectedUpdateList = List.of(new AttrUpdate("a", 2L, "x"), new AttrUpdate("b", 3L, "y"));
+        assertEquals(expectedUpdateList, WsParserUtils.parseMessage(message));
+    }
+
+    /**
+     * Test {@link WsParserUtils#parseMessage(String, AttrUpdateBatch)} method: typed columns, order and reuse.
+     */
+    @Test
+    public void parseMessageBatchTest() throws ParseException {
+        //@formatter:off
+        String message = "{" +
+                "  \"subscriptionId\": 1," +
+                "  \"data\": {" +
+                "    \"temperature\": [[30, \"-0.0175\"], [20, \"42\"], [10, \"0042\"]]," +
+                "    \"active\": [[25, \"true\"], [15, null]]," +
+                "    \"count\": [[5, 7]]" +
+                "  }" +
+                "}";
+        //@formatter:on
+        var batch = new AttrUpdateBatch(2);
+        WsParserUtils.parseMessage(message, batch);
+
+        assertEquals(6, batch.size());
+        // same order as the list of updates
+        List<AttrUpdate> updates = WsParserUtils.parseMessage(message);
+        for (int row = 0; row < batch.size(); row++) {
+            assertEquals(updates.get(row).key, batch.key(row));
+            assertEquals(updates.get(row).timestamp, batch.timestamp(row));
+        }
+        assertEquals("count", batch.key(0));
+        assertEquals(AttrUpdateBatch.TYPE_LONG, batch.type(0));
+        assertEquals(7L, batch.longValue(0));
+        assertEquals(AttrUpdateBatch.TYPE_STRING, batch.type(1));
+        assertEquals("0042", batch.value(1));
+        assertEquals(AttrUpdateBatch.TYPE_NULL, batch.type(2));
+        assertEquals(42L, batch.longValue(3));
+        assertEquals(AttrUpdateBatch.TYPE_BOOLEAN, batch.type(4));
+        assertTrue(batch.booleanValue(4));
+        assertEquals(AttrUpdateBatch.TYPE_DOUBLE, batch.type(5));
+        assertEquals(-0.0175, batch.doubleValue(5));
+        assertEquals(30L, batch.timestamp(5));
+
+        // the batch is reused, keys keep their index
+        int temperature = batch.indexOfKey("temperature");
+        WsParserUtils.parseMessage("{\"data\": {\"temperature\": [[40, \"1.5\"]]}}", batch);
+        assertEquals(1, batch.size());
+        assertEquals(temperature, batch.keyIndex(0));
+        assertEquals(1.5, batch.doubleValue(0));
+    }
+
     @NotNull
     private static List<Arguments> provideInvalidMessages() {
         List<Arguments> argumentsList = new LinkedList<>();
@@ -179,6 +260,10 @@ public class WsParserUtilsTest {
         message = new String("");
         argumentsList.add(Arguments.of(message));
 
+        // item of a key, which is not an array
+        message = "{\"subscriptionId\": 1, \"data\": {\"a\": [1, [2, \"x\"]], \"b\": [[3, \"y\"]]}}";
+        argumentsList.add(Arguments.of(message));
+
         return argumentsList;
     }
 
@@ -262,6 +347,20 @@ public class WsParserUtilsTest {
         //@formatter:on
         argumentsList.add(Arguments.of(message, id));
 
+        // "subscriptionId" after the data
+        id = Integer.valueOf(42);
+        //@formatter:off
+        message = new String("{" +
+                "  \"data\": {" +
+                "    \"processingEnabled\": [" +
+                "      [4, \"false\"]" +
+                "    ]" +
+                "  }," +
+                "  \"subscriptionId\": " + id +
+                "}");
+        //@formatter:on
+        argumentsList.add(Arguments.of(message, id));
+
         return argumentsList;
     }
 
@@ -0,0 +1,103 @@
+package com.systema.eia.iot.tb.ws
+
+import com.systema.eia.iot.tb.clients.ExtRestClient
+import com.systema.eia.iot.tb.persistence.remove.TB_URL
+import com.systema.eia.iot.tb.utils.Scope
+import com.systema.eia.iot.tb.utils.SubscriptionType
+import com.systema.eia.iot.tb.utils.TelemetryRecord
+import io.kotest.matchers.shouldBe
+import org.awaitility.Awaitility.await
+import org.junit.Test
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+
+class WsSubscriptionManagerTest {
+
+    val restClient = ExtRestClient(TB_URL)
+
+    @Test
+    fun `it should route updates of many subscriptions over few sockets`() {
+        val devices = (1..10).map { restClient.getOrCreateDevice("ws_manager_test_${UUID.randomUUID()}") }
+        try {
+            WsSubscriptionManager(restClient, maxSubscriptionsPerSocket = 5).use { manager ->
+                val received = ConcurrentHashMap<String, Any?>()
+                val subscriptions = devices.map { device ->
+                    manager.subscribe(device.id, SubscriptionType.SHARED_SCOPE) { changes ->
+                        changes.forEach { received[device.name] = it.value }
+                    }
+                }
+                manager.subscriptionCount shouldBe 10
+                manager.socketCount shouldBe 2
+
+                devices.forEach { restClient.saveAttribute(it.id, Scope.SHARED_SCOPE, "name", it.name) }
+                await().atMost(5, TimeUnit.SECONDS).until { received.size == 10 }
+                devices.forEach { received[it.name] shouldBe it.name }
+
+                // no more updates after unsubscribe
+                subscriptions.first().close()
+                manager.subscriptionCount shouldBe 9
+                received.clear()
+                devices.forEach { restClient.saveAttribute(it.id, Scope.SHARED_SCOPE, "name", "changed") }
+                await().atMost(5, TimeUnit.SECONDS).until { received.size == 9 }
+                Thread.sleep(500)
+                received.containsKey(devices.first().name) shouldBe false
+            }
+        } finally {
+            devices.forEach { restClient.deleteDevice(it.id) }
+        }
+    }
+
+    @Test
+    fun `it should stream the latest values of all devices of a profile`() {
+        val profile = "ws_manager_profile_${UUID.randomUUID()}"
+        val devices = (1..5).map { restClient.getOrCreateDevice("ws_manager_test_${UUID.randomUUID()}", profile) }
+        try {
+            WsSubscriptionManager(restClient).use { manager ->
+                val temperatures = ConcurrentHashMap<String, String>()
+                val subscription = manager.subscribeEntityData(
+                    buildDeviceTypeFilter(profile), listOf("temperature"), pageSize = 2
+                ) { entity ->
+                    entity.values.filter { it.timestamp > 0 }.forEach { temperatures[entity.name!!] = it.value.toString() }
+                }
+
+                devices.forEach { restClient.sendTelemetry(it.id, "temperature", 42) }
+                await().atMost(10, TimeUnit.SECONDS).until { temperatures.size == 5 }
+                temperatures.values.toSet() shouldBe setOf("42")
+                subscription.pageCount shouldBe 3
+            }
+        } finally {
+            devices.forEach { restClient.deleteDevice(it.id) }
+        }
+    }
+
+    @Test
+    fun `it should resubscribe and fill the gap after the websocket was closed`() {
+        val device = restClient.getOrCreateDevice("ws_manager_test_${UUID.randomUUID()}")
+        try {
+            WsSubscriptionManager(restClient, reconnectDelay = Duration.ofSeconds(2)).use { manager ->
+                val timestamps = CopyOnWriteArrayList<Long>()
+                val subscription = manager.subscribe(device.id, SubscriptionType.LATEST_TELEMETRY, listOf("rpm")) {
+                    it.forEach { update -> timestamps.add(update.timestamp) }
+                }
+                val ts = System.currentTimeMillis()
+                (0L..2L).forEach { restClient.sendTelemetry(device.id, TelemetryRecord(ts + it, "rpm", it)) }
+                await().atMost(5, TimeUnit.SECONDS).until { timestamps.size == 3 }
+
+                // values sent while disconnected are queried after the reconnect
+                subscription.socket!!.closeConnection(1006, "test")
+                (3L..5L).forEach { restClient.sendTelemetry(device.id, TelemetryRecord(ts + it, "rpm", it)) }
+                await().atMost(10, TimeUnit.SECONDS).until { manager.reconnectCount == 1L }
+                restClient.sendTelemetry(device.id, TelemetryRecord(ts + 6, "rpm", 6))
+
+                await().atMost(5, TimeUnit.SECONDS).until { timestamps.size >= 7 }
+                Thread.sleep(500)
+                timestamps shouldBe (0L..6L).map { ts + it }
+            }
+        } finally {
+            restClient.deleteDevice(device.id)
+        }
+    }
+}